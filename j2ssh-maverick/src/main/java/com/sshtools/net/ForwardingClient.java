@@ -30,6 +30,7 @@ import java.net.Socket;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
+import java.util.concurrent.ThreadFactory;
 
 import com.sshtools.events.Event;
 import com.sshtools.events.EventServiceImplementation;
@@ -40,12 +41,15 @@ import com.sshtools.ssh.Client;
 import com.sshtools.ssh.ForwardingRequestListener;
 import com.sshtools.ssh.SshChannel;
 import com.sshtools.ssh.SshClient;
+import com.sshtools.ssh.SshContext;
 import com.sshtools.ssh.SshException;
 import com.sshtools.ssh.SshTransport;
 import com.sshtools.ssh.SshTunnel;
 import com.sshtools.ssh.components.ComponentManager;
+import com.sshtools.ssh2.Ssh2Context;
 import com.sshtools.util.ByteArrayReader;
 import com.sshtools.util.IOStreamConnector;
+import com.sshtools.util.Threads;
 
 /**
  * <p>
@@ -201,6 +205,18 @@ public class ForwardingClient implements Client {
 		this.ssh = ssh;
 	}
 
+	/**
+	 * The factory configured on the client's context for creating threads,
+	 * or the default factory if the context does not provide one.
+	 */
+	ThreadFactory getThreadFactory() {
+		SshContext context = ssh.getContext();
+		if (context instanceof Ssh2Context) {
+			return ((Ssh2Context) context).getThreadFactory();
+		}
+		return Threads.getDefaultThreadFactory();
+	}
+
 	/**
 	 * Add a {@link ForwardingClientListener} to receive forwarding events.
 	 * 
@@ -1226,6 +1242,7 @@ public class ForwardingClient implements Client {
 
 				// glue forwarding channel in to connection to server out
 				rx = new IOStreamConnector();
+				rx.setThreadFactory(getThreadFactory());
 				rx.addListener(listener);
 				// rx.setCloseInput(true);
 				rx.connect(channel.getInputStream(), channel.getTransport()
@@ -1233,6 +1250,7 @@ public class ForwardingClient implements Client {
 
 				// glue connection to server in to forwarding channel out
 				tx = new IOStreamConnector();
+				tx.setThreadFactory(getThreadFactory());
 				tx.addListener(listener);
 				// tx.setCloseOutput(false);
 				tx.connect(channel.getTransport().getInputStream(),
@@ -1417,7 +1435,8 @@ public class ForwardingClient implements Client {
 						continue;
 					}
 
-					Thread t = new Thread() {
+					Thread t = Threads.newThread(getThreadFactory(),
+							new Runnable() {
 
 						public void run() {
 							try {
@@ -1454,7 +1473,7 @@ public class ForwardingClient implements Client {
 								}
 							}
 						}
-					};
+					}, null, Thread.currentThread().isDaemon());
 					t.start();
 				}
 			} catch (IOException ioe) {
@@ -1484,10 +1503,9 @@ public class ForwardingClient implements Client {
 								: InetAddress.getByName(addressToBind));
 
 				/* Create a thread and start it */
-				thread = new Thread(this);
-				thread.setDaemon(true);
-				thread.setName("SocketListener " + addressToBind + ":"
-						+ String.valueOf(portToBind));
+				thread = Threads.newThread(getThreadFactory(), this,
+						"SocketListener " + addressToBind + ":"
+								+ String.valueOf(portToBind), true);
 				thread.start();
 			} catch (IOException ioe) {
 				throw new SshException("Failed to local forwarding server. ",
@@ -0,0 +1,237 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.net;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sshtools.logging.Log;
+
+/**
+ * <p>
+ * A small pool of selector threads that service any number of
+ * {@link NioSocketTransport} connections. Each selector thread reads incoming
+ * data into the buffers of the transports registered with it and a shared set
+ * of worker threads informs the transports' data listeners, so the number of
+ * threads used does not grow with the number of connections.
+ * </p>
+ * 
+ * <p>
+ * A default pool with a single selector and one worker per processor is
+ * created on first use. Applications with very large numbers of connections
+ * can create their own pool and pass it to the {@link NioSocketTransport}
+ * constructor.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class NioSelectorPool {
+
+	static NioSelectorPool defaultPool;
+
+	SelectorThread[] selectors;
+	ExecutorService workers;
+	int nextSelector = 0;
+	boolean running = true;
+
+	/**
+	 * Create a pool.
+	 * 
+	 * @param numSelectors
+	 *            the number of selector threads
+	 * @param numWorkers
+	 *            the number of threads used to invoke data listeners
+	 * @throws IOException
+	 */
+	public NioSelectorPool(int numSelectors, int numWorkers)
+			throws IOException {
+
+		if (numSelectors < 1 || numWorkers < 1) {
+			throw new IllegalArgumentException(
+					"There must be at least one selector and one worker thread");
+		}
+
+		workers = Executors.newFixedThreadPool(numWorkers, new ThreadFactory() {
+			int count = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "NioWorker_" + (++count));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		selectors = new SelectorThread[numSelectors];
+		for (int i = 0; i < selectors.length; i++) {
+			selectors[i] = new SelectorThread(Selector.open());
+			selectors[i].setName("NioSelector_" + (i + 1));
+			selectors[i].setDaemon(true);
+			selectors[i].start();
+		}
+	}
+
+	/**
+	 * Get the default pool, creating it if necessary.
+	 * 
+	 * @return NioSelectorPool
+	 * @throws IOException
+	 */
+	public static synchronized NioSelectorPool getDefault() throws IOException {
+		if (defaultPool == null || !defaultPool.running) {
+			defaultPool = new NioSelectorPool(1, Runtime.getRuntime()
+					.availableProcessors());
+		}
+		return defaultPool;
+	}
+
+	/**
+	 * Stop the selector and worker threads. Transports registered with the
+	 * pool will no longer receive data.
+	 */
+	public void shutdown() {
+		running = false;
+		for (int i = 0; i < selectors.length; i++) {
+			selectors[i].selector.wakeup();
+		}
+		workers.shutdown();
+	}
+
+	synchronized void register(NioSocketTransport transport) {
+		SelectorThread t = selectors[nextSelector++ % selectors.length];
+		transport.selectorThread = t;
+		t.addOperation(transport, true);
+	}
+
+	void updateInterest(NioSocketTransport transport) {
+		SelectorThread t = transport.selectorThread;
+		if (t == null) {
+			return;
+		}
+		if (Thread.currentThread() == t) {
+			t.applyInterest(transport);
+		} else {
+			t.addOperation(transport, false);
+		}
+	}
+
+	void dispatch(Runnable r) {
+		workers.execute(r);
+	}
+
+	class SelectorThread extends Thread {
+
+		Selector selector;
+		Vector<NioSocketTransport> registrations = new Vector<NioSocketTransport>();
+		Vector<NioSocketTransport> interestChanges = new Vector<NioSocketTransport>();
+
+		SelectorThread(Selector selector) {
+			this.selector = selector;
+		}
+
+		void addOperation(NioSocketTransport transport, boolean register) {
+			synchronized (this) {
+				if (register) {
+					registrations.addElement(transport);
+				} else {
+					interestChanges.addElement(transport);
+				}
+			}
+			selector.wakeup();
+		}
+
+		void applyInterest(NioSocketTransport transport) {
+			SelectionKey key = transport.key;
+			if (key != null && key.isValid()) {
+				key.interestOps(transport.getInterestOps());
+			}
+		}
+
+		public void run() {
+
+			try {
+				while (running) {
+
+					NioSocketTransport[] pending;
+					synchronized (this) {
+						pending = registrations
+								.toArray(new NioSocketTransport[registrations
+										.size()]);
+						registrations.removeAllElements();
+
+						for (int i = 0; i < interestChanges.size(); i++) {
+							applyInterest(interestChanges.elementAt(i));
+						}
+						interestChanges.removeAllElements();
+					}
+
+					for (int i = 0; i < pending.length; i++) {
+						try {
+							pending[i].key = pending[i].channel.register(
+									selector, pending[i].getInterestOps(),
+									pending[i]);
+						} catch (ClosedChannelException ex) {
+							// Let the transport discover the EOF
+							pending[i].readReady();
+						}
+					}
+
+					selector.select();
+
+					for (Iterator<SelectionKey> it = selector.selectedKeys()
+							.iterator(); it.hasNext();) {
+						SelectionKey key = it.next();
+						it.remove();
+
+						NioSocketTransport transport = (NioSocketTransport) key
+								.attachment();
+
+						if (!key.isValid()) {
+							transport.readReady();
+							continue;
+						}
+
+						if (key.isWritable()) {
+							transport.writeReady();
+						}
+
+						if (key.isValid() && key.isReadable()) {
+							transport.readReady();
+						}
+					}
+				}
+			} catch (Throwable t) {
+				Log.error(this, "Selector thread " + getName() + " failed", t);
+			} finally {
+				try {
+					selector.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,382 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import com.sshtools.ssh.NonBlockingTransport;
+import com.sshtools.ssh.SocketTimeoutSupport;
+import com.sshtools.ssh.SshTransport;
+
+/**
+ * <p>
+ * An <a href="../../maverick/ssh/SshTransport.html">SshTransport</a> built on a
+ * non-blocking <code>SocketChannel</code>. Incoming data is read by a
+ * {@link NioSelectorPool} so that a buffered client connected over this
+ * transport does not need a message pump thread of its own; decoded messages
+ * are routed to the channel message stores by the pool's worker threads.
+ * </p>
+ * 
+ * <blockquote>
+ * 
+ * <pre>
+ * SshConnector con = SshConnector.createInstance();
+ * SshClient ssh = con.connect(new NioSocketTransport(&quot;titan&quot;, 22),
+ * 		&quot;lee&quot;, true);
+ * </pre>
+ * 
+ * </blockquote>
+ * 
+ * @author Lee David Painter
+ */
+public class NioSocketTransport implements NonBlockingTransport,
+		SocketTimeoutSupport {
+
+	static final int BUFFER_SIZE = 65536;
+
+	SocketChannel channel;
+	String hostname;
+	int port;
+	NioSelectorPool pool;
+	NioSelectorPool.SelectorThread selectorThread;
+	SelectionKey key;
+
+	Object readLock = new Object();
+	ByteBuffer inbound = ByteBuffer.allocate(BUFFER_SIZE);
+	boolean readSuspended = false;
+	boolean eof = false;
+	boolean closed = false;
+	int soTimeout = 0;
+
+	Object writeLock = new Object();
+	boolean writePending = false;
+
+	Object listenerLock = new Object();
+	Runnable listener;
+	boolean dispatching = false;
+	boolean dispatchPending = false;
+
+	NioInputStream in = new NioInputStream();
+	NioOutputStream out = new NioOutputStream();
+
+	/**
+	 * Connect to the host using the default {@link NioSelectorPool}.
+	 * 
+	 * @param hostname
+	 * @param port
+	 * @throws IOException
+	 */
+	public NioSocketTransport(String hostname, int port) throws IOException {
+		this(hostname, port, NioSelectorPool.getDefault());
+	}
+
+	/**
+	 * Connect to the host and register the connection with the pool
+	 * supplied.
+	 * 
+	 * @param hostname
+	 * @param port
+	 * @param pool
+	 * @throws IOException
+	 */
+	public NioSocketTransport(String hostname, int port, NioSelectorPool pool)
+			throws IOException {
+		this.hostname = hostname;
+		this.port = port;
+		this.pool = pool;
+
+		channel = SocketChannel.open(new InetSocketAddress(hostname, port));
+		try {
+			channel.socket().setSendBufferSize(65535);
+			channel.socket().setReceiveBufferSize(65535);
+			channel.configureBlocking(false);
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+
+		pool.register(this);
+	}
+
+	public String getHost() {
+		return hostname;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return in;
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		return out;
+	}
+
+	public SshTransport duplicate() throws IOException {
+		return new NioSocketTransport(hostname, port, pool);
+	}
+
+	public void setSoTimeout(int timeout) throws IOException {
+		this.soTimeout = timeout;
+	}
+
+	public int getSoTimeout() throws IOException {
+		return soTimeout;
+	}
+
+	public int available() {
+		synchronized (readLock) {
+			if (inbound.position() == 0 && (eof || closed)) {
+				return -1;
+			}
+			return inbound.position();
+		}
+	}
+
+	public void ensureBufferCapacity(int size) {
+		synchronized (readLock) {
+			if (inbound.capacity() >= size) {
+				return;
+			}
+			ByteBuffer buffer = ByteBuffer.allocate(size);
+			inbound.flip();
+			buffer.put(inbound);
+			inbound = buffer;
+
+			if (readSuspended && !eof) {
+				readSuspended = false;
+				pool.updateInterest(this);
+			}
+		}
+	}
+
+	public void setDataListener(Runnable listener) {
+		synchronized (listenerLock) {
+			this.listener = listener;
+		}
+		if (listener != null && available() != 0) {
+			fireDataAvailable();
+		}
+	}
+
+	public void close() throws IOException {
+		synchronized (readLock) {
+			closed = true;
+			readLock.notifyAll();
+		}
+		synchronized (writeLock) {
+			writeLock.notifyAll();
+		}
+		channel.close();
+	}
+
+	int getInterestOps() {
+		int ops = 0;
+		if (!readSuspended) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if (writePending) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		return ops;
+	}
+
+	/**
+	 * Called by the selector thread when the channel is readable.
+	 */
+	void readReady() {
+
+		synchronized (readLock) {
+			try {
+				if (channel.read(inbound) == -1) {
+					eof = true;
+				}
+			} catch (IOException ex) {
+				eof = true;
+			}
+
+			if (eof || !inbound.hasRemaining()) {
+				// Stop reading until the buffer has been drained
+				readSuspended = true;
+				pool.updateInterest(this);
+			}
+
+			readLock.notifyAll();
+		}
+
+		fireDataAvailable();
+	}
+
+	/**
+	 * Called by the selector thread when the channel can accept more data.
+	 */
+	void writeReady() {
+		synchronized (writeLock) {
+			writePending = false;
+			pool.updateInterest(this);
+			writeLock.notifyAll();
+		}
+	}
+
+	void fireDataAvailable() {
+
+		synchronized (listenerLock) {
+			if (listener == null) {
+				return;
+			}
+			if (dispatching) {
+				dispatchPending = true;
+				return;
+			}
+			dispatching = true;
+		}
+
+		pool.dispatch(new Runnable() {
+			public void run() {
+				while (true) {
+					Runnable r;
+					synchronized (listenerLock) {
+						r = listener;
+						dispatchPending = false;
+					}
+					try {
+						if (r != null) {
+							r.run();
+						}
+					} finally {
+						synchronized (listenerLock) {
+							if (!dispatchPending || listener == null) {
+								dispatching = false;
+								return;
+							}
+						}
+					}
+				}
+			}
+		});
+	}
+
+	class NioInputStream extends InputStream {
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int ret = read(b, 0, 1);
+			return ret > 0 ? b[0] & 0xFF : -1;
+		}
+
+		public int available() throws IOException {
+			int available = NioSocketTransport.this.available();
+			return available < 0 ? 0 : available;
+		}
+
+		public int read(byte[] buf, int off, int len) throws IOException {
+
+			if (len == 0) {
+				return 0;
+			}
+
+			synchronized (readLock) {
+
+				long started = System.currentTimeMillis();
+
+				while (inbound.position() == 0) {
+					if (eof || closed) {
+						return -1;
+					}
+
+					try {
+						if (soTimeout > 0) {
+							long remaining = soTimeout
+									- (System.currentTimeMillis() - started);
+							if (remaining <= 0) {
+								throw new SocketTimeoutException(
+										"Read timed out");
+							}
+							readLock.wait(remaining);
+						} else {
+							readLock.wait();
+						}
+					} catch (InterruptedException ex) {
+						throw new InterruptedIOException(
+								"Interrupted whilst waiting for data");
+					}
+				}
+
+				inbound.flip();
+				int count = inbound.remaining() < len ? inbound.remaining()
+						: len;
+				inbound.get(buf, off, count);
+				inbound.compact();
+
+				if (readSuspended && !eof) {
+					readSuspended = false;
+					pool.updateInterest(NioSocketTransport.this);
+				}
+
+				return count;
+			}
+		}
+	}
+
+	class NioOutputStream extends OutputStream {
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] buf, int off, int len) throws IOException {
+
+			synchronized (writeLock) {
+				ByteBuffer src = ByteBuffer.wrap(buf, off, len);
+				while (src.hasRemaining()) {
+
+					if (closed) {
+						throw new IOException("The transport is closed");
+					}
+
+					if (channel.write(src) == 0) {
+						// Socket buffer is full so wait for the selector
+						writePending = true;
+						pool.updateInterest(NioSocketTransport.this);
+						try {
+							while (writePending && !closed) {
+								writeLock.wait();
+							}
+						} catch (InterruptedException ex) {
+							throw new InterruptedIOException(
+									"Interrupted whilst waiting to write");
+						}
+					}
+				}
+			}
+		}
+	}
+}
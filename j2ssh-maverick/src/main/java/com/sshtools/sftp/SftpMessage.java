@@ -23,12 +23,14 @@ package com.sshtools.sftp;
 import java.io.IOException;
 
 import com.sshtools.ssh.message.Message;
+import com.sshtools.util.BufferPool;
 import com.sshtools.util.ByteArrayReader;
 
 public class SftpMessage extends ByteArrayReader implements Message {
 
 	int type;
 	int requestId;
+	BufferPool pool;
 
 	SftpMessage(byte[] msg) throws IOException {
 		super(msg);
@@ -36,6 +38,25 @@ public class SftpMessage extends ByteArrayReader implements Message {
 		requestId = (int) readInt();
 	}
 
+	SftpMessage(byte[] msg, int len, BufferPool pool) throws IOException {
+		super(msg, 0, len);
+		this.pool = pool;
+		type = read();
+		requestId = (int) readInt();
+	}
+
+	/**
+	 * Release the message, returning its buffer to the pool it was read into.
+	 * The message must not be accessed afterwards.
+	 */
+	public void dispose() {
+		if (pool != null) {
+			pool.release(buf);
+			pool = null;
+		}
+		super.dispose();
+	}
+
 	public int getType() {
 		return type;
 	}
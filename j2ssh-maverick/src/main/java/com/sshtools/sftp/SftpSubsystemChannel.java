@@ -40,6 +40,7 @@ import com.sshtools.ssh.SshSession;
 import com.sshtools.ssh.SubsystemChannel;
 import com.sshtools.ssh.message.Message;
 import com.sshtools.ssh.message.MessageHolder;
+import com.sshtools.util.BufferPool;
 import com.sshtools.util.Base64;
 import com.sshtools.util.ByteArrayReader;
 import com.sshtools.util.UnsignedInteger32;
@@ -155,6 +156,7 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 
 	UnsignedInteger32 requestId = new UnsignedInteger32(0);
 	Hashtable<UnsignedInteger32, SftpMessage> responses = new Hashtable<UnsignedInteger32, SftpMessage>();
+	BufferPool pool = BufferPool.getInstance();
 	SftpThreadSynchronizer sync = new SftpThreadSynchronizer();
 	Hashtable<String, byte[]> extensions = new Hashtable<String, byte[]>();
 
@@ -2022,7 +2024,9 @@ public class SftpSubsystemChannel extends SubsystemChannel {
 			try {
 				// Read the next response message
 				if (sync.requestBlock(requestId, holder)) {
-					msg = new SftpMessage(nextMessage());
+					ByteArrayReader payload = nextMessage(pool);
+					msg = new SftpMessage(payload.array(),
+							payload.available(), pool);
 					responses.put(new UnsignedInteger32(msg.getMessageId()),
 							msg);
 				}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Receives the data of a channel as it arrives, at the rate the subscriber
+ * asks for it. The methods follow the same contract as the reactive streams
+ * <code>Subscriber</code> (<code>java.util.concurrent.Flow.Subscriber</code>
+ * on Java 9 and later) so an adapter to either is trivial.
+ * </p>
+ * 
+ * <p>
+ * The methods are called serially, normally on the thread that dispatches
+ * messages for the connection, so they must not block.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public interface ChannelDataSubscriber {
+
+	/**
+	 * Called once before any other method. No data is delivered until
+	 * {@link ChannelDataSubscription#request(long)} is called.
+	 * 
+	 * @param subscription
+	 */
+	public void onSubscribe(ChannelDataSubscription subscription);
+
+	/**
+	 * The next block of data. Each block is the data of a single
+	 * SSH_MSG_CHANNEL_DATA or SSH_MSG_CHANNEL_EXTENDED_DATA message and so is
+	 * never larger than the channel's maximum packet size. The buffer belongs
+	 * to the subscriber.
+	 * 
+	 * @param data
+	 */
+	public void onNext(ByteBuffer data);
+
+	/**
+	 * The connection failed. No further methods will be called.
+	 * 
+	 * @param t
+	 */
+	public void onError(Throwable t);
+
+	/**
+	 * The remote side sent EOF or closed the channel and all of the data has
+	 * been delivered. No further methods will be called.
+	 */
+	public void onComplete();
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh;
+
+/**
+ * A subscriber's link to the data of a channel. Demand is expressed in
+ * blocks of data; each block requested allows the remote side to send up to
+ * one more packet, so a subscriber that stops requesting data stops the
+ * remote side sending it once the channel window is used up.
+ * 
+ * @author Lee David Painter
+ */
+public interface ChannelDataSubscription {
+
+	/**
+	 * Request a number of further blocks of data.
+	 * 
+	 * @param n
+	 *            the number of blocks, which must be positive
+	 */
+	public void request(long n);
+
+	/**
+	 * Stop receiving data. Any data that has arrived but not been delivered is
+	 * discarded and further data is left for the channel's InputStream.
+	 */
+	public void cancel();
+}
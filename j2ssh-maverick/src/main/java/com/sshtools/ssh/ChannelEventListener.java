@@ -68,7 +68,9 @@ public interface ChannelEventListener {
 	/**
 	 * A block of data has been received by the channel. This implementation
 	 * should provide the data but not interfere with normal data processing of
-	 * the channel.
+	 * the channel. When channel data pooling is enabled the array is recycled
+	 * once this method returns, so implementations that keep the data must
+	 * copy it.
 	 * 
 	 * @param channel
 	 *            SshChannel
@@ -98,7 +100,9 @@ public interface ChannelEventListener {
 	public void dataSent(SshChannel channel, byte[] data, int off, int len);
 
 	/**
-	 * A block of extended data has been received by the channel.
+	 * A block of extended data has been received by the channel. When channel
+	 * data pooling is enabled the array is recycled once this method returns,
+	 * so implementations that keep the data must copy it.
 	 * 
 	 * @param channel
 	 * @param data
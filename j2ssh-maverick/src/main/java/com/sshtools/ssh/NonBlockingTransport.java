@@ -0,0 +1,69 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh;
+
+/**
+ * <p>
+ * An {@link SshTransport} whose incoming data is read by a shared selector
+ * rather than by a thread dedicated to the connection. The transport buffers
+ * the data it receives and informs a listener when it becomes available, so
+ * that a buffered client can decode and route messages without starting a
+ * message pump thread of its own.
+ * </p>
+ * 
+ * <p>
+ * The streams returned by {@link #getInputStream()} and
+ * {@link #getOutputStream()} remain blocking so the transport can still be
+ * used for protocol negotiation, key exchange and authentication.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public interface NonBlockingTransport extends SshTransport {
+
+	/**
+	 * Get the number of bytes that can be read from the transport's
+	 * InputStream without blocking.
+	 * 
+	 * @return the number of buffered bytes, or -1 if the remote side has
+	 *         closed the connection and no further data is buffered
+	 */
+	public int available();
+
+	/**
+	 * Make sure the transport can buffer at least the number of bytes given,
+	 * so that a whole packet of the largest size allowed can be received
+	 * before it is read.
+	 * 
+	 * @param size
+	 */
+	public void ensureBufferCapacity(int size);
+
+	/**
+	 * Set the listener that is informed when data, or the end of the stream,
+	 * becomes available. The listener is invoked on a worker thread shared by
+	 * all connections and is never invoked concurrently for the same
+	 * transport. Setting a <code>null</code> listener stops notifications.
+	 * 
+	 * @param listener
+	 */
+	public void setDataListener(Runnable listener);
+}
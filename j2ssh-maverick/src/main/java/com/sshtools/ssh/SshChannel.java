@@ -20,6 +20,11 @@
  */
 package com.sshtools.ssh;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
 import com.sshtools.ssh.message.SshMessageRouter;
 
 /**
@@ -72,4 +77,54 @@ public interface SshChannel extends SshIO {
 	 */
 	public SshMessageRouter getMessageRouter();
 
+	/**
+	 * Send the remaining data of a set of buffers, blocking until the remote
+	 * side has granted enough window space for all of it. As much data as
+	 * the window allows is split into packets and sent as a single batch,
+	 * rather than one packet at a time as the OutputStream does. The
+	 * position of each buffer is advanced past the data sent.
+	 * 
+	 * @param srcs
+	 * @return the number of bytes sent
+	 * @throws IOException
+	 */
+	public long write(ByteBuffer[] srcs) throws IOException;
+
+	/**
+	 * Send data read from a channel until it reaches end of stream or the
+	 * given number of bytes have been sent.
+	 * 
+	 * @param src
+	 * @param count
+	 *            the maximum number of bytes to send
+	 * @return the number of bytes sent
+	 * @throws IOException
+	 */
+	public long transferFrom(ReadableByteChannel src, long count)
+			throws IOException;
+
+	/**
+	 * Read channel data into a buffer, blocking until at least one byte is
+	 * available.
+	 * 
+	 * @param dst
+	 * @return the number of bytes read, or -1 if the channel is EOF
+	 * @throws IOException
+	 */
+	public int read(ByteBuffer dst) throws IOException;
+
+	/**
+	 * Write the channel's data to another channel until the channel is EOF
+	 * or the given number of bytes have been transferred. When the channel
+	 * buffers its input the data is written straight from the buffer it
+	 * was received into.
+	 * 
+	 * @param target
+	 * @param count
+	 *            the maximum number of bytes to transfer
+	 * @return the number of bytes transferred
+	 * @throws IOException
+	 */
+	public long transferTo(WritableByteChannel target, long count)
+			throws IOException;
 }
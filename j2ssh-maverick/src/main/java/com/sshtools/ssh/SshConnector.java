@@ -22,12 +22,14 @@ package com.sshtools.ssh;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.ThreadFactory;
 
 import com.sshtools.events.EventListener;
 import com.sshtools.events.EventServiceImplementation;
 import com.sshtools.logging.Log;
 import com.sshtools.ssh2.Ssh2Client;
 import com.sshtools.ssh2.Ssh2Context;
+import com.sshtools.util.Threads;
 
 /**
  * <p>
@@ -211,6 +213,33 @@ public final class SshConnector {
 		return connect(transport, username, false, context);
 	}
 
+	/**
+	 * Connect on a thread from the context's thread factory. The connection is
+	 * always buffered so that the asynchronous operations of the returned
+	 * client can be used.
+	 * 
+	 * @param transport
+	 *            SshTransport
+	 * @param username
+	 *            String
+	 * @return a future completed with the connected client
+	 */
+	public SshFuture<SshClient> connectAsync(final SshTransport transport,
+			final String username) {
+		final SshFuture<SshClient> future = new SshFuture<SshClient>();
+		Threads.newThread(ssh2Context.getThreadFactory(), new Runnable() {
+			public void run() {
+				try {
+					future.setResult(connect(transport, username, true, null));
+				} catch (Throwable t) {
+					future.setFailure(t);
+				}
+			}
+		}, "Connect " + transport.getHost() + ":" + transport.getPort(), true)
+				.start();
+		return future;
+	}
+
 	/**
 	 * Set the software/version/comments field of the SSH identification string
 	 * 
@@ -221,6 +250,18 @@ public final class SshConnector {
 		this.softwareComments = softwareComments;
 	}
 
+	/**
+	 * Set the factory from which connections made by this connector create
+	 * their threads. This is a shortcut for setting the factory on the
+	 * context.
+	 * 
+	 * @param threadFactory
+	 * @see com.sshtools.util.Threads#virtualThreadFactory()
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		ssh2Context.setThreadFactory(threadFactory);
+	}
+
 	/**
 	 * See {@link connect(SshTransport, String)} for full details.
 	 * 
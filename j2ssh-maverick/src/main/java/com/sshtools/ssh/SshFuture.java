@@ -0,0 +1,195 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh;
+
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.sshtools.logging.Log;
+
+/**
+ * <p>
+ * The result of an asynchronous operation. Operations on a buffered
+ * connection are completed by the thread that dispatches the connection's
+ * messages, so no thread waits for each outstanding operation; callers may
+ * either register a {@link SshFutureListener} or block in {@link #get()}.
+ * </p>
+ * 
+ * <p>
+ * A request cannot be withdrawn once it has been sent, so futures cannot be
+ * cancelled.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class SshFuture<V> implements Future<V> {
+
+	V result;
+	Throwable failure;
+	boolean done = false;
+	Vector<SshFutureListener<V>> listeners = new Vector<SshFutureListener<V>>();
+
+	/**
+	 * Complete the future successfully.
+	 * 
+	 * @param result
+	 * @return <code>false</code> if the future had already completed
+	 */
+	public boolean setResult(V result) {
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			this.result = result;
+			done = true;
+			notifyAll();
+		}
+		fireComplete();
+		return true;
+	}
+
+	/**
+	 * Complete the future with a failure.
+	 * 
+	 * @param failure
+	 * @return <code>false</code> if the future had already completed
+	 */
+	public boolean setFailure(Throwable failure) {
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			this.failure = failure;
+			done = true;
+			notifyAll();
+		}
+		fireComplete();
+		return true;
+	}
+
+	/**
+	 * Add a listener to be notified when the future completes. If it has
+	 * already completed the listener is notified immediately on the calling
+	 * thread.
+	 * 
+	 * @param listener
+	 */
+	public void addListener(SshFutureListener<V> listener) {
+		synchronized (this) {
+			if (!done) {
+				listeners.addElement(listener);
+				return;
+			}
+		}
+		notifyListener(listener);
+	}
+
+	private void fireComplete() {
+		for (int i = 0; i < listeners.size(); i++) {
+			notifyListener(listeners.elementAt(i));
+		}
+		listeners.removeAllElements();
+	}
+
+	/**
+	 * Futures are often completed by the thread routing messages, which must
+	 * not be stopped by a listener that fails.
+	 */
+	private void notifyListener(SshFutureListener<V> listener) {
+		try {
+			listener.operationComplete(this);
+		} catch (Throwable t) {
+			Log.error(this, "Future listener failed", t);
+		}
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Determine whether the future completed successfully.
+	 * 
+	 * @return boolean
+	 */
+	public synchronized boolean isSuccess() {
+		return done && failure == null;
+	}
+
+	/**
+	 * Get the failure the future completed with.
+	 * 
+	 * @return the failure, or <code>null</code> if the future has not
+	 *         completed or completed successfully
+	 */
+	public synchronized Throwable getCause() {
+		return failure;
+	}
+
+	/**
+	 * Get the result without waiting.
+	 * 
+	 * @return the result, or <code>null</code> if the future has not
+	 *         completed or failed
+	 */
+	public synchronized V getNow() {
+		return result;
+	}
+
+	public synchronized V get() throws InterruptedException,
+			ExecutionException {
+		while (!done) {
+			wait();
+		}
+		return getResult();
+	}
+
+	public synchronized V get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long end = System.currentTimeMillis() + unit.toMillis(timeout);
+		while (!done) {
+			long remaining = end - System.currentTimeMillis();
+			if (remaining <= 0) {
+				throw new TimeoutException();
+			}
+			wait(remaining);
+		}
+		return getResult();
+	}
+
+	private V getResult() throws ExecutionException {
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return result;
+	}
+}
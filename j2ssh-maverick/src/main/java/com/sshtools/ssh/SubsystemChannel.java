@@ -26,6 +26,9 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.util.Vector;
 
+import com.sshtools.util.BufferPool;
+import com.sshtools.util.ByteArrayReader;
+
 /**
  * <p>
  * This class provides useful methods for implementing an SSH2 subsystem.
@@ -114,7 +117,21 @@ public class SubsystemChannel {
 	 * @throws SshException
 	 */
 	public byte[] nextMessage() throws SshException {
-		return reader.readMessage(in);
+		return reader.readMessage(in, null).array();
+	}
+
+	/**
+	 * Read a subsystem message into a buffer drawn from the pool supplied. The
+	 * returned reader spans exactly the message which starts at offset zero of
+	 * its array; the array may be larger than the message and should be
+	 * returned to the pool once the message has been consumed.
+	 * 
+	 * @param pool
+	 * @return ByteArrayReader
+	 * @throws SshException
+	 */
+	protected ByteArrayReader nextMessage(BufferPool pool) throws SshException {
+		return reader.readMessage(in, pool);
 	}
 
 	/**
@@ -205,7 +222,8 @@ public class SubsystemChannel {
 	}
 
 	class Reader {
-		synchronized byte[] readMessage(DataInputStream in) throws SshException {
+		synchronized ByteArrayReader readMessage(DataInputStream in,
+				BufferPool pool) throws SshException {
 
 			int len = -1;
 			try {
@@ -221,10 +239,10 @@ public class SubsystemChannel {
 							"Invalid message length in SFTP protocol [" + len
 									+ "]", SshException.PROTOCOL_VIOLATION);
 
-				byte[] msg = new byte[len];
-				in.readFully(msg);
+				byte[] msg = pool == null ? new byte[len] : pool.allocate(len);
+				in.readFully(msg, 0, len);
 
-				return msg;
+				return new ByteArrayReader(msg, 0, len);
 			} catch (OutOfMemoryError ex) {
 				throw new SshException(
 						"Invalid message length in SFTP protocol [" + len + "]",
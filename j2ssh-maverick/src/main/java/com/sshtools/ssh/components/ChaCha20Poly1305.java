@@ -0,0 +1,391 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh.components;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ * A pure Java implementation of the chacha20-poly1305@openssh.com
+ * authenticated cipher. It does not depend upon the JCE provider so performs
+ * well on hardware without AES instructions.
+ * </p>
+ * 
+ * <p>
+ * Two ChaCha20 keys are created from 64 bytes of key data; the second is used
+ * to encrypt the 4 byte packet length and the first to encrypt the rest of the
+ * packet and to create a one-time Poly1305 key. The sequence number of the
+ * packet is used as the nonce. The whole packet, including the encrypted
+ * length, is authenticated by a 16 byte Poly1305 tag and no separate MAC is
+ * used. All working state is reused so processing a packet does not allocate
+ * any memory.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class ChaCha20Poly1305 extends SshCipher {
+
+	static final int KEY_LENGTH = 32;
+	static final int TAG_LENGTH = 16;
+
+	int[] mainKey = new int[8];
+	int[] headerKey = new int[8];
+
+	byte[] keystream = new byte[64];
+
+	// Poly1305 state
+	int r0, r1, r2, r3, r4;
+	int s1, s2, s3, s4;
+	int h0, h1, h2, h3, h4;
+	int pad0, pad1, pad2, pad3;
+	byte[] block = new byte[16];
+	byte[] tag = new byte[TAG_LENGTH];
+
+	public ChaCha20Poly1305() {
+		super("chacha20-poly1305@openssh.com");
+	}
+
+	/**
+	 * The packet length is a multiple of 8 bytes, excluding the packet length
+	 * field itself.
+	 */
+	public int getBlockSize() {
+		return 8;
+	}
+
+	public void init(int mode, byte[] iv, byte[] keydata) throws IOException {
+
+		if (keydata.length < KEY_LENGTH * 2) {
+			throw new IOException(getAlgorithm() + " requires "
+					+ (KEY_LENGTH * 2) + " bytes of key data");
+		}
+
+		for (int i = 0; i < 8; i++) {
+			mainKey[i] = littleEndian(keydata, i * 4);
+			headerKey[i] = littleEndian(keydata, KEY_LENGTH + i * 4);
+		}
+	}
+
+	public boolean isAEAD() {
+		return true;
+	}
+
+	public int getTagLength() {
+		return TAG_LENGTH;
+	}
+
+	public void transform(byte[] src, int start, byte[] dest, int offset,
+			int len) throws IOException {
+		throw new IOException(getAlgorithm()
+				+ " can only be used to process complete packets");
+	}
+
+	public int getPacketLength(long sequenceNo, byte[] buf, int off)
+			throws IOException {
+		chacha(headerKey, sequenceNo, 0);
+		return (((buf[off] ^ keystream[0]) & 0xFF) << 24)
+				| (((buf[off + 1] ^ keystream[1]) & 0xFF) << 16)
+				| (((buf[off + 2] ^ keystream[2]) & 0xFF) << 8)
+				| ((buf[off + 3] ^ keystream[3]) & 0xFF);
+	}
+
+	public void encryptPacket(long sequenceNo, byte[] buf, int off, int len)
+			throws IOException {
+
+		xor(headerKey, sequenceNo, 0, buf, off, 4);
+
+		initPoly1305(sequenceNo);
+		xor(mainKey, sequenceNo, 1, buf, off + 4, len);
+
+		poly1305(buf, off, len + 4, buf, off + 4 + len);
+	}
+
+	public boolean decryptPacket(long sequenceNo, byte[] buf, int off,
+			int len) throws IOException {
+
+		initPoly1305(sequenceNo);
+		poly1305(buf, off, len + 4, tag, 0);
+
+		// Compare in constant time
+		int diff = 0;
+		for (int i = 0; i < TAG_LENGTH; i++) {
+			diff |= tag[i] ^ buf[off + 4 + len + i];
+		}
+
+		if (diff != 0) {
+			return false;
+		}
+
+		xor(headerKey, sequenceNo, 0, buf, off, 4);
+		xor(mainKey, sequenceNo, 1, buf, off + 4, len);
+
+		return true;
+	}
+
+	/**
+	 * XOR the ChaCha20 keystream starting at block <code>counter</code> with
+	 * the data.
+	 */
+	private void xor(int[] key, long nonce, long counter, byte[] buf, int off,
+			int len) {
+		while (len > 0) {
+			chacha(key, nonce, counter++);
+			int count = len < 64 ? len : 64;
+			for (int i = 0; i < count; i++) {
+				buf[off + i] ^= keystream[i];
+			}
+			off += count;
+			len -= count;
+		}
+	}
+
+	/**
+	 * Generate one 64 byte block of keystream. This is the original ChaCha20
+	 * with a 64 bit block counter and a 64 bit nonce, which OpenSSH sets to the
+	 * big-endian packet sequence number.
+	 */
+	private void chacha(int[] key, long nonce, long counter) {
+
+		int j0 = 0x61707865, j1 = 0x3320646e, j2 = 0x79622d32, j3 = 0x6b206574;
+		int j4 = key[0], j5 = key[1], j6 = key[2], j7 = key[3];
+		int j8 = key[4], j9 = key[5], j10 = key[6], j11 = key[7];
+		int j12 = (int) counter, j13 = (int) (counter >>> 32);
+		int j14 = Integer.reverseBytes((int) (nonce >>> 32));
+		int j15 = Integer.reverseBytes((int) nonce);
+
+		int x0 = j0, x1 = j1, x2 = j2, x3 = j3, x4 = j4, x5 = j5, x6 = j6, x7 = j7;
+		int x8 = j8, x9 = j9, x10 = j10, x11 = j11, x12 = j12, x13 = j13, x14 = j14, x15 = j15;
+
+		for (int i = 0; i < 10; i++) {
+			// Column round
+			x0 += x4; x12 = Integer.rotateLeft(x12 ^ x0, 16);
+			x8 += x12; x4 = Integer.rotateLeft(x4 ^ x8, 12);
+			x0 += x4; x12 = Integer.rotateLeft(x12 ^ x0, 8);
+			x8 += x12; x4 = Integer.rotateLeft(x4 ^ x8, 7);
+			x1 += x5; x13 = Integer.rotateLeft(x13 ^ x1, 16);
+			x9 += x13; x5 = Integer.rotateLeft(x5 ^ x9, 12);
+			x1 += x5; x13 = Integer.rotateLeft(x13 ^ x1, 8);
+			x9 += x13; x5 = Integer.rotateLeft(x5 ^ x9, 7);
+			x2 += x6; x14 = Integer.rotateLeft(x14 ^ x2, 16);
+			x10 += x14; x6 = Integer.rotateLeft(x6 ^ x10, 12);
+			x2 += x6; x14 = Integer.rotateLeft(x14 ^ x2, 8);
+			x10 += x14; x6 = Integer.rotateLeft(x6 ^ x10, 7);
+			x3 += x7; x15 = Integer.rotateLeft(x15 ^ x3, 16);
+			x11 += x15; x7 = Integer.rotateLeft(x7 ^ x11, 12);
+			x3 += x7; x15 = Integer.rotateLeft(x15 ^ x3, 8);
+			x11 += x15; x7 = Integer.rotateLeft(x7 ^ x11, 7);
+			// Diagonal round
+			x0 += x5; x15 = Integer.rotateLeft(x15 ^ x0, 16);
+			x10 += x15; x5 = Integer.rotateLeft(x5 ^ x10, 12);
+			x0 += x5; x15 = Integer.rotateLeft(x15 ^ x0, 8);
+			x10 += x15; x5 = Integer.rotateLeft(x5 ^ x10, 7);
+			x1 += x6; x12 = Integer.rotateLeft(x12 ^ x1, 16);
+			x11 += x12; x6 = Integer.rotateLeft(x6 ^ x11, 12);
+			x1 += x6; x12 = Integer.rotateLeft(x12 ^ x1, 8);
+			x11 += x12; x6 = Integer.rotateLeft(x6 ^ x11, 7);
+			x2 += x7; x13 = Integer.rotateLeft(x13 ^ x2, 16);
+			x8 += x13; x7 = Integer.rotateLeft(x7 ^ x8, 12);
+			x2 += x7; x13 = Integer.rotateLeft(x13 ^ x2, 8);
+			x8 += x13; x7 = Integer.rotateLeft(x7 ^ x8, 7);
+			x3 += x4; x14 = Integer.rotateLeft(x14 ^ x3, 16);
+			x9 += x14; x4 = Integer.rotateLeft(x4 ^ x9, 12);
+			x3 += x4; x14 = Integer.rotateLeft(x14 ^ x3, 8);
+			x9 += x14; x4 = Integer.rotateLeft(x4 ^ x9, 7);
+		}
+
+		writeLittleEndian(x0 + j0, keystream, 0);
+		writeLittleEndian(x1 + j1, keystream, 4);
+		writeLittleEndian(x2 + j2, keystream, 8);
+		writeLittleEndian(x3 + j3, keystream, 12);
+		writeLittleEndian(x4 + j4, keystream, 16);
+		writeLittleEndian(x5 + j5, keystream, 20);
+		writeLittleEndian(x6 + j6, keystream, 24);
+		writeLittleEndian(x7 + j7, keystream, 28);
+		writeLittleEndian(x8 + j8, keystream, 32);
+		writeLittleEndian(x9 + j9, keystream, 36);
+		writeLittleEndian(x10 + j10, keystream, 40);
+		writeLittleEndian(x11 + j11, keystream, 44);
+		writeLittleEndian(x12 + j12, keystream, 48);
+		writeLittleEndian(x13 + j13, keystream, 52);
+		writeLittleEndian(x14 + j14, keystream, 56);
+		writeLittleEndian(x15 + j15, keystream, 60);
+	}
+
+	/**
+	 * The one-time Poly1305 key is the first 32 bytes of the keystream for
+	 * block 0 of the main key.
+	 */
+	private void initPoly1305(long sequenceNo) {
+
+		chacha(mainKey, sequenceNo, 0);
+
+		r0 = littleEndian(keystream, 0) & 0x3ffffff;
+		r1 = (littleEndian(keystream, 3) >>> 2) & 0x3ffff03;
+		r2 = (littleEndian(keystream, 6) >>> 4) & 0x3ffc0ff;
+		r3 = (littleEndian(keystream, 9) >>> 6) & 0x3f03fff;
+		r4 = (littleEndian(keystream, 12) >>> 8) & 0x00fffff;
+
+		s1 = r1 * 5;
+		s2 = r2 * 5;
+		s3 = r3 * 5;
+		s4 = r4 * 5;
+
+		pad0 = littleEndian(keystream, 16);
+		pad1 = littleEndian(keystream, 20);
+		pad2 = littleEndian(keystream, 24);
+		pad3 = littleEndian(keystream, 28);
+	}
+
+	/**
+	 * Calculate the Poly1305 tag of the data using the key set by
+	 * {@link #initPoly1305(long)}.
+	 */
+	private void poly1305(byte[] buf, int off, int len, byte[] out, int outoff) {
+
+		h0 = h1 = h2 = h3 = h4 = 0;
+
+		while (len >= 16) {
+			polyBlock(buf, off, 1 << 24);
+			off += 16;
+			len -= 16;
+		}
+
+		if (len > 0) {
+			// Pad the final block with a single 1 bit then zeros
+			System.arraycopy(buf, off, block, 0, len);
+			block[len] = 1;
+			for (int i = len + 1; i < 16; i++) {
+				block[i] = 0;
+			}
+			polyBlock(block, 0, 0);
+		}
+
+		// Fully carry h
+		int c = h1 >>> 26;
+		h1 &= 0x3ffffff;
+		h2 += c;
+		c = h2 >>> 26;
+		h2 &= 0x3ffffff;
+		h3 += c;
+		c = h3 >>> 26;
+		h3 &= 0x3ffffff;
+		h4 += c;
+		c = h4 >>> 26;
+		h4 &= 0x3ffffff;
+		h0 += c * 5;
+		c = h0 >>> 26;
+		h0 &= 0x3ffffff;
+		h1 += c;
+
+		// Compute h - p and select it if it did not underflow
+		int g0 = h0 + 5;
+		c = g0 >>> 26;
+		g0 &= 0x3ffffff;
+		int g1 = h1 + c;
+		c = g1 >>> 26;
+		g1 &= 0x3ffffff;
+		int g2 = h2 + c;
+		c = g2 >>> 26;
+		g2 &= 0x3ffffff;
+		int g3 = h3 + c;
+		c = g3 >>> 26;
+		g3 &= 0x3ffffff;
+		int g4 = h4 + c - (1 << 26);
+
+		int mask = (g4 >>> 31) - 1;
+		g0 &= mask;
+		g1 &= mask;
+		g2 &= mask;
+		g3 &= mask;
+		g4 &= mask;
+		mask = ~mask;
+		h0 = (h0 & mask) | g0;
+		h1 = (h1 & mask) | g1;
+		h2 = (h2 & mask) | g2;
+		h3 = (h3 & mask) | g3;
+		h4 = (h4 & mask) | g4;
+
+		// h = h % 2^128 + pad
+		int t0 = h0 | (h1 << 26);
+		int t1 = (h1 >>> 6) | (h2 << 20);
+		int t2 = (h2 >>> 12) | (h3 << 14);
+		int t3 = (h3 >>> 18) | (h4 << 8);
+
+		long f = (t0 & 0xFFFFFFFFL) + (pad0 & 0xFFFFFFFFL);
+		writeLittleEndian((int) f, out, outoff);
+		f = (t1 & 0xFFFFFFFFL) + (pad1 & 0xFFFFFFFFL) + (f >>> 32);
+		writeLittleEndian((int) f, out, outoff + 4);
+		f = (t2 & 0xFFFFFFFFL) + (pad2 & 0xFFFFFFFFL) + (f >>> 32);
+		writeLittleEndian((int) f, out, outoff + 8);
+		f = (t3 & 0xFFFFFFFFL) + (pad3 & 0xFFFFFFFFL) + (f >>> 32);
+		writeLittleEndian((int) f, out, outoff + 12);
+	}
+
+	private void polyBlock(byte[] m, int off, int hibit) {
+
+		h0 += littleEndian(m, off) & 0x3ffffff;
+		h1 += (littleEndian(m, off + 3) >>> 2) & 0x3ffffff;
+		h2 += (littleEndian(m, off + 6) >>> 4) & 0x3ffffff;
+		h3 += (littleEndian(m, off + 9) >>> 6) & 0x3ffffff;
+		h4 += (littleEndian(m, off + 12) >>> 8) | hibit;
+
+		long d0 = (long) h0 * r0 + (long) h1 * s4 + (long) h2 * s3
+				+ (long) h3 * s2 + (long) h4 * s1;
+		long d1 = (long) h0 * r1 + (long) h1 * r0 + (long) h2 * s4
+				+ (long) h3 * s3 + (long) h4 * s2;
+		long d2 = (long) h0 * r2 + (long) h1 * r1 + (long) h2 * r0
+				+ (long) h3 * s4 + (long) h4 * s3;
+		long d3 = (long) h0 * r3 + (long) h1 * r2 + (long) h2 * r1
+				+ (long) h3 * r0 + (long) h4 * s4;
+		long d4 = (long) h0 * r4 + (long) h1 * r3 + (long) h2 * r2
+				+ (long) h3 * r1 + (long) h4 * r0;
+
+		long c = d0 >>> 26;
+		h0 = (int) d0 & 0x3ffffff;
+		d1 += c;
+		c = d1 >>> 26;
+		h1 = (int) d1 & 0x3ffffff;
+		d2 += c;
+		c = d2 >>> 26;
+		h2 = (int) d2 & 0x3ffffff;
+		d3 += c;
+		c = d3 >>> 26;
+		h3 = (int) d3 & 0x3ffffff;
+		d4 += c;
+		c = d4 >>> 26;
+		h4 = (int) d4 & 0x3ffffff;
+		h0 += (int) c * 5;
+		h1 += h0 >>> 26;
+		h0 &= 0x3ffffff;
+	}
+
+	private static int littleEndian(byte[] buf, int off) {
+		return (buf[off] & 0xFF) | ((buf[off + 1] & 0xFF) << 8)
+				| ((buf[off + 2] & 0xFF) << 16) | ((buf[off + 3] & 0xFF) << 24);
+	}
+
+	private static void writeLittleEndian(int v, byte[] buf, int off) {
+		buf[off] = (byte) v;
+		buf[off + 1] = (byte) (v >>> 8);
+		buf[off + 2] = (byte) (v >>> 16);
+		buf[off + 3] = (byte) (v >>> 24);
+	}
+}
@@ -102,4 +102,83 @@ public abstract class SshCipher {
 	 */
 	public abstract void transform(byte[] src, int start, byte[] dest,
 			int offset, int len) throws IOException;
+
+	/**
+	 * Does this cipher provide authenticated encryption? An AEAD cipher
+	 * protects the integrity of each packet itself so no separate
+	 * {@link SshHmac} is used with it and packets must be processed with
+	 * {@link #encryptPacket(long, byte[], int, int)} and
+	 * {@link #decryptPacket(long, byte[], int, int)} instead of
+	 * {@link #transform(byte[], int, byte[], int, int)}.
+	 * 
+	 * @return <code>true</code> if this is an AEAD cipher
+	 */
+	public boolean isAEAD() {
+		return false;
+	}
+
+	/**
+	 * Get the length of the authentication tag appended to each packet by an
+	 * AEAD cipher.
+	 * 
+	 * @return the tag length in bytes
+	 */
+	public int getTagLength() {
+		return 0;
+	}
+
+	/**
+	 * Get the length of a packet encrypted with an AEAD cipher. The 4 byte
+	 * packet length at <code>off</code> is returned without modifying the
+	 * buffer; ciphers that encrypt the packet length decrypt a copy of it.
+	 * 
+	 * @param sequenceNo
+	 *            the sequence number of the packet
+	 * @param buf
+	 * @param off
+	 * @return the packet length
+	 * @throws IOException
+	 */
+	public int getPacketLength(long sequenceNo, byte[] buf, int off)
+			throws IOException {
+		return ((buf[off] & 0xFF) << 24) | ((buf[off + 1] & 0xFF) << 16)
+				| ((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF);
+	}
+
+	/**
+	 * Encrypt a packet with an AEAD cipher. The 4 byte packet length at
+	 * <code>off</code> is authenticated as additional data, the
+	 * <code>len</code> bytes that follow it are encrypted in place and the
+	 * authentication tag is written directly after them.
+	 * 
+	 * @param sequenceNo
+	 *            the sequence number of the packet
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @throws IOException
+	 */
+	public void encryptPacket(long sequenceNo, byte[] buf, int off, int len)
+			throws IOException {
+		throw new IOException(algorithm + " is not an AEAD cipher");
+	}
+
+	/**
+	 * Decrypt a packet with an AEAD cipher. The 4 byte packet length at
+	 * <code>off</code> is authenticated as additional data and the
+	 * <code>len</code> bytes that follow it are decrypted in place once the
+	 * authentication tag that follows them has been verified.
+	 * 
+	 * @param sequenceNo
+	 *            the sequence number of the packet
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return <code>false</code> if the packet failed authentication
+	 * @throws IOException
+	 */
+	public boolean decryptPacket(long sequenceNo, byte[] buf, int off, int len)
+			throws IOException {
+		throw new IOException(algorithm + " is not an AEAD cipher");
+	}
 }
@@ -21,6 +21,7 @@
 package com.sshtools.ssh.components.jce;
 
 import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
 import com.sshtools.ssh.SshException;
@@ -41,6 +42,10 @@ public abstract class AbstractHmac implements SshHmac {
 	protected int macLength;
 	protected String jceAlgorithm;
 
+	// Reused for every packet so that generating a mac does not allocate
+	byte[] sequenceBytes = new byte[4];
+	byte[] result;
+
 	public AbstractHmac(String jceAlgorithm, int macLength) {
 		this(jceAlgorithm, macLength, macLength);
 	}
@@ -54,7 +59,19 @@ public abstract class AbstractHmac implements SshHmac {
 	public void generate(long sequenceNo, byte[] data, int offset, int len,
 			byte[] output, int start) {
 
-		byte[] sequenceBytes = new byte[4];
+		byte[] tmp = calculate(sequenceNo, data, offset, len);
+
+		System.arraycopy(tmp, 0, output, start, macLength);
+
+	}
+
+	/**
+	 * Calculate the full mac into the reusable result buffer. Subclasses may
+	 * create the {@link Mac} in their own init method so the buffer is sized
+	 * on first use.
+	 */
+	private byte[] calculate(long sequenceNo, byte[] data, int offset, int len) {
+
 		sequenceBytes[0] = (byte) (sequenceNo >> 24);
 		sequenceBytes[1] = (byte) (sequenceNo >> 16);
 		sequenceBytes[2] = (byte) (sequenceNo >> 8);
@@ -62,10 +79,17 @@ public abstract class AbstractHmac implements SshHmac {
 		mac.update(sequenceBytes);
 		mac.update(data, offset, len);
 
-		byte[] tmp = mac.doFinal();
+		if (result == null || result.length != mac.getMacLength()) {
+			result = new byte[mac.getMacLength()];
+		}
 
-		System.arraycopy(tmp, 0, output, start, macLength);
+		try {
+			mac.doFinal(result, 0);
+		} catch (ShortBufferException ex) {
+			throw new IllegalStateException(ex.getMessage());
+		}
 
+		return result;
 	}
 
 	public void update(byte[] b) {
@@ -106,16 +130,14 @@ public abstract class AbstractHmac implements SshHmac {
 	public boolean verify(long sequenceNo, byte[] data, int start, int len,
 			byte[] mac, int offset) {
 
-		int length = getMacLength();
-		byte[] generated = new byte[length];
-
-		generate(sequenceNo, data, start, len, generated, 0);
+		byte[] generated = calculate(sequenceNo, data, start, len);
 
-		for (int i = 0; i < generated.length; i++) {
-			if (mac[i + offset] != generated[i])
-				return false;
+		// Compare in constant time
+		int diff = 0;
+		for (int i = 0; i < macLength; i++) {
+			diff |= mac[i + offset] ^ generated[i];
 		}
-		return true;
+		return diff == 0;
 	}
 
 }
@@ -27,6 +27,7 @@ import java.security.NoSuchAlgorithmException;
 
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -46,6 +47,7 @@ public class AbstractJCECipher extends SshCipher {
 	String spec;
 	String keyspec;
 	int keylength;
+	byte[] scratch;
 
 	/**
 	 * 
@@ -84,8 +86,22 @@ public class AbstractJCECipher extends SshCipher {
 	public void transform(byte[] buf, int start, byte[] output, int off, int len)
 			throws java.io.IOException {
 		if (len > 0) {
-			byte[] tmp = cipher.update(buf, start, len);
-			System.arraycopy(tmp, 0, output, off, len);
+			try {
+				if (buf == output) {
+					// Providers copy the input when it overlaps the output so
+					// transform through a reusable buffer instead
+					if (scratch == null || scratch.length < len) {
+						scratch = new byte[len];
+					}
+					cipher.update(buf, start, len, scratch, 0);
+					System.arraycopy(scratch, 0, output, off, len);
+				} else {
+					cipher.update(buf, start, len, output, off);
+				}
+			} catch (ShortBufferException ex) {
+				throw new IOException("Output buffer too small for "
+						+ len + " bytes");
+			}
 		}
 	}
 
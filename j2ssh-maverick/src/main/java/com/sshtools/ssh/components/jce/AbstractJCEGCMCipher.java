@@ -0,0 +1,136 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh.components.jce;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * <p>
+ * An abstract base class for the AES-GCM authenticated encryption ciphers
+ * defined by OpenSSH. The 4 byte packet length is sent in the clear and
+ * authenticated as additional data; the remainder of the packet is encrypted
+ * and followed by a 16 byte authentication tag. The 12 byte nonce is taken
+ * from the key exchange and its low 8 bytes are incremented for every packet.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class AbstractJCEGCMCipher extends AbstractJCECipher {
+
+	static final int TAG_LENGTH = 16;
+	static final int NONCE_LENGTH = 12;
+
+	SecretKeySpec key;
+	byte[] nonce = new byte[NONCE_LENGTH];
+
+	public AbstractJCEGCMCipher(String spec, String keyspec, int keylength,
+			String algorithm) throws IOException {
+		super(spec, keyspec, keylength, algorithm);
+	}
+
+	public void init(int mode, byte[] iv, byte[] keydata) throws IOException {
+
+		byte[] actualKey = new byte[keylength];
+		System.arraycopy(keydata, 0, actualKey, 0, actualKey.length);
+		key = new SecretKeySpec(actualKey, keyspec);
+
+		System.arraycopy(iv, 0, nonce, 0, NONCE_LENGTH);
+
+		// Make sure the provider accepts the key and nonce now rather than on
+		// the first packet. Providers refuse to encrypt twice with the same
+		// nonce so this check is always made in decrypt mode.
+		initCipher(Cipher.DECRYPT_MODE);
+	}
+
+	public int getBlockSize() {
+		return 16;
+	}
+
+	public boolean isAEAD() {
+		return true;
+	}
+
+	public int getTagLength() {
+		return TAG_LENGTH;
+	}
+
+	public void transform(byte[] buf, int start, byte[] output, int off,
+			int len) throws IOException {
+		throw new IOException(getAlgorithm()
+				+ " can only be used to process complete packets");
+	}
+
+	public void encryptPacket(long sequenceNo, byte[] buf, int off, int len)
+			throws IOException {
+		try {
+			initCipher(Cipher.ENCRYPT_MODE);
+			cipher.updateAAD(buf, off, 4);
+			cipher.doFinal(buf, off + 4, len, buf, off + 4);
+		} catch (GeneralSecurityException ex) {
+			throw new IOException("Failed to encrypt packet: "
+					+ ex.getMessage());
+		} finally {
+			incrementNonce();
+		}
+	}
+
+	public boolean decryptPacket(long sequenceNo, byte[] buf, int off,
+			int len) throws IOException {
+		try {
+			initCipher(Cipher.DECRYPT_MODE);
+			cipher.updateAAD(buf, off, 4);
+			cipher.doFinal(buf, off + 4, len + TAG_LENGTH, buf, off + 4);
+			return true;
+		} catch (BadPaddingException ex) {
+			// Thrown by the provider when the tag does not match
+			return false;
+		} catch (GeneralSecurityException ex) {
+			throw new IOException("Failed to decrypt packet: "
+					+ ex.getMessage());
+		} finally {
+			incrementNonce();
+		}
+	}
+
+	private void initCipher(int opmode) throws IOException {
+		try {
+			cipher.init(opmode, key,
+					new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+		} catch (GeneralSecurityException ex) {
+			throw new IOException("Invalid key or nonce: " + ex.getMessage());
+		}
+	}
+
+	private void incrementNonce() {
+		// The invocation counter is the last 8 bytes of the nonce
+		for (int i = NONCE_LENGTH - 1; i >= 4; i--) {
+			if (++nonce[i] != 0) {
+				break;
+			}
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh.components.jce;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.ShortBufferException;
+
+/**
+ * <p>
+ * A counter mode cipher that generates its keystream ahead of time. The
+ * keystream of a CTR cipher does not depend upon the data so a background
+ * thread fills a ring buffer with keystream whilst the connection is busy
+ * elsewhere; transforming a packet is then a simple XOR with the buffered
+ * keystream. The same buffer serves encryption and decryption.
+ * </p>
+ * 
+ * <p>
+ * The background work is performed by a small shared pool of daemon threads
+ * so connections do not each need a thread of their own. If the keystream is
+ * consumed faster than it can be generated the caller waits for it, so there
+ * is no benefit on a machine with a single core.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class AbstractPrecomputedCtrCipher extends AbstractJCECipher {
+
+	static final int RING_SIZE = 131072;
+	static final int CHUNK_SIZE = 8192;
+
+	static ExecutorService generators;
+
+	byte[] ring = new byte[RING_SIZE];
+	byte[] zeros = new byte[CHUNK_SIZE];
+
+	volatile long produced = 0;
+	volatile long consumed = 0;
+	volatile IOException lastError;
+
+	AtomicBoolean scheduled = new AtomicBoolean();
+	Object lock = new Object();
+
+	Runnable generator = new Runnable() {
+		public void run() {
+			do {
+				generate();
+				scheduled.set(false);
+				// Check again in case keystream was consumed after the
+				// last pass decided the ring was full
+			} while (hasSpace() && scheduled.compareAndSet(false, true));
+		}
+	};
+
+	public AbstractPrecomputedCtrCipher(String spec, String keyspec,
+			int keylength, String algorithm) throws IOException {
+		super(spec, keyspec, keylength, algorithm);
+	}
+
+	public void init(int mode, byte[] iv, byte[] keydata) throws IOException {
+		// The keystream is the same in both directions so always encrypt
+		super.init(ENCRYPT_MODE, iv, keydata);
+		produced = 0;
+		consumed = 0;
+	}
+
+	public void transform(byte[] buf, int start, byte[] output, int off,
+			int len) throws IOException {
+
+		while (len > 0) {
+
+			long available = produced - consumed;
+
+			if (available == 0) {
+				available = waitForKeystream();
+			}
+
+			int pos = (int) (consumed % RING_SIZE);
+			int count = (int) Math.min(Math.min(available, len), RING_SIZE
+					- pos);
+
+			for (int i = 0; i < count; i++) {
+				output[off + i] = (byte) (buf[start + i] ^ ring[pos + i]);
+			}
+
+			consumed += count;
+			start += count;
+			off += count;
+			len -= count;
+
+			if (produced - consumed < RING_SIZE / 2) {
+				schedule();
+			}
+		}
+	}
+
+	private long waitForKeystream() throws IOException {
+
+		schedule();
+
+		synchronized (lock) {
+			long available;
+			while ((available = produced - consumed) == 0) {
+				if (lastError != null) {
+					throw lastError;
+				}
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					throw new IOException(
+							"Interrupted whilst waiting for keystream");
+				}
+			}
+			return available;
+		}
+	}
+
+	boolean hasSpace() {
+		return lastError == null && produced - consumed < RING_SIZE;
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			getGenerators().execute(generator);
+		}
+	}
+
+	/**
+	 * Fill the free space in the ring with keystream, the keystream being the
+	 * encryption of zeros.
+	 */
+	void generate() {
+		try {
+			while (hasSpace()) {
+				int pos = (int) (produced % RING_SIZE);
+				int count = (int) Math.min(
+						Math.min(RING_SIZE - (produced - consumed),
+								RING_SIZE - pos), CHUNK_SIZE);
+
+				cipher.update(zeros, 0, count, ring, pos);
+				produced += count;
+
+				synchronized (lock) {
+					lock.notifyAll();
+				}
+			}
+		} catch (ShortBufferException ex) {
+			lastError = new IOException("Failed to generate keystream: "
+					+ ex.getMessage());
+		} catch (RuntimeException ex) {
+			lastError = new IOException("Failed to generate keystream: "
+					+ ex.getMessage());
+		} finally {
+			if (lastError != null) {
+				synchronized (lock) {
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+
+	static synchronized ExecutorService getGenerators() {
+		if (generators == null) {
+			int count = Math.max(1,
+					Runtime.getRuntime().availableProcessors() - 1);
+			generators = Executors.newFixedThreadPool(count,
+					new ThreadFactory() {
+						int num = 0;
+
+						public synchronized Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "CtrKeystream_" + (++num));
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return generators;
+	}
+}
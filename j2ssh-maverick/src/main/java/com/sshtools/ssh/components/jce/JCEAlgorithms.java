@@ -74,6 +74,9 @@ public interface JCEAlgorithms {
 	/** AES in counter clock mode 'AES/CTR/NoPadding' **/
 	public static final String JCE_AESCTRNOPADDING = "AES/CTR/NoPadding";
 
+	/** AES in Galois/Counter mode 'AES/GCM/NoPadding' **/
+	public static final String JCE_AESGCMNOPADDING = "AES/GCM/NoPadding";
+
 	/** 3DES in counter clock mode 'DESede/CTR/NoPadding' **/
 	public static final String JCE_3DESCTRNOPADDING = "DESede/CTR/NoPadding";
 
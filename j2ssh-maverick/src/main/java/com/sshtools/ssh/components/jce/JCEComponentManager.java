@@ -38,6 +38,7 @@ import java.security.interfaces.RSAPublicKey;
 
 import com.sshtools.logging.Log;
 import com.sshtools.ssh.SshException;
+import com.sshtools.ssh.components.ChaCha20Poly1305;
 import com.sshtools.ssh.components.ComponentFactory;
 import com.sshtools.ssh.components.ComponentManager;
 import com.sshtools.ssh.components.Digest;
@@ -345,6 +346,15 @@ public class JCEComponentManager extends ComponentManager implements
 			 hmacs.add("hmac-sha512@ssh.com", HmacSha512.class);
 		 }
 
+		if (testHMac("hmac-sha2-256-etm@openssh.com", HmacSha256ETM.class))
+			hmacs.add("hmac-sha2-256-etm@openssh.com", HmacSha256ETM.class);
+
+		if (testHMac("hmac-sha2-512-etm@openssh.com", HmacSha512ETM.class))
+			hmacs.add("hmac-sha2-512-etm@openssh.com", HmacSha512ETM.class);
+
+		if (testHMac("hmac-sha1-etm@openssh.com", HmacSha1ETM.class))
+			hmacs.add("hmac-sha1-etm@openssh.com", HmacSha1ETM.class);
+
 	}
 
 	protected void initializeKeyExchangeFactory(ComponentFactory keyexchange) {
@@ -431,8 +441,43 @@ public class JCEComponentManager extends ComponentManager implements
 		if (testJCECipher("aes256-ctr", AES256Ctr.class)) {
 			ciphers.add("aes256-ctr", AES256Ctr.class);
 		}
+
+		if (testJCECipher("aes128-gcm@openssh.com", AES128Gcm.class)) {
+			ciphers.add("aes128-gcm@openssh.com", AES128Gcm.class);
+		}
+
+		if (testJCECipher("aes256-gcm@openssh.com", AES256Gcm.class)) {
+			ciphers.add("aes256-gcm@openssh.com", AES256Gcm.class);
+		}
+
+		if (testJCECipher("chacha20-poly1305@openssh.com",
+				ChaCha20Poly1305.class)) {
+			ciphers.add("chacha20-poly1305@openssh.com",
+					ChaCha20Poly1305.class);
+		}
 	}
 	
+	/**
+	 * Replace the AES counter mode ciphers with implementations that generate
+	 * their keystream on a background thread, allowing a busy connection to
+	 * make use of a second core.
+	 * @param ciphers
+	 */
+	public void installPrecomputedCtrCiphers(ComponentFactory ciphers) {
+
+		if (testJCECipher("aes128-ctr", AES128CtrPrecomputed.class)) {
+			ciphers.add("aes128-ctr", AES128CtrPrecomputed.class);
+		}
+
+		if (testJCECipher("aes192-ctr", AES192CtrPrecomputed.class)) {
+			ciphers.add("aes192-ctr", AES192CtrPrecomputed.class);
+		}
+
+		if (testJCECipher("aes256-ctr", AES256CtrPrecomputed.class)) {
+			ciphers.add("aes256-ctr", AES256CtrPrecomputed.class);
+		}
+	}
+
 	/**
 	 * Install deprecated Counter-Block-Mode ciphers.
 	 * @param ciphers
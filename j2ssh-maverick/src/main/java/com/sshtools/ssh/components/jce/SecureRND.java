@@ -31,8 +31,15 @@ import com.sshtools.ssh.components.SshSecureRandomGenerator;
  */
 public class SecureRND implements SshSecureRandomGenerator {
 
+	static final int POOL_SIZE = 4096;
+
 	SecureRandom rnd;
 
+	// Random bytes are generated in bulk and handed out from this pool so
+	// that padding each packet does not allocate
+	byte[] pool = new byte[POOL_SIZE];
+	int poolPosition = POOL_SIZE;
+
 	public SecureRND() throws NoSuchAlgorithmException {
 		rnd = JCEProvider.getSecureRandom();
 	}
@@ -41,12 +48,21 @@ public class SecureRND implements SshSecureRandomGenerator {
 		rnd.nextBytes(bytes);
 	}
 
-	public void nextBytes(byte[] bytes, int off, int len) throws SshException {
+	public synchronized void nextBytes(byte[] bytes, int off, int len)
+			throws SshException {
 
 		try {
-			byte[] tmp = new byte[len];
-			rnd.nextBytes(tmp);
-			System.arraycopy(tmp, 0, bytes, off, len);
+			while (len > 0) {
+				if (poolPosition == pool.length) {
+					rnd.nextBytes(pool);
+					poolPosition = 0;
+				}
+				int count = Math.min(len, pool.length - poolPosition);
+				System.arraycopy(pool, poolPosition, bytes, off, count);
+				poolPosition += count;
+				off += count;
+				len -= count;
+			}
 		} catch (ArrayIndexOutOfBoundsException ex) {
 			throw new SshException("ArrayIndexOutOfBoundsException: Index "
 					+ off + " on actual array length " + bytes.length
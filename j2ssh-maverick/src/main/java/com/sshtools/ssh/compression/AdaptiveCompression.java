@@ -0,0 +1,59 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh.compression;
+
+/**
+ * <p>
+ * Optional interface for {@link SshCompression} implementations that can
+ * adapt to the data they are given and report what they achieve. The
+ * transport enables adaptive mode on compressors that implement it when
+ * adaptive compression is configured.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public interface AdaptiveCompression extends SshCompression {
+
+	/**
+	 * Enable or disable adaptive compression. When enabled the implementation
+	 * monitors the ratio it achieves and sends data that does not compress as
+	 * stored blocks, periodically probing to see whether compression has
+	 * become worthwhile again. This only affects a deflater.
+	 * 
+	 * @param adaptive
+	 */
+	public void setAdaptive(boolean adaptive);
+
+	/**
+	 * Get the ratio of compressed to uncompressed data processed so far; a
+	 * value of 1.0 means nothing has been saved.
+	 * 
+	 * @return double
+	 */
+	public double getCompressionRatio();
+
+	/**
+	 * Get the number of bytes saved by compression so far.
+	 * 
+	 * @return long
+	 */
+	public long getBytesSaved();
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh.compression;
+
+import java.io.IOException;
+
+import com.sshtools.util.ByteArrayWriter;
+
+/**
+ * <p>
+ * Optional interface for {@link SshCompression} implementations that can
+ * compress and uncompress straight into a buffer supplied by the transport,
+ * rather than returning a new array for every packet.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public interface BufferedCompression extends SshCompression {
+
+	/**
+	 * Compress a block of data, appending the compressed data to the writer
+	 * supplied. The data must not be held in the writer's own array.
+	 * 
+	 * @param data
+	 *            the data to compress
+	 * @param start
+	 *            the offset of the data to compress
+	 * @param len
+	 *            the length of the data
+	 * @param out
+	 *            the writer to receive the compressed data
+	 * @throws IOException
+	 */
+	public void compress(byte[] data, int start, int len, ByteArrayWriter out)
+			throws IOException;
+
+	/**
+	 * Uncompress a block of data, appending the uncompressed data to the
+	 * writer supplied.
+	 * 
+	 * @param data
+	 *            the data to uncompress
+	 * @param start
+	 *            the offset of the data to uncompress
+	 * @param len
+	 *            the length of the data
+	 * @param out
+	 *            the writer to receive the uncompressed data
+	 * @throws IOException
+	 */
+	public void uncompress(byte[] data, int start, int len, ByteArrayWriter out)
+			throws IOException;
+}
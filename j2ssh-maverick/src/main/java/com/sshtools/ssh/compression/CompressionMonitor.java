@@ -0,0 +1,164 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh.compression;
+
+/**
+ * <p>
+ * Tracks the ratio achieved by a compressor and, when adaptive compression is
+ * enabled, decides the level the compressor should use for its next packet.
+ * Data is sampled in blocks of {@link #SAMPLE_SIZE} bytes; when a sample
+ * shrinks by less than ten percent the monitor drops to level 0 so that data
+ * is sent as stored blocks, which keeps the stream valid without spending
+ * time searching for matches that are not there. After a probe interval the
+ * original level is tried again, and each probe that finds the data still
+ * incompressible doubles the interval up to {@link #MAXIMUM_PROBE_INTERVAL}.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class CompressionMonitor {
+
+	public static final int SAMPLE_SIZE = 65536;
+	public static final long MINIMUM_PROBE_INTERVAL = 1048576;
+	public static final long MAXIMUM_PROBE_INTERVAL = 67108864;
+
+	static final double POOR_RATIO = 0.9;
+
+	int level;
+	boolean adaptive = false;
+	boolean bypassing = false;
+	boolean probing = false;
+	long sampleIn;
+	long sampleOut;
+	long bypassed;
+	long probeInterval = MINIMUM_PROBE_INTERVAL;
+	long totalUncompressed;
+	long totalCompressed;
+
+	/**
+	 * Create a monitor for a compressor configured at the given level.
+	 * 
+	 * @param level
+	 */
+	public CompressionMonitor(int level) {
+		this.level = level;
+	}
+
+	public synchronized void setAdaptive(boolean adaptive) {
+		this.adaptive = adaptive;
+		if (!adaptive) {
+			bypassing = false;
+		}
+	}
+
+	public synchronized boolean isAdaptive() {
+		return adaptive;
+	}
+
+	/**
+	 * Is compression currently being bypassed because the data is not
+	 * compressing?
+	 * 
+	 * @return boolean
+	 */
+	public synchronized boolean isBypassing() {
+		return bypassing;
+	}
+
+	/**
+	 * Get the level the compressor should use for its next packet.
+	 * 
+	 * @return int
+	 */
+	public synchronized int getLevel() {
+		return bypassing ? 0 : level;
+	}
+
+	/**
+	 * Record the result of processing a packet.
+	 * 
+	 * @param uncompressed
+	 *            the size of the packet before compression
+	 * @param compressed
+	 *            the size of the packet after compression
+	 */
+	public synchronized void update(int uncompressed, int compressed) {
+		totalUncompressed += uncompressed;
+		totalCompressed += compressed;
+
+		if (!adaptive) {
+			return;
+		}
+
+		if (bypassing) {
+			bypassed += uncompressed;
+			if (bypassed >= probeInterval) {
+				bypassing = false;
+				probing = true;
+				sampleIn = 0;
+				sampleOut = 0;
+			}
+			return;
+		}
+
+		sampleIn += uncompressed;
+		sampleOut += compressed;
+
+		if (sampleIn >= SAMPLE_SIZE) {
+			if (sampleOut >= sampleIn * POOR_RATIO) {
+				// Back off further each time a probe finds the data is still
+				// not worth compressing
+				probeInterval = probing ? Math.min(probeInterval * 2,
+						MAXIMUM_PROBE_INTERVAL) : MINIMUM_PROBE_INTERVAL;
+				bypassing = true;
+				bypassed = 0;
+			} else {
+				probeInterval = MINIMUM_PROBE_INTERVAL;
+			}
+			probing = false;
+			sampleIn = 0;
+			sampleOut = 0;
+		}
+	}
+
+	/**
+	 * Get the ratio of compressed to uncompressed data seen so far; a value
+	 * of 1.0 means nothing has been saved.
+	 * 
+	 * @return double
+	 */
+	public synchronized double getCompressionRatio() {
+		if (totalUncompressed == 0) {
+			return 1.0;
+		}
+		return (double) totalCompressed / (double) totalUncompressed;
+	}
+
+	/**
+	 * Get the number of bytes compression has saved so far. This can be
+	 * negative when the data did not compress.
+	 * 
+	 * @return long
+	 */
+	public synchronized long getBytesSaved() {
+		return totalUncompressed - totalCompressed;
+	}
+}
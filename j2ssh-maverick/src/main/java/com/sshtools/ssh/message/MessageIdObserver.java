@@ -0,0 +1,61 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh.message;
+
+/**
+ * <p>
+ * A {@link MessageObserver} that wants a fixed set of message ids. Message
+ * stores index their messages by id, so a store can find the first message
+ * for one of these observers without scanning every message it holds.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class MessageIdObserver implements MessageObserver {
+
+	int[] ids;
+	boolean[] wanted = new boolean[256];
+
+	public MessageIdObserver(int... ids) {
+		this.ids = ids;
+		for (int i = 0; i < ids.length; i++) {
+			if (ids[i] < 0 || ids[i] > 255) {
+				throw new IllegalArgumentException("Invalid message id "
+						+ ids[i]);
+			}
+			wanted[ids[i]] = true;
+		}
+	}
+
+	/**
+	 * Get the message ids this observer wants.
+	 * 
+	 * @return int[]
+	 */
+	public int[] getMessageIds() {
+		return ids;
+	}
+
+	public boolean wantsNotification(Message msg) {
+		int id = msg.getMessageId();
+		return id >= 0 && id < wanted.length && wanted[id];
+	}
+}
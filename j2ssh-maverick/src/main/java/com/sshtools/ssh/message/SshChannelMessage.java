@@ -23,6 +23,7 @@ package com.sshtools.ssh.message;
 import java.io.IOException;
 
 import com.sshtools.ssh.SshException;
+import com.sshtools.util.BufferPool;
 
 /**
  * @author Lee David Painter
@@ -46,6 +47,16 @@ public class SshChannelMessage extends SshMessage {
 		}
 	}
 
+	public SshChannelMessage(byte[] msg, int len, BufferPool pool)
+			throws SshException {
+		super(msg, len, pool);
+		try {
+			this.channelid = (int) readInt();
+		} catch (IOException ex) {
+			throw new SshException(SshException.INTERNAL_ERROR, ex);
+		}
+	}
+
 	int getChannelId() {
 		return channelid;
 	}
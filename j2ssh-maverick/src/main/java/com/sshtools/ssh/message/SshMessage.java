@@ -20,6 +20,7 @@
  */
 package com.sshtools.ssh.message;
 
+import com.sshtools.util.BufferPool;
 import com.sshtools.util.ByteArrayReader;
 
 /**
@@ -32,6 +33,12 @@ public class SshMessage extends ByteArrayReader implements Message {
 	byte[] msg;
 	SshMessage next;
 	SshMessage previous;
+	// Links to messages with the same id in the message store
+	SshMessage nextById;
+	SshMessage previousById;
+	long sequence;
+	BufferPool pool;
+	int references;
 
 	// Private constrcutor for Linked List
 	SshMessage() {
@@ -47,8 +54,57 @@ public class SshMessage extends ByteArrayReader implements Message {
 		this.messageid = read();
 	}
 
+	/**
+	 * Create a message from the first <em>len</em> bytes of a buffer that was
+	 * drawn from a {@link BufferPool}. The message takes ownership of the
+	 * buffer and hands it back to the pool when the last reference is
+	 * released.
+	 * 
+	 * @param msg
+	 * @param len
+	 * @param pool
+	 *            the pool to return the buffer to, or <code>null</code> if the
+	 *            buffer is not pooled
+	 */
+	public SshMessage(byte[] msg, int len, BufferPool pool) {
+		super(msg, 0, len);
+		this.messageid = read();
+		this.pool = pool;
+		this.references = 1;
+	}
+
 	public int getMessageId() {
 		return messageid;
 	}
 
+	/**
+	 * Add a reference to the message so that its buffer is not returned to
+	 * the pool until a matching {@link #release()} call is made.
+	 */
+	public synchronized void retain() {
+		if (references > 0) {
+			references++;
+		}
+	}
+
+	/**
+	 * Release a reference to the message. Once all references are released
+	 * the underlying buffer is returned to the pool and the message contents
+	 * must no longer be accessed.
+	 */
+	public void release() {
+		byte[] tmp = null;
+		synchronized (this) {
+			if (pool == null || references == 0) {
+				return;
+			}
+			if (--references == 0) {
+				tmp = buf;
+			}
+		}
+		if (tmp != null) {
+			pool.release(tmp);
+		}
+	}
+
 }
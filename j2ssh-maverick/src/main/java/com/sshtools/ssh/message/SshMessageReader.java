@@ -21,6 +21,8 @@
 package com.sshtools.ssh.message;
 
 import com.sshtools.ssh.SshException;
+import com.sshtools.util.BufferPool;
+import com.sshtools.util.ByteArrayReader;
 
 /**
  * @author Lee David Painter
@@ -28,5 +30,39 @@ import com.sshtools.ssh.SshException;
 public interface SshMessageReader {
 	public byte[] nextMessage() throws SshException;
 
+	/**
+	 * Read the next message, drawing bulk data payloads from the pool
+	 * supplied. The returned reader spans exactly the message payload which
+	 * always starts at offset zero of its array; the array itself may be
+	 * larger than the payload.
+	 * 
+	 * @param pool
+	 *            the pool, or <code>null</code> to allocate every payload
+	 * @return ByteArrayReader
+	 * @throws SshException
+	 */
+	public ByteArrayReader nextMessage(BufferPool pool) throws SshException;
+
+	/**
+	 * Read the next message only if it has been received in full, without
+	 * blocking. Transport level messages are processed for as long as
+	 * complete packets are buffered.
+	 * 
+	 * @param pool
+	 * @return ByteArrayReader, or <code>null</code> if no complete message
+	 *         has been received
+	 * @throws SshException
+	 */
+	public ByteArrayReader nextAvailableMessage(BufferPool pool)
+			throws SshException;
+
 	public boolean isConnected();
+
+	/**
+	 * Does the reader hold data that has been read from the transport but not
+	 * yet returned as a message?
+	 * 
+	 * @return boolean
+	 */
+	public boolean hasBufferedData();
 }
@@ -21,11 +21,19 @@
 package com.sshtools.ssh.message;
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import com.sshtools.logging.Log;
+import com.sshtools.ssh.NonBlockingTransport;
 import com.sshtools.ssh.SshException;
 import com.sshtools.ssh.SshIOException;
+import com.sshtools.util.BufferPool;
+import com.sshtools.util.ByteArrayReader;
+import com.sshtools.util.Threads;
 
 /**
  * <p>
@@ -34,24 +42,35 @@ import com.sshtools.ssh.SshIOException;
  * one thread is allowed access at any one time, threads requiring a message
  * whilst another thread is blocking are queued to await notification of when
  * the reader is available. Since a message read by one thread may be destined
- * for another the router takes charge of this before notifying other queued
- * threads that the block is available. When they receive this notification they
- * first check their own message stores before requesting the block again.
+ * for another the router stores it and wakes only the threads waiting for it,
+ * and the blocking thread keeps reading until its own message arrives. The
+ * block is then handed to the longest waiting thread.
  * <p>
  * 
  * @author Lee David Painter
  */
 public abstract class SshMessageRouter {
 
-	private SshAbstractChannel[] channels;
+	// The channel table grows as channels are opened so that it is only as
+	// large as the connection needs; it is replaced rather than modified when
+	// growing so that messages can be routed without taking a lock
+	private volatile AtomicReferenceArray<SshAbstractChannel> channels;
+	private int maxChannels;
+	private int[] freeChannels;
+	private int freeCount = 0;
+	private int nextChannel = 0;
+	private Object channelLock = new Object();
 	SshMessageReader reader;
 	SshMessageStore global;
 	ThreadSynchronizer sync;
-	private int count = 0;
+	private volatile int count = 0;
 	boolean buffered;
 	MessagePump messagePump;
+	NonBlockingTransport nonBlockingTransport;
 	boolean isClosing = false;
-	Vector<SshAbstractChannel> activeChannels = new Vector<SshAbstractChannel>();
+	BufferPool pool;
+	ThreadFactory threadFactory = Threads.getDefaultThreadFactory();
+	ConcurrentHashMap<Integer, SshAbstractChannel> activeChannels = new ConcurrentHashMap<Integer, SshAbstractChannel>();
 	Vector<Runnable> shutdownHooks = new Vector<Runnable>();
 	boolean verbose = Boolean.valueOf(
 			System.getProperty("maverick.verbose", "false")).booleanValue();
@@ -60,7 +79,10 @@ public abstract class SshMessageRouter {
 			boolean buffered) {
 		this.reader = reader;
 		this.buffered = buffered;
-		this.channels = new SshAbstractChannel[maxChannels];
+		this.maxChannels = maxChannels;
+		this.channels = new AtomicReferenceArray<SshAbstractChannel>(Math.min(
+				maxChannels, 64));
+		this.freeChannels = new int[channels.length()];
 		this.global = new SshMessageStore(this, null, new MessageObserver() {
 			public boolean wantsNotification(Message msg) {
 				return false;
@@ -71,12 +93,44 @@ public abstract class SshMessageRouter {
 
 		if (buffered) {
 			messagePump = new MessagePump();
-			sync.blockingThread = messagePump;
-			// J2SE messagePump.setDaemon(true);
 		}
 
 	}
 
+	/**
+	 * Route messages from a {@link NonBlockingTransport} instead of
+	 * dedicating a message pump thread to this connection. Messages are read
+	 * and routed by the transport's worker threads whenever data is
+	 * available. This must be called before {@link #start()} and only has
+	 * an effect on a buffered router.
+	 * 
+	 * @param transport
+	 */
+	protected void setNonBlockingTransport(NonBlockingTransport transport) {
+		this.nonBlockingTransport = transport;
+	}
+
+	/**
+	 * Read channel data payloads into buffers from the pool supplied, which
+	 * are recycled once the data has been consumed. This must be called
+	 * before {@link #start()}.
+	 * 
+	 * @param pool
+	 */
+	protected void setBufferPool(BufferPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Set the factory from which the message pump thread is created. This must
+	 * be called before {@link #start()}.
+	 * 
+	 * @param threadFactory
+	 */
+	protected void setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
 	public void start() {
 		if (Log.isDebugEnabled()) {
 			if (verbose) {
@@ -84,6 +138,21 @@ public abstract class SshMessageRouter {
 			}
 		}
 		if (messagePump != null && !messagePump.isRunning()) {
+			if (nonBlockingTransport != null) {
+				messagePump.running = true;
+				nonBlockingTransport.setDataListener(new Runnable() {
+					public void run() {
+						messagePump.pumpAvailable();
+					}
+				});
+				if (Log.isDebugEnabled()) {
+					if (verbose) {
+						Log.debug(this,
+								"message pump attached to non-blocking transport");
+					}
+				}
+				return;
+			}
 			String prefix = "";
 			String sourceThread = Thread.currentThread().getName();
 			if (sourceThread.indexOf('-') > -1) {
@@ -92,13 +161,16 @@ public abstract class SshMessageRouter {
 				// retrieve an event Listener
 				// pass the event to the listener to process
 			}
-			messagePump
-					.setName(prefix + "MessagePump_" + messagePump.getName());
-			messagePump.start();
+			Thread thread = Threads.newThread(threadFactory, messagePump,
+					null, false);
+			thread.setName(prefix + "MessagePump_" + thread.getName());
+			messagePump.thread = thread;
+			sync.blockingThread = thread;
+			thread.start();
 			if (Log.isDebugEnabled()) {
 				if (verbose) {
 					Log.debug(this, "message pump started thread name:"
-							+ messagePump.getName());
+							+ thread.getName());
 				}
 			}
 		}
@@ -143,51 +215,86 @@ public abstract class SshMessageRouter {
 	}
 
 	public int getMaxChannels() {
-		return channels.length;
+		return maxChannels;
 	}
 
 	protected int allocateChannel(SshAbstractChannel channel) {
 
-		synchronized (channels) {
-			for (int i = 0; i < channels.length; i++) {
-				if (channels[i] == null) {
-					channels[i] = channel;
-					activeChannels.addElement(channel);
-					count++;
-					if (Log.isDebugEnabled()) {
-						Log.debug(this, "Allocated channel " + i);
-					}
-					return i;
+		synchronized (channelLock) {
+			int id;
+			if (freeCount > 0) {
+				// Reuse the most recently freed id
+				id = freeChannels[--freeCount];
+			} else if (nextChannel < maxChannels) {
+				id = nextChannel++;
+				if (id == channels.length()) {
+					growChannels();
 				}
+			} else {
+				return -1;
+			}
+
+			channels.set(id, channel);
+			activeChannels.put(new Integer(id), channel);
+			count++;
+			if (Log.isDebugEnabled()) {
+				Log.debug(this, "Allocated channel " + id);
 			}
-			return -1;
+			return id;
 		}
 	}
 
-	protected void freeChannel(SshAbstractChannel channel) {
-		synchronized (channels) {
+	/**
+	 * Double the size of the channel table, up to the channel limit. Must be
+	 * called whilst holding the channel lock.
+	 */
+	private void growChannels() {
+		AtomicReferenceArray<SshAbstractChannel> current = channels;
+		int size = (int) Math.min((long) current.length() * 2, maxChannels);
+		AtomicReferenceArray<SshAbstractChannel> tmp = new AtomicReferenceArray<SshAbstractChannel>(
+				size);
+		for (int i = 0; i < current.length(); i++) {
+			tmp.set(i, current.get(i));
+		}
+		int[] free = new int[size];
+		System.arraycopy(freeChannels, 0, free, 0, freeCount);
+		freeChannels = free;
+		channels = tmp;
+	}
 
-			if (channels[channel.getChannelId()] != null) {
-				if (channel.equals(channels[channel.getChannelId()])) {
-					channels[channel.getChannelId()] = null;
-					activeChannels.removeElement(channel);
-					count--;
-					if (Log.isDebugEnabled()) {
-						Log.debug(this,
-								"Freed channel " + channel.getChannelId());
-					}
+	protected void freeChannel(SshAbstractChannel channel) {
+		synchronized (channelLock) {
+
+			int id = channel.getChannelId();
+			if (id >= 0 && id < channels.length()
+					&& channels.compareAndSet(id, channel, null)) {
+				activeChannels.remove(new Integer(id));
+				freeChannels[freeCount++] = id;
+				count--;
+				if (Log.isDebugEnabled()) {
+					Log.debug(this, "Freed channel " + id);
 				}
 			}
 		}
 	}
 
 	protected SshAbstractChannel[] getActiveChannels() {
-		return (SshAbstractChannel[]) activeChannels
-				.toArray(new SshAbstractChannel[0]);
+		return (SshAbstractChannel[]) activeChannels.values().toArray(
+				new SshAbstractChannel[0]);
+	}
+
+	/**
+	 * Iterate the open channels without copying them. The iterator reflects
+	 * channels opened or closed whilst iterating on a best effort basis.
+	 * 
+	 * @return Iterator
+	 */
+	protected Iterator<SshAbstractChannel> iterateActiveChannels() {
+		return activeChannels.values().iterator();
 	}
 
 	protected int maximumChannels() {
-		return channels.length;
+		return maxChannels;
 	}
 
 	public int getChannelCount() {
@@ -216,41 +323,7 @@ public abstract class SshMessageRouter {
 			 * There are no messages for this caller. First check the buffered
 			 * state and look for possible errors from the buffer thread
 			 */
-			if (buffered && messagePump != null) {
-				if (Log.isDebugEnabled()) {
-					if (verbose) {
-						Log.debug(this, "waiting for messagePump lock");
-					}
-				}
-				synchronized (messagePump) {
-					if (!isClosing) {
-						if (messagePump.lastError != null) {
-							Throwable tmpEx = messagePump.lastError;
-							messagePump.lastError = null;
-							if (tmpEx instanceof SshException) {
-								if (Log.isDebugEnabled()) {
-									Log.debug(this,
-											"messagePump has SshException this will be caught by customer code");
-								}
-								throw (SshException) tmpEx;
-							} else if (tmpEx instanceof SshIOException) {
-								if (Log.isDebugEnabled()) {
-									Log.debug(this,
-											"messagePump has SshIOException this will be caught by customer code");
-								}
-								throw ((SshIOException) tmpEx)
-										.getRealException();
-							} else {
-								if (Log.isDebugEnabled()) {
-									Log.debug(this,
-											"messagePump has some other exception this will be caught by customer code");
-								}
-								throw new SshException(tmpEx);
-							}
-						}
-					}
-				}
-			}
+			checkMessagePump();
 
 			/**
 			 * Request a block on the message reader
@@ -263,12 +336,19 @@ public abstract class SshMessageRouter {
 							Log.debug(this, "block for message");
 						}
 					}
-					blockForMessage();
+					// Keep reading until our own message arrives, handing
+					// other threads their messages as they are read
+					do {
+						checkMessagePump();
+						blockForMessage();
+						holder.msg = store.hasMessage(observer);
+					} while (holder.msg == null
+							&& (timeout == 0 || System.currentTimeMillis()
+									- startTime < timeout));
 
 				} finally {
-					// Release the block so that other threads may block or
-					// return with the
-					// newly arrived message
+					// Release the block so that the next waiting thread may
+					// take it
 					sync.releaseBlock();
 				}
 			}
@@ -287,14 +367,60 @@ public abstract class SshMessageRouter {
 		return (SshMessage) holder.msg;
 	}
 
+	/**
+	 * Throw any error caught by the message pump to the caller.
+	 */
+	private void checkMessagePump() throws SshException {
+		if (buffered && messagePump != null) {
+			if (Log.isDebugEnabled()) {
+				if (verbose) {
+					Log.debug(this, "waiting for messagePump lock");
+				}
+			}
+			synchronized (messagePump) {
+				if (!isClosing) {
+					if (messagePump.lastError != null) {
+						Throwable tmpEx = messagePump.lastError;
+						messagePump.lastError = null;
+						if (tmpEx instanceof SshException) {
+							if (Log.isDebugEnabled()) {
+								Log.debug(this,
+										"messagePump has SshException this will be caught by customer code");
+							}
+							throw (SshException) tmpEx;
+						} else if (tmpEx instanceof SshIOException) {
+							if (Log.isDebugEnabled()) {
+								Log.debug(this,
+										"messagePump has SshIOException this will be caught by customer code");
+							}
+							throw ((SshIOException) tmpEx)
+									.getRealException();
+						} else {
+							if (Log.isDebugEnabled()) {
+								Log.debug(this,
+										"messagePump has some other exception this will be caught by customer code");
+							}
+							throw new SshException(tmpEx);
+						}
+					}
+				}
+			}
+		}
+	}
+
 	public boolean isBlockingThread(Thread thread) {
 		return sync.isBlockOwner(thread);
 	}
 
 	private void blockForMessage() throws SshException {
+		routeMessage(reader.nextMessage(pool));
+	}
+
+	private void routeMessage(ByteArrayReader payload) throws SshException {
 
-		// Read and create a message
-		SshMessage message = createMessage(reader.nextMessage());
+		// Create the message
+		SshMessage message = createMessage(payload.array(),
+				payload.available(), pool);
 		if (Log.isDebugEnabled()) {
 			if (verbose) {
 				Log.debug(this, "read next message");
@@ -303,7 +429,11 @@ public abstract class SshMessageRouter {
 		// Determine the destination channel (if any)
 		SshAbstractChannel destination = null;
 		if (message instanceof SshChannelMessage) {
-			destination = channels[((SshChannelMessage) message).getChannelId()];
+			int id = ((SshChannelMessage) message).getChannelId();
+			AtomicReferenceArray<SshAbstractChannel> table = channels;
+			if (id >= 0 && id < table.length()) {
+				destination = table.get(id);
+			}
 		}
 
 		// Call the destination so that they may process the message
@@ -318,6 +448,12 @@ public abstract class SshMessageRouter {
 					.getMessageStore();
 			// add new message to message stores linked list.
 			ms.addMessage(message);
+
+			// Wake only the threads waiting for this message
+			sync.messageStored(ms, message);
+		} else {
+			// Nothing holds the message now so its buffer can be reused
+			message.release();
 		}
 	}
 
@@ -337,6 +473,34 @@ public abstract class SshMessageRouter {
 	 */
 	protected abstract SshMessage createMessage(byte[] msg) throws SshException;
 
+	/**
+	 * <p>
+	 * Called by the message routing framework to create an {@link SshMessage}
+	 * from a payload that occupies the first <em>len</em> bytes of
+	 * <em>msg</em>. Implementations that support pooled buffers should create
+	 * the message with the pool so that the buffer is recycled when the
+	 * message is released; by default the payload is copied and the buffer
+	 * returned to the pool immediately.
+	 * </p>
+	 * 
+	 * @param msg
+	 * @param len
+	 * @param pool
+	 * @return the new message instance
+	 */
+	protected SshMessage createMessage(byte[] msg, int len, BufferPool pool)
+			throws SshException {
+		if (len == msg.length) {
+			return createMessage(msg);
+		}
+		byte[] tmp = new byte[len];
+		System.arraycopy(msg, 0, tmp, 0, len);
+		if (pool != null) {
+			pool.release(msg);
+		}
+		return createMessage(tmp);
+	}
+
 	/**
 	 * <p>
 	 * Called by the message routing framework so that the routing
@@ -354,10 +518,11 @@ public abstract class SshMessageRouter {
 	protected abstract boolean processGlobalMessage(SshMessage msg)
 			throws SshException;
 
-	class MessagePump extends Thread {
+	class MessagePump implements Runnable {
 
 		Throwable lastError;
 		boolean running = false;
+		Thread thread;
 
 		public void run() {
 
@@ -365,27 +530,7 @@ public abstract class SshMessageRouter {
 				running = true;
 
 				while (running) {
-
-					try {
-						blockForMessage();
-
-						// We have a message so release waiting threads
-						sync.releaseWaiting();
-
-					} catch (Throwable t) {
-
-						synchronized (MessagePump.this) {
-							// If were not closing then save this error
-							if (!isClosing) {
-								Log.info(
-										this,
-										"Message pump caught exception: "
-												+ t.getMessage());
-								lastError = t;
-							}
-							stopThread();
-						}
-					}
+					pumpMessage();
 				}
 
 				// Finally release the block as we exit
@@ -396,10 +541,71 @@ public abstract class SshMessageRouter {
 			}
 		}
 
+		/**
+		 * Route every message that can be read from the non-blocking
+		 * transport. Invoked by the transport's worker when data arrives.
+		 */
+		void pumpAvailable() {
+
+			// Only complete packets are read so the shared worker is never
+			// held waiting for this connection's data
+			while (running
+					&& (nonBlockingTransport.available() != 0 || reader
+							.hasBufferedData())) {
+				if (!pumpMessage(true)) {
+					break;
+				}
+			}
+
+			if (!running) {
+				sync.releaseBlock();
+				onThreadExit();
+			}
+		}
+
+		private void pumpMessage() {
+			pumpMessage(false);
+		}
+
+		/**
+		 * @return false if no complete message was available or the pump
+		 *         has stopped
+		 */
+		private boolean pumpMessage(boolean available) {
+			try {
+				// Waiting threads are woken as their messages are stored
+				if (!available) {
+					blockForMessage();
+				} else {
+					ByteArrayReader payload = reader.nextAvailableMessage(pool);
+					if (payload == null) {
+						return false;
+					}
+					routeMessage(payload);
+				}
+				return true;
+			} catch (Throwable t) {
+
+				synchronized (MessagePump.this) {
+					// If were not closing then save this error
+					if (!isClosing) {
+						Log.info(this,
+								"Message pump caught exception: "
+										+ t.getMessage());
+						lastError = t;
+					}
+					stopThread();
+				}
+				return false;
+			}
+		}
+
 		public void stopThread() {
 			running = false;
-			if (!Thread.currentThread().equals(this))
-				interrupt();
+			if (nonBlockingTransport != null)
+				nonBlockingTransport.setDataListener(null);
+			else if (thread != null && !Thread.currentThread().equals(thread))
+				thread.interrupt();
 		}
 
 		public boolean isRunning() {
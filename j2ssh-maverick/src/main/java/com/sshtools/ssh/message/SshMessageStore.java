@@ -31,7 +31,9 @@ import com.sshtools.ssh.SshException;
  * <p>
  * This class is the central storage location for channel messages; each channel
  * has its own message store and the message pump delivers them here where they
- * are stored in a lightweight linked list.
+ * are stored in a lightweight linked list. Each message is also linked into a
+ * list of the messages with the same id, so that a {@link MessageIdObserver}
+ * finds its next message without scanning the whole store.
  * </p>
  * 
  * @author Lee David Painter
@@ -43,6 +45,8 @@ public class SshMessageStore implements MessageStore {
 	SshMessageRouter manager;
 	boolean closed = false;
 	SshMessage header = new SshMessage();
+	SshMessage[] idHeaders = new SshMessage[256];
+	long sequence = 0;
 	int size = 0;
 	MessageObserver stickyMessageObserver;
 	boolean verbose = Boolean.valueOf(
@@ -109,6 +113,11 @@ public class SshMessageStore implements MessageStore {
 
 		e.previous.next = e.next;
 		e.next.previous = e.previous;
+		if (e.nextById != null) {
+			e.previousById.nextById = e.nextById;
+			e.nextById.previousById = e.previousById;
+			e.nextById = e.previousById = null;
+		}
 		size--;
 	}
 
@@ -121,6 +130,10 @@ public class SshMessageStore implements MessageStore {
 
 		synchronized (header) {
 
+			if (observer instanceof MessageIdObserver) {
+				return hasMessage((MessageIdObserver) observer);
+			}
+
 			// this would not seem to take account of header being null, or
 			// header.next.next being null, perhaps because these states are not
 			// possible? if so document, if not fix.
@@ -160,6 +173,32 @@ public class SshMessageStore implements MessageStore {
 		}
 	}
 
+	/**
+	 * Find the earliest message for an observer of a fixed set of ids by
+	 * checking only the first message of each id. Must be called whilst
+	 * holding the header lock.
+	 */
+	private Message hasMessage(MessageIdObserver observer) {
+
+		SshMessage found = null;
+		int[] ids = observer.getMessageIds();
+
+		for (int i = 0; i < ids.length; i++) {
+			SshMessage h = idHeaders[ids[i]];
+			if (h != null && h.nextById != h
+					&& (found == null || h.nextById.sequence < found.sequence)) {
+				found = h.nextById;
+			}
+		}
+
+		if (Log.isDebugEnabled()) {
+			if (verbose) {
+				Log.debug(this, found == null ? "no messages" : "found message");
+			}
+		}
+		return found;
+	}
+
 	public void close() {
 
 		synchronized (header) {
@@ -177,6 +216,21 @@ public class SshMessageStore implements MessageStore {
 			msg.previous.next = msg;
 			// change header
 			msg.next.previous = msg;
+
+			// and link it to the end of the list for its id
+			int id = msg.getMessageId();
+			if (id >= 0 && id < idHeaders.length) {
+				SshMessage h = idHeaders[id];
+				if (h == null) {
+					h = idHeaders[id] = new SshMessage();
+					h.nextById = h.previousById = h;
+				}
+				msg.nextById = h;
+				msg.previousById = h.previousById;
+				msg.previousById.nextById = msg;
+				h.previousById = msg;
+			}
+			msg.sequence = sequence++;
 			size++;
 		}
 	}
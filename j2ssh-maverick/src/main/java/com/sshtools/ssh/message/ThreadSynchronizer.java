@@ -20,15 +20,27 @@
  */
 package com.sshtools.ssh.message;
 
+import java.util.Vector;
+
 import com.sshtools.logging.Log;
 
 /**
+ * <p>
+ * Co-ordinates the threads reading messages from a connection. Only one thread
+ * at a time holds the block and reads from the transport; every other thread
+ * registers itself as waiting on its own message store. As the blocking thread
+ * stores each message it wakes only the threads waiting on that store whose
+ * observer wants the message, and when it releases the block it is handed
+ * directly to the longest waiting thread.
+ * </p>
+ * 
  * @author Lee David Painter
  */
 public class ThreadSynchronizer {
 
 	boolean isBlocking;
 	Thread blockingThread = null;
+	Vector<Waiter> waiters = new Vector<Waiter>();
 	boolean verbose = Boolean.valueOf(
 			System.getProperty("maverick.verbose", "false")).booleanValue();
 
@@ -45,6 +57,8 @@ public class ThreadSynchronizer {
 			return false;
 		}
 
+		Waiter waiter;
+
 		synchronized (ThreadSynchronizer.this) {
 
 			if (Log.isDebugEnabled()) {
@@ -59,38 +73,148 @@ public class ThreadSynchronizer {
 			if (canBlock) {
 				isBlocking = true;
 				blockingThread = Thread.currentThread();
-			} else {
-				if (Log.isDebugEnabled()) {
-					if (verbose) {
-						Log.debug(this, "can't block so wait");
-						Log.debug(this, "isBlocking:" + isBlocking);
-						Log.debug(this, "blockowner name:id{"
-								+ blockingThread.getName() + "}");
-						Log.debug(this, "currentthread name:id{"
-								+ Thread.currentThread().getName() + "}");
-					}
+				return true;
+			}
+
+			// A message may have been stored since we last looked; once we
+			// are registered the blocking thread will wake us for any others
+			holder.msg = store.hasMessage(observer);
+
+			if (holder.msg != null) {
+				return false;
+			}
+
+			if (Log.isDebugEnabled()) {
+				if (verbose) {
+					Log.debug(this, "can't block so wait");
+					Log.debug(this, "isBlocking:" + isBlocking);
+					Log.debug(this, "blockowner name:id{"
+							+ (blockingThread == null ? "none" : blockingThread
+									.getName()) + "}");
+					Log.debug(this, "currentthread name:id{"
+							+ Thread.currentThread().getName() + "}");
+				}
+			}
+
+			waiter = new Waiter(Thread.currentThread(), store, observer);
+			waiters.addElement(waiter);
+		}
+
+		int signal;
+		try {
+			// The timeout only guards against a lost wakeup
+			signal = waiter.await(1000);
+		} catch (InterruptedException ex) {
+			synchronized (ThreadSynchronizer.this) {
+				waiters.removeElement(waiter);
+				if (isBlockOwner(Thread.currentThread())) {
+					releaseBlock();
 				}
-				wait(1000);
 			}
-			return canBlock;
+			throw ex;
+		}
+
+		if (signal == Waiter.NONE) {
+			synchronized (ThreadSynchronizer.this) {
+				// We may have been signalled after the wait timed out
+				waiters.removeElement(waiter);
+				signal = waiter.signal;
+			}
 		}
+
+		if (signal == Waiter.BLOCK) {
+			// We were handed the block, though our message may have arrived
+			// first in which case the block is passed on
+			holder.msg = store.hasMessage(observer);
+			if (holder.msg == null) {
+				return true;
+			}
+			releaseBlock();
+			return false;
+		}
+
+		holder.msg = store.hasMessage(observer);
+		return false;
 	}
 
 	public synchronized boolean isBlockOwner(Thread thread) {
 		return blockingThread != null && blockingThread.equals(thread);
 	}
 
+	/**
+	 * Called by the blocking thread once a message has been added to a store.
+	 * Only the threads waiting on that store for this type of message are
+	 * woken.
+	 * 
+	 * @param store
+	 * @param msg
+	 */
+	public synchronized void messageStored(MessageStore store, Message msg) {
+		for (int i = 0; i < waiters.size(); i++) {
+			Waiter waiter = waiters.elementAt(i);
+			if (waiter.store == store && waiter.observer.wantsNotification(msg)) {
+				waiters.removeElementAt(i--);
+				waiter.signal(Waiter.MESSAGE);
+			}
+		}
+	}
+
 	public synchronized void releaseWaiting() {
-		notifyAll();
+		for (int i = 0; i < waiters.size(); i++) {
+			waiters.elementAt(i).signal(Waiter.MESSAGE);
+		}
+		waiters.removeAllElements();
 	}
 
 	public synchronized void releaseBlock() {
 		/**
-		 * Inform the waiting threads that they may take the connection
+		 * Hand the block to the longest waiting thread
 		 */
 		isBlocking = false;
 		blockingThread = null;
-		notifyAll();
+
+		if (waiters.size() > 0) {
+			Waiter next = waiters.elementAt(0);
+			waiters.removeElementAt(0);
+			isBlocking = true;
+			blockingThread = next.thread;
+			next.signal(Waiter.BLOCK);
+		}
+	}
+
+	static class Waiter {
+
+		static final int NONE = 0;
+		static final int MESSAGE = 1;
+		static final int BLOCK = 2;
+
+		Thread thread;
+		MessageStore store;
+		MessageObserver observer;
+		int signal = NONE;
+
+		Waiter(Thread thread, MessageStore store, MessageObserver observer) {
+			this.thread = thread;
+			this.store = store;
+			this.observer = observer;
+		}
+
+		synchronized int await(long timeout) throws InterruptedException {
+			if (signal == NONE) {
+				wait(timeout);
+			}
+			return signal;
+		}
+
+		/**
+		 * Wake the waiting thread; the signaller removes the waiter from the
+		 * list whilst holding the synchronizer lock, so a signalled thread
+		 * need not take it again.
+		 */
+		synchronized void signal(int signal) {
+			this.signal = signal;
+			notify();
+		}
 	}
 
 }
@@ -0,0 +1,256 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh2;
+
+import java.util.Enumeration;
+import java.util.Vector;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * <p>
+ * Statistics for every SSH2 transport in the JVM that has registered its own
+ * {@link TransportStats}. The figures of connections that have closed are
+ * retained so that the totals only ever increase.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class AggregateTransportStats implements TransportStatsMBean {
+
+	static AggregateTransportStats instance;
+
+	Vector<TransportStats> connections = new Vector<TransportStats>();
+	ObjectName objectName;
+
+	// Totals of closed connections
+	long bytesIn;
+	long bytesOut;
+	long packetsIn;
+	long packetsOut;
+	long rekeyCount;
+	long totalRekeyTime;
+	long cipherTime;
+	long macTime;
+	long compressionTime;
+	long stallTime;
+	long maxStallTime;
+	long backPressureTime;
+	long lastActivity;
+
+	volatile long lastRekeyDuration;
+	volatile long lastStallTime;
+
+	public static synchronized AggregateTransportStats getInstance() {
+		if (instance == null) {
+			instance = new AggregateTransportStats();
+		}
+		return instance;
+	}
+
+	synchronized void register(MBeanServer server) throws Exception {
+		if (objectName == null) {
+			ObjectName name = new ObjectName(
+					"com.sshtools:type=TransportStats,name=Aggregate");
+			server.registerMBean(new StandardMBean(this,
+					TransportStatsMBean.class), name);
+			objectName = name;
+		}
+	}
+
+	synchronized void add(TransportStats stats) {
+		connections.addElement(stats);
+	}
+
+	synchronized void remove(TransportStats stats) {
+		if (connections.removeElement(stats)) {
+			bytesIn += stats.getBytesIn();
+			bytesOut += stats.getBytesOut();
+			packetsIn += stats.getPacketsIn();
+			packetsOut += stats.getPacketsOut();
+			rekeyCount += stats.getRekeyCount();
+			totalRekeyTime += stats.getTotalRekeyTime();
+			cipherTime += stats.getCipherTime();
+			macTime += stats.getMacTime();
+			compressionTime += stats.getCompressionTime();
+			stallTime += stats.getKeyExchangeStallTime();
+			maxStallTime = Math.max(maxStallTime,
+					stats.getMaxKeyExchangeStallTime());
+			backPressureTime += stats.getBackPressureTime();
+			lastActivity = Math.max(lastActivity, stats.getLastActivity());
+		}
+	}
+
+	public synchronized long getBytesIn() {
+		long total = bytesIn;
+		for (Enumeration<TransportStats> e = connections.elements(); e
+				.hasMoreElements();) {
+			total += e.nextElement().getBytesIn();
+		}
+		return total;
+	}
+
+	public synchronized long getBytesOut() {
+		long total = bytesOut;
+		for (Enumeration<TransportStats> e = connections.elements(); e
+				.hasMoreElements();) {
+			total += e.nextElement().getBytesOut();
+		}
+		return total;
+	}
+
+	public synchronized long getPacketsIn() {
+		long total = packetsIn;
+		for (Enumeration<TransportStats> e = connections.elements(); e
+				.hasMoreElements();) {
+			total += e.nextElement().getPacketsIn();
+		}
+		return total;
+	}
+
+	public synchronized long getPacketsOut() {
+		long total = packetsOut;
+		for (Enumeration<TransportStats> e = connections.elements(); e
+				.hasMoreElements();) {
+			total += e.nextElement().getPacketsOut();
+		}
+		return total;
+	}
+
+	public synchronized long getRekeyCount() {
+		long total = rekeyCount;
+		for (Enumeration<TransportStats> e = connections.elements(); e
+				.hasMoreElements();) {
+			total += e.nextElement().getRekeyCount();
+		}
+		return total;
+	}
+
+	/**
+	 * How long the most recent key exchange on any connection took.
+	 */
+	public long getLastRekeyDuration() {
+		return lastRekeyDuration;
+	}
+
+	public synchronized long getTotalRekeyTime() {
+		long total = totalRekeyTime;
+		for (Enumeration<TransportStats> e = connections.elements(); e
+				.hasMoreElements();) {
+			total += e.nextElement().getTotalRekeyTime();
+		}
+		return total;
+	}
+
+	public synchronized long getCipherTime() {
+		long total = cipherTime;
+		for (Enumeration<TransportStats> e = connections.elements(); e
+				.hasMoreElements();) {
+			total += e.nextElement().getCipherTime();
+		}
+		return total;
+	}
+
+	public synchronized long getMacTime() {
+		long total = macTime;
+		for (Enumeration<TransportStats> e = connections.elements(); e
+				.hasMoreElements();) {
+			total += e.nextElement().getMacTime();
+		}
+		return total;
+	}
+
+	public synchronized long getCompressionTime() {
+		long total = compressionTime;
+		for (Enumeration<TransportStats> e = connections.elements(); e
+				.hasMoreElements();) {
+			total += e.nextElement().getCompressionTime();
+		}
+		return total;
+	}
+
+	public synchronized int getKeyExchangeQueueDepth() {
+		int total = 0;
+		for (Enumeration<TransportStats> e = connections.elements(); e
+				.hasMoreElements();) {
+			total += e.nextElement().getKeyExchangeQueueDepth();
+		}
+		return total;
+	}
+
+	public synchronized long getKeyExchangeStallTime() {
+		long total = stallTime;
+		for (Enumeration<TransportStats> e = connections.elements(); e
+				.hasMoreElements();) {
+			total += e.nextElement().getKeyExchangeStallTime();
+		}
+		return total;
+	}
+
+	/**
+	 * How long the most recent stalled key exchange on any connection held
+	 * back outgoing messages.
+	 */
+	public long getLastKeyExchangeStallTime() {
+		return lastStallTime;
+	}
+
+	public synchronized long getMaxKeyExchangeStallTime() {
+		long max = maxStallTime;
+		for (Enumeration<TransportStats> e = connections.elements(); e
+				.hasMoreElements();) {
+			max = Math.max(max, e.nextElement().getMaxKeyExchangeStallTime());
+		}
+		return max;
+	}
+
+	public synchronized int getKeyExchangeQueueBytes() {
+		int total = 0;
+		for (Enumeration<TransportStats> e = connections.elements(); e
+				.hasMoreElements();) {
+			total += e.nextElement().getKeyExchangeQueueBytes();
+		}
+		return total;
+	}
+
+	public synchronized long getBackPressureTime() {
+		long total = backPressureTime;
+		for (Enumeration<TransportStats> e = connections.elements(); e
+				.hasMoreElements();) {
+			total += e.nextElement().getBackPressureTime();
+		}
+		return total;
+	}
+
+	/**
+	 * The time of the most recent activity on any connection.
+	 */
+	public synchronized long getLastActivity() {
+		long last = lastActivity;
+		for (Enumeration<TransportStats> e = connections.elements(); e
+				.hasMoreElements();) {
+			last = Math.max(last, e.nextElement().getLastActivity());
+		}
+		return last;
+	}
+}
@@ -22,17 +22,22 @@ package com.sshtools.ssh2;
 
 import java.io.IOException;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import com.sshtools.logging.Log;
 import com.sshtools.ssh.ChannelOpenException;
+import com.sshtools.ssh.NonBlockingTransport;
 import com.sshtools.ssh.SshContext;
 import com.sshtools.ssh.SshException;
-import com.sshtools.ssh.message.Message;
+import com.sshtools.ssh.SshFuture;
+import com.sshtools.ssh.message.MessageIdObserver;
 import com.sshtools.ssh.message.MessageObserver;
 import com.sshtools.ssh.message.SshAbstractChannel;
 import com.sshtools.ssh.message.SshChannelMessage;
 import com.sshtools.ssh.message.SshMessage;
 import com.sshtools.ssh.message.SshMessageRouter;
+import com.sshtools.util.BufferPool;
 import com.sshtools.util.ByteArrayWriter;
 
 /**
@@ -55,31 +60,20 @@ class ConnectionProtocol extends SshMessageRouter implements
 
 	Object channelOpenLock = new Object();
 
-	final static MessageObserver CHANNEL_OPEN_RESPONSE_MESSAGES = new MessageObserver() {
-		public boolean wantsNotification(Message msg) {
-			switch (msg.getMessageId()) {
-			case SSH_MSG_CHANNEL_OPEN_CONFIRMATION:
-			case SSH_MSG_CHANNEL_OPEN_FAILURE:
-				return true;
-			default:
-				return false;
-			}
-		}
-	};
+	// Replies to global requests arrive in the order the requests were sent;
+	// this holds an entry for each request awaiting a reply so that replies
+	// to asynchronous requests can be completed as they are routed
+	ConcurrentLinkedQueue<PendingRequest> pendingGlobalRequests = new ConcurrentLinkedQueue<PendingRequest>();
+	Object globalRequestLock = new Object();
 
-	final static MessageObserver GLOBAL_REQUEST_MESSAGES = new MessageObserver() {
-		public boolean wantsNotification(Message msg) {
-			switch (msg.getMessageId()) {
-			case SSH_MSG_REQUEST_SUCCESS:
-			case SSH_MSG_REQUEST_FAILURE:
-				return true;
-			default:
-				return false;
-			}
-		}
-	};
+	final static MessageObserver CHANNEL_OPEN_RESPONSE_MESSAGES = new MessageIdObserver(
+			SSH_MSG_CHANNEL_OPEN_CONFIRMATION, SSH_MSG_CHANNEL_OPEN_FAILURE);
+
+	final static MessageObserver GLOBAL_REQUEST_MESSAGES = new MessageIdObserver(
+			SSH_MSG_REQUEST_SUCCESS, SSH_MSG_REQUEST_FAILURE);
 
 	TransportProtocol transport;
+	OutboundScheduler scheduler;
 	Hashtable<String, ChannelFactory> channelfactories = new Hashtable<String, ChannelFactory>();
 	Hashtable<String, GlobalRequestHandler> requesthandlers = new Hashtable<String, GlobalRequestHandler>();
 
@@ -88,6 +82,22 @@ class ConnectionProtocol extends SshMessageRouter implements
 		super(transport, context.getChannelLimit(), buffered);
 		this.transport = transport;
 		this.transport.addListener(this);
+		setThreadFactory(transport.transportContext.getThreadFactory());
+		if (transport.transportContext.isChannelDataPooling()) {
+			setBufferPool(BufferPool.getInstance());
+		}
+		if (transport.transportContext.isChannelScheduling()) {
+			scheduler = new OutboundScheduler(transport);
+		}
+		if (buffered
+				&& transport.getProvider() instanceof NonBlockingTransport) {
+			NonBlockingTransport provider = (NonBlockingTransport) transport
+					.getProvider();
+			// Packets are only decoded once they have fully arrived
+			provider.ensureBufferCapacity(transport.transportContext
+					.getMaximumPacketLength());
+			setNonBlockingTransport(provider);
+		}
 	}
 
 	public void addChannelFactory(ChannelFactory factory) throws SshException {
@@ -140,7 +150,14 @@ class ConnectionProtocol extends SshMessageRouter implements
 						"Sending SSH_MSG_GLOBAL_REQUEST request="
 								+ request.getName() + " wantreply=" + wantreply);
 			}
-			sendMessage(msg.toByteArray(), true);
+
+			if (wantreply) {
+				// The reply is left in the global message store for us
+				sendGlobalRequest(msg.toByteArray(), new PendingRequest(null,
+						null));
+			} else {
+				sendMessage(msg.toByteArray(), true);
+			}
 
 			if (wantreply) {
 				SshMessage reply = getGlobalMessages().nextMessage(
@@ -178,6 +195,59 @@ class ConnectionProtocol extends SshMessageRouter implements
 		}
 	}
 
+	/**
+	 * Send a global request that wants a reply. The future is completed with
+	 * the result when the reply is routed, and the request's data is replaced
+	 * with any data returned.
+	 * 
+	 * @param request
+	 * @return a future completed with <code>true</code> if the request
+	 *         succeeded
+	 */
+	public SshFuture<Boolean> sendGlobalRequestAsync(GlobalRequest request) {
+
+		SshFuture<Boolean> future = new SshFuture<Boolean>();
+		ByteArrayWriter msg = new ByteArrayWriter();
+		try {
+			msg.write(SSH_MSG_GLOBAL_REQUEST);
+			msg.writeString(request.getName());
+			msg.writeBoolean(true);
+			if (request.getData() != null) {
+				msg.write(request.getData());
+			}
+
+			if (Log.isDebugEnabled()) {
+				Log.debug(this, "Sending SSH_MSG_GLOBAL_REQUEST request="
+						+ request.getName() + " wantreply=true async=true");
+			}
+			sendGlobalRequest(msg.toByteArray(), new PendingRequest(future,
+					request));
+		} catch (Throwable t) {
+			future.setFailure(t);
+		} finally {
+			try {
+				msg.close();
+			} catch (IOException e) {
+			}
+		}
+		return future;
+	}
+
+	private void sendGlobalRequest(byte[] msg, PendingRequest pending)
+			throws SshException {
+		// Queue and send together so that the queue is in the order the
+		// requests are sent; the routing thread never takes this lock
+		synchronized (globalRequestLock) {
+			pendingGlobalRequests.add(pending);
+			try {
+				sendMessage(msg, true);
+			} catch (SshException ex) {
+				pendingGlobalRequests.remove(pending);
+				throw ex;
+			}
+		}
+	}
+
 	public void closeChannel(Ssh2Channel channel) {
 		freeChannel(channel);
 	}
@@ -194,62 +264,210 @@ class ConnectionProtocol extends SshMessageRouter implements
 	public void openChannel(Ssh2Channel channel, byte[] requestdata,
 			long timeout) throws SshException, ChannelOpenException {
 
-		// synchronized(channelOpenLock) {
+		allocateChannel(channel, requestdata);
+
 		try {
+			SshMessage reply = channel.getMessageStore().nextMessage(
+					CHANNEL_OPEN_RESPONSE_MESSAGES, timeout);
 
-			int channelid = allocateChannel(channel);
+			completeChannelOpen(channel, reply);
+		} catch (IOException ex) {
+			throw new SshException(ex, SshException.INTERNAL_ERROR);
+		}
+	}
 
-			if (channelid == -1) {
-				if (Log.isDebugEnabled()) {
-					Log.debug(this,
-							"Maximum number of channels exceeded! active="
-									+ getChannelCount() + " channels="
-									+ getMaxChannels());
+	/**
+	 * Open a batch of channels. Every SSH_MSG_CHANNEL_OPEN is sent before any
+	 * reply is waited for, so the batch costs a single round trip rather than
+	 * one per channel. The replies are collected in whatever order they
+	 * arrive.
+	 * 
+	 * @param channels
+	 *            the channels to open
+	 * @param requestdata
+	 *            the request data for each channel, or <code>null</code> if
+	 *            none of the channels have any
+	 * @param timeout
+	 *            the time to wait for all of the replies, or zero to wait
+	 *            indefinitely
+	 * @return the reason each channel failed to open, with a
+	 *         <code>null</code> element for each channel that opened
+	 * @throws SshException
+	 *             if the connection failed or the timeout expired, in which
+	 *             case any channels that did open have been closed
+	 */
+	public ChannelOpenException[] openChannels(Ssh2Channel[] channels,
+			byte[][] requestdata, long timeout) throws SshException {
+
+		ChannelOpenException[] results = new ChannelOpenException[channels.length];
+		boolean[] sent = new boolean[channels.length];
+		boolean[] opened = new boolean[channels.length];
+
+		if (Log.isDebugEnabled()) {
+			Log.debug(this, "Opening " + channels.length + " channels");
+		}
+
+		try {
+			for (int i = 0; i < channels.length; i++) {
+				try {
+					allocateChannel(channels[i], requestdata == null ? null
+							: requestdata[i]);
+					sent[i] = true;
+				} catch (ChannelOpenException ex) {
+					results[i] = ex;
 				}
-				throw new ChannelOpenException(
-						"Maximum number of channels exceeded",
-						ChannelOpenException.RESOURCE_SHORTAGE);
 			}
 
-			channel.init(this, channelid);
-			/*
-			 * byte SSH_MSG_CHANNEL_OPEN string channel type in US-ASCII only
-			 * uint32 sender channel uint32 initial window size uint32 maximum
-			 * packet size .... channel type specific data follows
-			 */
-			ByteArrayWriter msg = new ByteArrayWriter();
-
-			try {
-				msg.write(SSH_MSG_CHANNEL_OPEN);
-				msg.writeString(channel.getName());
-				msg.writeInt(channel.getChannelId());
-				msg.writeInt(channel.getWindowSize());
-				msg.writeInt(channel.getPacketSize());
-				if (requestdata != null) {
-					msg.write(requestdata);
+			long deadline = System.currentTimeMillis() + timeout;
 
+			// Each reply is routed to its own channel's store by whichever
+			// thread reads it, so waiting on the channels in turn does not
+			// hold up replies that arrive out of order
+			for (int i = 0; i < channels.length; i++) {
+				if (!sent[i]) {
+					continue;
 				}
 
-				if (Log.isDebugEnabled()) {
-					Log.debug(
-							this,
-							"Sending SSH_MSG_CHANNEL_OPEN type="
-									+ channel.getName() + " id="
-									+ channel.getChannelId() + " window="
-									+ channel.getWindowSize() + " packet="
-									+ channel.getPacketSize());
+				long remaining = 0;
+				if (timeout > 0) {
+					remaining = Math.max(1,
+							deadline - System.currentTimeMillis());
 				}
-				transport.sendMessage(msg.toByteArray(), true);
 
-			} finally {
 				try {
-					msg.close();
-				} catch (IOException e) {
+					SshMessage reply = channels[i].getMessageStore()
+							.nextMessage(CHANNEL_OPEN_RESPONSE_MESSAGES,
+									remaining);
+					sent[i] = false;
+					completeChannelOpen(channels[i], reply);
+					opened[i] = true;
+				} catch (ChannelOpenException ex) {
+					// The failure has already freed the channel
+					results[i] = ex;
+				} catch (IOException ex) {
+					throw new SshException(ex, SshException.INTERNAL_ERROR);
 				}
 			}
+		} catch (SshException ex) {
+			abandonChannels(channels, sent, opened);
+			throw ex;
+		} catch (RuntimeException ex) {
+			abandonChannels(channels, sent, opened);
+			throw ex;
+		}
 
-			SshMessage reply = channel.getMessageStore().nextMessage(
-					CHANNEL_OPEN_RESPONSE_MESSAGES, timeout);
+		return results;
+	}
+
+	/**
+	 * Release the channels of a batch that could not be completed, closing
+	 * those that opened. Those still waiting for a reply keep their ids until
+	 * it arrives, since freeing them now would let the next channel opened
+	 * receive it.
+	 */
+	private void abandonChannels(Ssh2Channel[] channels, boolean[] sent,
+			boolean[] opened) {
+		for (int i = 0; i < channels.length; i++) {
+			if (opened[i]) {
+				channels[i].close();
+			} else if (sent[i]) {
+				channels[i].abandonOpen();
+			}
+		}
+	}
+
+	/**
+	 * Open a channel without waiting for the reply. The future is completed
+	 * when the reply is routed to the channel.
+	 * 
+	 * @param channel
+	 * @param requestdata
+	 * @return a future completed with the open channel
+	 */
+	public SshFuture<Ssh2Channel> openChannelAsync(Ssh2Channel channel,
+			byte[] requestdata) {
+
+		SshFuture<Ssh2Channel> future = new SshFuture<Ssh2Channel>();
+		channel.openFuture = future;
+		try {
+			allocateChannel(channel, requestdata);
+		} catch (Throwable t) {
+			channel.openFuture = null;
+			future.setFailure(t);
+		}
+		return future;
+	}
+
+	private void allocateChannel(Ssh2Channel channel, byte[] requestdata)
+			throws SshException, ChannelOpenException {
+
+		int channelid = allocateChannel(channel);
+
+		if (channelid == -1) {
+			if (Log.isDebugEnabled()) {
+				Log.debug(this, "Maximum number of channels exceeded! active="
+						+ getChannelCount() + " channels=" + getMaxChannels());
+			}
+			throw new ChannelOpenException(
+					"Maximum number of channels exceeded",
+					ChannelOpenException.RESOURCE_SHORTAGE);
+		}
+
+		channel.init(this, channelid);
+		/*
+		 * byte SSH_MSG_CHANNEL_OPEN string channel type in US-ASCII only uint32
+		 * sender channel uint32 initial window size uint32 maximum packet size
+		 * .... channel type specific data follows
+		 */
+		ByteArrayWriter msg = new ByteArrayWriter();
+
+		try {
+			msg.write(SSH_MSG_CHANNEL_OPEN);
+			msg.writeString(channel.getName());
+			msg.writeInt(channel.getChannelId());
+			msg.writeInt(channel.getWindowSize());
+			msg.writeInt(channel.getPacketSize());
+			if (requestdata != null) {
+				msg.write(requestdata);
+
+			}
+
+			if (Log.isDebugEnabled()) {
+				Log.debug(this,
+						"Sending SSH_MSG_CHANNEL_OPEN type="
+								+ channel.getName() + " id="
+								+ channel.getChannelId() + " window="
+								+ channel.getWindowSize() + " packet="
+								+ channel.getPacketSize());
+			}
+			transport.sendMessage(msg.toByteArray(), true);
+
+		} catch (IOException ex) {
+			freeChannel(channel);
+			throw new SshException(ex, SshException.INTERNAL_ERROR);
+		} catch (SshException ex) {
+			freeChannel(channel);
+			throw ex;
+		} finally {
+			try {
+				msg.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Process the reply to a channel open request.
+	 * 
+	 * @param channel
+	 * @param reply
+	 * @throws SshException
+	 * @throws ChannelOpenException
+	 *             if the remote side refused to open the channel
+	 */
+	void completeChannelOpen(Ssh2Channel channel, SshMessage reply)
+			throws SshException, ChannelOpenException {
+		try {
 
 			if (reply.getMessageId() == SSH_MSG_CHANNEL_OPEN_FAILURE) {
 
@@ -279,12 +497,9 @@ class ConnectionProtocol extends SshMessageRouter implements
 
 			channel.open(remoteid, remotewindow, remotepacket, responsedata);
 
-			return;
 		} catch (IOException ex) {
 			throw new SshException(ex, SshException.INTERNAL_ERROR);
 		}
-		// }
-
 	}
 
 	protected void sendMessage(byte[] msg, boolean isActivity)
@@ -292,6 +507,29 @@ class ConnectionProtocol extends SshMessageRouter implements
 		transport.sendMessage(msg, isActivity);
 	}
 
+	protected void sendMessage(MessageWriter msg, boolean isActivity)
+			throws SshException {
+		transport.sendMessage(msg, isActivity);
+	}
+
+	protected void sendMessages(MessageWriter msg, int count,
+			boolean isActivity) throws SshException {
+		transport.sendMessages(msg, count, isActivity);
+	}
+
+	/**
+	 * Send a batch of a channel's data messages, sharing the connection with
+	 * the other channels by priority and weight when scheduling is enabled.
+	 */
+	void sendChannelData(Ssh2Channel channel, MessageWriter msg, int count,
+			long bytes, int packetsize) throws SshException {
+		if (scheduler == null) {
+			transport.sendMessages(msg, count, true);
+		} else {
+			scheduler.send(channel.sendQueue, msg, count, bytes, packetsize);
+		}
+	}
+
 	protected SshMessage createMessage(byte[] msg) throws SshException {
 
 		if (msg[0] >= 91 && msg[0] <= 100) {
@@ -300,6 +538,21 @@ class ConnectionProtocol extends SshMessageRouter implements
 		return new SshMessage(msg);
 	}
 
+	protected SshMessage createMessage(byte[] msg, int len, BufferPool pool)
+			throws SshException {
+
+		// Only channel data is pooled; it is released once the channel has
+		// consumed it, everything else is left to the garbage collector
+		if (msg[0] == Ssh2Channel.SSH_MSG_CHANNEL_DATA
+				|| msg[0] == Ssh2Channel.SSH_MSG_CHANNEL_EXTENDED_DATA) {
+			return new SshChannelMessage(msg, len, pool);
+		}
+		if (msg[0] >= 91 && msg[0] <= 100) {
+			return new SshChannelMessage(msg, len, null);
+		}
+		return new SshMessage(msg, len, null);
+	}
+
 	protected boolean processGlobalMessage(SshMessage message)
 			throws SshException {
 
@@ -352,6 +605,34 @@ class ConnectionProtocol extends SshMessageRouter implements
 				processGlobalRequest(requestname, wantreply, requestdata);
 				return true;
 			}
+			case SSH_MSG_REQUEST_SUCCESS:
+			case SSH_MSG_REQUEST_FAILURE: {
+
+				PendingRequest pending = pendingGlobalRequests.poll();
+				if (pending == null || pending.future == null) {
+					// A synchronous request is waiting on the message store
+					return false;
+				}
+
+				boolean success = message.getMessageId() == SSH_MSG_REQUEST_SUCCESS;
+				if (Log.isDebugEnabled()) {
+					Log.debug(this, "Received "
+							+ (success ? "SSH_MSG_REQUEST_SUCCESS"
+									: "SSH_MSG_REQUEST_FAILURE")
+							+ " request=" + pending.request.getName());
+				}
+				if (success) {
+					if (message.available() > 0) {
+						byte[] tmp = new byte[message.available()];
+						message.read(tmp);
+						pending.request.setData(tmp);
+					} else {
+						pending.request.setData(null);
+					}
+				}
+				pending.future.setResult(Boolean.valueOf(success));
+				return true;
+			}
 			default:
 				return false;
 			}
@@ -511,17 +792,59 @@ class ConnectionProtocol extends SshMessageRouter implements
 			transport.disconnect(TransportProtocol.CONNECTION_LOST, "Exiting");
 		}
 		stop();
+		failPendingOperations("The message pump has exited");
 	}
 
 	public void onDisconnect(String msg, int reason) {
+		failPendingOperations(msg);
+	}
+
+	/**
+	 * Fail every asynchronous operation still waiting for a reply. A local
+	 * disconnect does not notify the transport listeners, so this is also
+	 * called when the message pump exits.
+	 */
+	private void failPendingOperations(String msg) {
 
+		SshException ex = new SshException("The connection was closed: "
+				+ msg, SshException.CONNECTION_CLOSED);
+
+		PendingRequest pending;
+		while ((pending = pendingGlobalRequests.poll()) != null) {
+			if (pending.future != null) {
+				pending.future.setFailure(ex);
+			}
+		}
+
+		for (Iterator<SshAbstractChannel> it = iterateActiveChannels(); it
+				.hasNext();) {
+			SshAbstractChannel channel = it.next();
+			if (channel instanceof Ssh2Channel) {
+				((Ssh2Channel) channel).failPendingRequests(ex);
+				((Ssh2Channel) channel).completeSubscriptions(ex);
+			}
+		}
+	}
+
+	/**
+	 * A request awaiting a reply. Synchronous requests are queued without a
+	 * future so that their replies are left in the message store.
+	 */
+	static class PendingRequest {
+		SshFuture<Boolean> future;
+		GlobalRequest request;
+
+		PendingRequest(SshFuture<Boolean> future, GlobalRequest request) {
+			this.future = future;
+			this.request = request;
+		}
 	}
 
 	public void onIdle(long lastActivity) {
 
-		SshAbstractChannel[] channels = getActiveChannels();
-		for (int i = 0; i < channels.length; i++)
-			channels[i].idle();
+		for (Iterator<SshAbstractChannel> it = iterateActiveChannels(); it
+				.hasNext();)
+			it.next().idle();
 
 	}
 }
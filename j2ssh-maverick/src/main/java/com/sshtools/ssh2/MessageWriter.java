@@ -0,0 +1,54 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh2;
+
+import java.io.IOException;
+
+import com.sshtools.util.ByteArrayWriter;
+
+/**
+ * <p>
+ * Writes an SSH message payload directly into the outgoing packet buffer of
+ * the {@link TransportProtocol}. The transport reserves space for the packet
+ * header before calling {@link #writeMessage(ByteArrayWriter)} and then pads,
+ * signs and encrypts the packet in place, so callers that send bulk data
+ * avoid building an intermediate byte array for every message.
+ * </p>
+ * 
+ * <p>
+ * Implementations are called whilst the transport holds its send lock and
+ * must only write the message id and payload; they should not retain a
+ * reference to the buffer once the call returns.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public interface MessageWriter {
+
+	/**
+	 * Write the message id and payload into the buffer.
+	 * 
+	 * @param buf
+	 *            the transport's outgoing packet buffer
+	 * @throws IOException
+	 */
+	public void writeMessage(ByteArrayWriter buf) throws IOException;
+}
@@ -0,0 +1,293 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh2;
+
+import java.util.LinkedList;
+import java.util.Vector;
+
+import com.sshtools.ssh.SshException;
+
+/**
+ * <p>
+ * Shares the outgoing side of a connection between its channels. Channel data
+ * is queued per channel and sent by deficit round robin: each time a channel
+ * with data waiting comes round it may send up to its weight in quanta, so a
+ * channel with weight 2 gets twice the bandwidth of a channel with weight 1
+ * whilst both have data to send. Channels with a higher priority are always
+ * served first, with channels of the same priority sharing by weight.
+ * </p>
+ * 
+ * <p>
+ * There is no sending thread; whichever writer finds the scheduler idle sends
+ * for every channel until its own data is gone and then hands over to another
+ * waiting writer. Data is passed to the transport a quantum at a time and
+ * other messages, such as window adjustments and channel requests, are let in
+ * between each one, so they never wait behind more than one quantum of bulk
+ * data.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+class OutboundScheduler {
+
+	/** The number of bytes a channel may send per round for each unit of weight */
+	static final int QUANTUM = 32768;
+
+	// The most times the sender yields to let other messages in
+	static final int MAX_YIELDS = 100;
+
+	TransportProtocol transport;
+	Vector<Flow> active = new Vector<Flow>();
+	boolean sending = false;
+
+	OutboundScheduler(TransportProtocol transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Send a batch of messages for a channel, blocking until they have all
+	 * been passed to the transport.
+	 * 
+	 * @param flow
+	 *            the channel's queue
+	 * @param writer
+	 *            writes each message in turn
+	 * @param count
+	 *            the number of messages
+	 * @param bytes
+	 *            the number of data bytes in the batch
+	 * @param packetsize
+	 *            the most data bytes in each message
+	 * @throws SshException
+	 */
+	void send(Flow flow, MessageWriter writer, int count, long bytes,
+			int packetsize) throws SshException {
+
+		Batch batch = new Batch(writer, count, bytes, packetsize);
+		boolean interrupted = false;
+
+		synchronized (this) {
+			flow.queue.addLast(batch);
+			if (!flow.active) {
+				flow.active = true;
+				active.addElement(flow);
+			}
+
+			while (!batch.done && sending) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Leaving now would let the batch be sent after the
+					// caller has reused its buffers
+					interrupted = true;
+				}
+			}
+
+			if (!batch.done) {
+				sending = true;
+			}
+		}
+
+		if (!batch.done) {
+			sendUntilDone(batch);
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (batch.error instanceof SshException) {
+			throw (SshException) batch.error;
+		} else if (batch.error instanceof RuntimeException) {
+			throw (RuntimeException) batch.error;
+		} else if (batch.error instanceof Error) {
+			throw (Error) batch.error;
+		}
+	}
+
+	private void sendUntilDone(Batch own) {
+
+		try {
+			while (true) {
+
+				Flow flow;
+				Batch batch;
+				int count = 0;
+				long bytes = 0;
+
+				synchronized (this) {
+					if (own.done) {
+						return;
+					}
+
+					flow = next();
+					batch = flow.queue.getFirst();
+
+					if (!flow.visited) {
+						flow.visited = true;
+						flow.deficit += (long) flow.weight * QUANTUM;
+					}
+
+					long remaining = batch.bytes;
+					while (count < batch.count) {
+						long len = Math.min(batch.packetsize, remaining);
+						if (bytes + len > flow.deficit) {
+							break;
+						}
+						bytes += len;
+						remaining -= len;
+						count++;
+					}
+
+					if (count == 0) {
+						endTurn(flow);
+						continue;
+					}
+
+					if (!batch.started) {
+						batch.started = true;
+						flow.recordQueueTime(System.nanoTime()
+								- batch.queuedAt);
+					}
+				}
+
+				for (int i = 0; i < MAX_YIELDS
+						&& transport.waitingSenders.get() > 0; i++) {
+					Thread.yield();
+				}
+
+				// A failing writer must not leave its batch at the head of the
+				// queue; the failure is thrown to the batch's own caller
+				Throwable error = null;
+				try {
+					transport.sendMessages(batch.writer, count, true);
+				} catch (Throwable t) {
+					error = t;
+				}
+
+				synchronized (this) {
+					flow.deficit -= bytes;
+					batch.count -= count;
+					batch.bytes -= bytes;
+
+					if (batch.count == 0 || error != null) {
+						batch.error = error;
+						batch.done = true;
+						flow.queue.removeFirst();
+						notifyAll();
+					}
+
+					if (flow.queue.isEmpty()) {
+						flow.deficit = 0;
+						flow.active = false;
+						flow.visited = false;
+						active.removeElement(flow);
+					} else if (!batch.done) {
+						endTurn(flow);
+					}
+				}
+			}
+		} finally {
+			synchronized (this) {
+				sending = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * The first channel in the queue with the highest priority.
+	 */
+	private Flow next() {
+		Flow next = null;
+		for (int i = 0; i < active.size(); i++) {
+			Flow flow = active.elementAt(i);
+			if (next == null || flow.priority > next.priority) {
+				next = flow;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Move a channel that has used its quantum to the back of the queue.
+	 */
+	private void endTurn(Flow flow) {
+		flow.visited = false;
+		active.removeElement(flow);
+		active.addElement(flow);
+	}
+
+	static class Batch {
+		MessageWriter writer;
+		int count;
+		long bytes;
+		int packetsize;
+		long queuedAt = System.nanoTime();
+		boolean started = false;
+		boolean done = false;
+		Throwable error;
+
+		Batch(MessageWriter writer, int count, long bytes, int packetsize) {
+			this.writer = writer;
+			this.count = count;
+			this.bytes = bytes;
+			this.packetsize = packetsize;
+		}
+	}
+
+	/**
+	 * A channel's queue of outgoing data together with its scheduling
+	 * parameters and the time its data has spent waiting to be sent.
+	 */
+	static class Flow {
+		volatile int priority = 0;
+		volatile int weight = 1;
+		long deficit = 0;
+		boolean active = false;
+		boolean visited = false;
+		LinkedList<Batch> queue = new LinkedList<Batch>();
+
+		long queued = 0;
+		long queueTime = 0;
+		long maxQueueTime = 0;
+
+		synchronized void recordQueueTime(long nanos) {
+			queued++;
+			queueTime += nanos;
+			if (nanos > maxQueueTime) {
+				maxQueueTime = nanos;
+			}
+		}
+
+		synchronized long getQueuedCount() {
+			return queued;
+		}
+
+		synchronized long getQueueTime() {
+			return queueTime / 1000000;
+		}
+
+		synchronized long getMaxQueueTime() {
+			return maxQueueTime / 1000000;
+		}
+	}
+}
@@ -23,15 +23,26 @@ package com.sshtools.ssh2;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Enumeration;
+import java.util.LinkedList;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import com.sshtools.logging.Log;
+import com.sshtools.ssh.ChannelDataSubscriber;
+import com.sshtools.ssh.ChannelDataSubscription;
 import com.sshtools.ssh.ChannelEventListener;
+import com.sshtools.ssh.ChannelOpenException;
 import com.sshtools.ssh.SshException;
+import com.sshtools.ssh.SshFuture;
 import com.sshtools.ssh.SshIOException;
 import com.sshtools.ssh.message.Message;
+import com.sshtools.ssh.message.MessageIdObserver;
 import com.sshtools.ssh.message.MessageObserver;
 import com.sshtools.ssh.message.SshAbstractChannel;
 import com.sshtools.ssh.message.SshChannelMessage;
@@ -85,6 +96,22 @@ public class Ssh2Channel extends SshAbstractChannel {
 	String name;
 	Vector<ChannelEventListener> listeners = new Vector<ChannelEventListener>();
 
+	// Set whilst the channel is being opened asynchronously
+	volatile SshFuture<Ssh2Channel> openFuture;
+
+	// Guarded by this; see abandonOpen()
+	boolean openReplied = false;
+	boolean openAbandoned = false;
+
+	// Replies to channel requests arrive in the order the requests were sent
+	ConcurrentLinkedQueue<ConnectionProtocol.PendingRequest> pendingRequests = new ConcurrentLinkedQueue<ConnectionProtocol.PendingRequest>();
+	Object requestLock = new Object();
+
+	// Set whilst data is published to a subscriber instead of the streams
+	volatile DataSubscription dataSubscription;
+	volatile DataSubscription extendedDataSubscription;
+	Object subscriptionLock = new Object();
+
 	final static int SSH_MSG_CHANNEL_CLOSE = 97;
 	final static int SSH_MSG_CHANNEL_EOF = 96;
 	final static int SSH_MSG_CHANNEL_REQUEST = 98;
@@ -101,83 +128,25 @@ public class Ssh2Channel extends SshAbstractChannel {
 	boolean isRemoteEOF = false;
 	boolean isLocalEOF = false;
 
-	final MessageObserver WINDOW_ADJUST_MESSAGES = new MessageObserver() {
-		public boolean wantsNotification(Message msg) {
-			switch (msg.getMessageId()) {
-			case SSH_MSG_WINDOW_ADJUST:
-			case SSH_MSG_CHANNEL_CLOSE:
-				return true;
-			default:
-				return false;
-			}
-		}
-	};
-
-	final MessageObserver CHANNEL_DATA_MESSAGES = new MessageObserver() {
-		public boolean wantsNotification(Message msg) {
+	final MessageObserver WINDOW_ADJUST_MESSAGES = new MessageIdObserver(
+			SSH_MSG_WINDOW_ADJUST, SSH_MSG_CHANNEL_CLOSE);
 
-			// Access to this observer is synchronized by the ThreadSynchronizer
-			// so we can flag our InputStream as blocking when the method is
-			// called and released once we have found a message
-			switch (msg.getMessageId()) {
-			case SSH_MSG_CHANNEL_DATA:
-			case SSH_MSG_CHANNEL_EOF:
-			case SSH_MSG_CHANNEL_CLOSE:
-				return true;
-			default:
-				return false;
-			}
-		}
-	};
+	final MessageObserver CHANNEL_DATA_MESSAGES = new MessageIdObserver(
+			SSH_MSG_CHANNEL_DATA, SSH_MSG_CHANNEL_EOF, SSH_MSG_CHANNEL_CLOSE);
 
-	final MessageObserver EXTENDED_DATA_MESSAGES = new MessageObserver() {
-		public boolean wantsNotification(Message msg) {
-			switch (msg.getMessageId()) {
-			case SSH_MSG_CHANNEL_EXTENDED_DATA:
-			case SSH_MSG_CHANNEL_EOF:
-			case SSH_MSG_CHANNEL_CLOSE:
-				return true;
-			default:
-				return false;
-			}
-		}
-	};
+	final MessageObserver EXTENDED_DATA_MESSAGES = new MessageIdObserver(
+			SSH_MSG_CHANNEL_EXTENDED_DATA, SSH_MSG_CHANNEL_EOF,
+			SSH_MSG_CHANNEL_CLOSE);
 
-	final MessageObserver CHANNEL_REQUEST_MESSAGES = new MessageObserver() {
-		public boolean wantsNotification(Message msg) {
-			switch (msg.getMessageId()) {
-			case SSH_MSG_CHANNEL_SUCCESS:
-			case SSH_MSG_CHANNEL_FAILURE:
-			case SSH_MSG_CHANNEL_CLOSE:
-				return true;
-			default:
-				return false;
-			}
-		}
-	};
+	final MessageObserver CHANNEL_REQUEST_MESSAGES = new MessageIdObserver(
+			SSH_MSG_CHANNEL_SUCCESS, SSH_MSG_CHANNEL_FAILURE,
+			SSH_MSG_CHANNEL_CLOSE);
 
-	final MessageObserver CHANNEL_CLOSE_MESSAGES = new MessageObserver() {
-		public boolean wantsNotification(Message msg) {
-			switch (msg.getMessageId()) {
-			case SSH_MSG_CHANNEL_CLOSE:
-				return true;
-			default:
-				return false;
-			}
-		}
-	};
+	final MessageObserver CHANNEL_CLOSE_MESSAGES = new MessageIdObserver(
+			SSH_MSG_CHANNEL_CLOSE);
 
-	final static MessageObserver STICKY_MESSAGES = new MessageObserver() {
-		public boolean wantsNotification(Message msg) {
-			switch (msg.getMessageId()) {
-			case SSH_MSG_CHANNEL_CLOSE:
-			case SSH_MSG_CHANNEL_EOF:
-				return true;
-			default:
-				return false;
-			}
-		}
-	};
+	final static MessageObserver STICKY_MESSAGES = new MessageIdObserver(
+			SSH_MSG_CHANNEL_CLOSE, SSH_MSG_CHANNEL_EOF);
 
 	ChannelInputStream in;
 	ChannelOutputStream out;
@@ -188,6 +157,19 @@ public class Ssh2Channel extends SshAbstractChannel {
 	boolean closing = false;
 	boolean free = false;
 
+	final ChannelDataMessage dataMessage = new ChannelDataMessage();
+	final ChannelDataBatch dataBatch = new ChannelDataBatch();
+	final OutboundScheduler.Flow sendQueue = new OutboundScheduler.Flow();
+
+	static final int TRANSFER_BUFFER_SIZE = 262144;
+
+	static final boolean WINDOW_ADJUST_TEST = "true".equals(System
+			.getProperty("maverick.windowAdjustTest", "false"));
+
+	// Set when data is copied into a buffer as it arrives
+	boolean inputBuffering = false;
+	ChannelInputBuffer inputBuffer;
+
 	/**
 	 * <p>
 	 * Construct an SSH2 channel
@@ -216,6 +198,22 @@ public class Ssh2Channel extends SshAbstractChannel {
 		this.autoConsumeInput = autoConsumeInput;
 	}
 
+	/**
+	 * Copy the channel's data into a buffer sized to the local window as it
+	 * arrives, instead of leaving each message for the InputStream to
+	 * collect. This must be set before the channel is opened and only takes
+	 * effect on a buffered connection. It is ignored by channels that
+	 * override {@link #processStandardData(int, SshChannelMessage)}, since
+	 * buffered data does not pass through it. A buffered channel's data
+	 * cannot be subscribed to. Session channels can also be buffered with
+	 * {@link Ssh2Context#setChannelInputBuffering(boolean)}.
+	 * 
+	 * @param inputBuffering
+	 */
+	public void setInputBuffering(boolean inputBuffering) {
+		this.inputBuffering = inputBuffering;
+	}
+
 	long getWindowSize() {
 		return localwindow.available();
 	}
@@ -238,7 +236,7 @@ public class Ssh2Channel extends SshAbstractChannel {
 	}
 
 	public InputStream getInputStream() {
-		return in;
+		return inputBuffer != null ? (InputStream) inputBuffer : in;
 	}
 
 	public OutputStream getOutputStream() {
@@ -253,6 +251,66 @@ public class Ssh2Channel extends SshAbstractChannel {
 		}
 	}
 
+	/**
+	 * Set the priority of the channel's outgoing data when channel scheduling
+	 * is enabled. Data from channels with a higher priority is always sent
+	 * first, so a shell can be given a higher priority than a file transfer
+	 * to keep it responsive. The default is zero.
+	 * 
+	 * @param priority
+	 * @see Ssh2Context#setChannelScheduling(boolean)
+	 */
+	public void setPriority(int priority) {
+		sendQueue.priority = priority;
+	}
+
+	public int getPriority() {
+		return sendQueue.priority;
+	}
+
+	/**
+	 * Set the channel's share of the outgoing bandwidth relative to other
+	 * channels of the same priority when channel scheduling is enabled. The
+	 * default is one.
+	 * 
+	 * @param weight
+	 * @see Ssh2Context#setChannelScheduling(boolean)
+	 */
+	public void setWeight(int weight) {
+		if (weight <= 0) {
+			throw new IllegalArgumentException(
+					"The channel weight must be positive");
+		}
+		sendQueue.weight = weight;
+	}
+
+	public int getWeight() {
+		return sendQueue.weight;
+	}
+
+	/**
+	 * The number of writes that have been queued by the channel scheduler.
+	 */
+	public long getSendQueueCount() {
+		return sendQueue.getQueuedCount();
+	}
+
+	/**
+	 * The total time in milliseconds that writes have waited for the channel
+	 * scheduler before any of their data was sent.
+	 */
+	public long getSendQueueTime() {
+		return sendQueue.getQueueTime();
+	}
+
+	/**
+	 * The longest time in milliseconds a single write has waited for the
+	 * channel scheduler.
+	 */
+	public long getMaxSendQueueTime() {
+		return sendQueue.getMaxQueueTime();
+	}
+
 	public boolean isSendKeepAliveOnIdle() {
 		return sendKeepAliveOnIdle;
 	}
@@ -279,9 +337,40 @@ public class Ssh2Channel extends SshAbstractChannel {
 	 */
 	void init(ConnectionProtocol connection, int channelid) {
 		this.connection = connection;
+		if (connection.transport.transportContext.isChannelWindowAutoTuning()) {
+			localwindow.enableTuning(connection.transport.transportContext
+					.getMaximumChannelWindowSize());
+		}
+		boolean buffering = inputBuffering
+				|| (this instanceof Ssh2Session && connection.transport.transportContext
+						.isChannelInputBuffering());
+		if (buffering && connection.isBuffered()
+				&& !overridesProcessStandardData()) {
+			inputBuffer = new ChannelInputBuffer((int) Math.min(
+					Math.max(localwindow.initialSize, localwindow.packetsize),
+					Integer.MAX_VALUE));
+		}
 		super.init(connection, channelid);
 	}
 
+	/**
+	 * Data copied into the input buffer never passes through
+	 * processStandardData, so channels that override it to inspect or
+	 * rewrite their data cannot buffer their input.
+	 */
+	private boolean overridesProcessStandardData() {
+		for (Class<?> c = getClass(); c != Ssh2Channel.class; c = c
+				.getSuperclass()) {
+			try {
+				c.getDeclaredMethod("processStandardData", int.class,
+						SshChannelMessage.class);
+				return true;
+			} catch (NoSuchMethodException e) {
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Called after the channel has been created by the <a
 	 * href="ChannelFactory.html>ChannelFactory</a>. There is no need to call
@@ -352,6 +441,51 @@ public class Ssh2Channel extends SshAbstractChannel {
 
 		try {
 			switch (msg.getMessageId()) {
+			case ConnectionProtocol.SSH_MSG_CHANNEL_OPEN_CONFIRMATION:
+			case ConnectionProtocol.SSH_MSG_CHANNEL_OPEN_FAILURE: {
+
+				SshFuture<Ssh2Channel> future;
+				synchronized (this) {
+					future = openFuture;
+					if (future == null && !openAbandoned) {
+						// A synchronous open is waiting on the message store
+						openReplied = true;
+						return false;
+					}
+					openFuture = null;
+				}
+				if (future == null) {
+					completeAbandonedOpen(msg);
+					return true;
+				}
+				try {
+					connection.completeChannelOpen(this, msg);
+					future.setResult(this);
+				} catch (ChannelOpenException ex) {
+					future.setFailure(ex);
+				}
+				return true;
+			}
+			case SSH_MSG_CHANNEL_SUCCESS:
+			case SSH_MSG_CHANNEL_FAILURE: {
+
+				ConnectionProtocol.PendingRequest pending = pendingRequests
+						.poll();
+				if (pending == null || pending.future == null) {
+					// A synchronous request is waiting on the message store
+					return false;
+				}
+
+				boolean success = msg.getMessageId() == SSH_MSG_CHANNEL_SUCCESS;
+				if (Log.isDebugEnabled()) {
+					Log.debug(this, "Received "
+							+ (success ? "SSH_MSG_CHANNEL_SUCCESS"
+									: "SSH_MSG_CHANNEL_FAILURE") + " id="
+							+ channelid + " rid=" + remoteid);
+				}
+				pending.future.setResult(Boolean.valueOf(success));
+				return true;
+			}
 			case SSH_MSG_CHANNEL_REQUEST:
 
 				String requesttype = msg.readString();
@@ -392,16 +526,21 @@ public class Ssh2Channel extends SshAbstractChannel {
 									+ localwindow.available());
 				}
 
+				DataSubscription subscription = dataSubscription;
+
 				// Is the channels InputStream currently in a blocking read
 				// operation? if it is then we can leave the message for it
 				// to process (and subsequently break out of the block) or
 				// if not we should process it here so that data events
 				// are fired in a timely fashion
-				if (autoConsumeInput) {
+				localwindow.received(msg.available() - 4);
+
+				if (autoConsumeInput && subscription == null) {
 					localwindow.consume(msg.available() - 4);
-					if (localwindow.available() <= localwindow.getInitialSize() / 2) {
-						adjustWindow(localwindow.getInitialSize()
-								- localwindow.available());
+					long increment = localwindow.refill(0, Long.MAX_VALUE,
+							false);
+					if (increment > 0) {
+						adjustWindow(increment, false);
 					}
 				}
 
@@ -412,6 +551,19 @@ public class Ssh2Channel extends SshAbstractChannel {
 							msg.available() - 4);
 				}
 
+				if (subscription != null
+						&& subscription.onData(msg.array(),
+								msg.getPosition() + 4, msg.available() - 4)) {
+					return true;
+				}
+
+				if (inputBuffer != null && subscription == null
+						&& !autoConsumeInput) {
+					inputBuffer.put(msg.array(), msg.getPosition() + 4,
+							msg.available() - 4);
+					return true;
+				}
+
 				return autoConsumeInput;
 
 			case SSH_MSG_CHANNEL_EXTENDED_DATA:
@@ -427,11 +579,19 @@ public class Ssh2Channel extends SshAbstractChannel {
 				int type = (int) ByteArrayReader.readInt(msg.array(),
 						msg.getPosition());
 
-				if (autoConsumeInput) {
+				DataSubscription extended = extendedDataSubscription;
+				if (extended != null && extended.type != type) {
+					extended = null;
+				}
+
+				localwindow.received(msg.available() - 8);
+
+				if (autoConsumeInput && extended == null) {
 					localwindow.consume(msg.available() - 8);
-					if (localwindow.available() <= localwindow.getInitialSize() / 2) {
-						adjustWindow(localwindow.getInitialSize()
-								- localwindow.available());
+					long increment = localwindow.refill(0, Long.MAX_VALUE,
+							false);
+					if (increment > 0) {
+						adjustWindow(increment, false);
 					}
 				}
 
@@ -442,6 +602,12 @@ public class Ssh2Channel extends SshAbstractChannel {
 							msg.available() - 8, type);
 				}
 
+				if (extended != null
+						&& extended.onData(msg.array(), msg.getPosition() + 8,
+								msg.available() - 8)) {
+					return true;
+				}
+
 				return autoConsumeInput;
 
 			case SSH_MSG_CHANNEL_CLOSE:
@@ -462,6 +628,10 @@ public class Ssh2Channel extends SshAbstractChannel {
 					}
 				}
 
+				failPendingRequests(new SshException("The channel was closed",
+						SshException.CHANNEL_FAILURE));
+				completeSubscriptions(null);
+
 				checkCloseStatus(true);
 				return false;
 
@@ -473,6 +643,7 @@ public class Ssh2Channel extends SshAbstractChannel {
 				}
 
 				isRemoteEOF = true;
+				completeSubscriptions(null);
 
 				for (Enumeration<ChannelEventListener> e = listeners.elements(); e
 						.hasMoreElements();) {
@@ -616,85 +787,211 @@ public class Ssh2Channel extends SshAbstractChannel {
 		return new ChannelInputStream(EXTENDED_DATA_MESSAGES);
 	}
 
-	void sendChannelData(byte[] buf, int offset, int len) throws SshException {
+	public long write(ByteBuffer[] srcs) throws IOException {
 
-		ByteArrayWriter msg = new ByteArrayWriter(len + 9);
+		long total = 0;
+		for (int i = 0; i < srcs.length; i++) {
+			total += srcs[i].remaining();
+		}
 
-		try {
-			if (state != CHANNEL_OPEN) {
-				throw new SshException("The channel is closed",
-						SshException.CHANNEL_FAILURE);
-			}
+		long written = 0;
 
-			if (len > 0) {
-				msg.write(SSH_MSG_CHANNEL_DATA);
-				msg.writeInt(remoteid);
-				msg.writeBinaryString(buf, offset, len);
+		try {
+			while (written < total) {
 
-				if (Log.isDebugEnabled()) {
-					Log.debug(this, "Sending SSH_MSG_CHANNEL_DATA id="
-							+ channelid + " rid=" + remoteid + " len=" + len
-							+ " window=" + remotewindow.available());
+				if (remotewindow.available() <= 0) {
+					processMessages(WINDOW_ADJUST_MESSAGES);
 				}
 
-				connection.sendMessage(msg.toByteArray(), true);
+				synchronized (this) {
+
+					if (isLocalEOF) {
+						throw new EOFException("The channel is EOF");
+					}
+
+					if (isClosed() || closing || state != CHANNEL_OPEN) {
+						throw new EOFException("The channel is closed");
+					}
+
+					long len = Math.min(total - written,
+							remotewindow.available());
+					if (len <= 0) {
+						continue;
+					}
+
+					if (Log.isDebugEnabled()) {
+						Log.debug(this, "Sending SSH_MSG_CHANNEL_DATA id="
+								+ channelid + " rid=" + remoteid + " len="
+								+ len + " window=" + remotewindow.available());
+					}
+
+					int count = dataBatch.set(srcs, len,
+							remotewindow.getPacketSize(), !listeners.isEmpty());
+					Vector<ByteBuffer> sent;
+					try {
+						connection.sendChannelData(this, dataBatch, count, len,
+								remotewindow.getPacketSize());
+					} finally {
+						sent = dataBatch.clear();
+					}
+
+					remotewindow.consume(len);
+					written += len;
+
+					if (sent != null) {
+						fireDataSent(sent);
+					}
+				}
 			}
+		} catch (SshException ex) {
+			throw new SshIOException(ex);
+		}
 
-			for (Enumeration<ChannelEventListener> e = listeners.elements(); e
-					.hasMoreElements();) {
-				(e.nextElement()).dataSent(Ssh2Channel.this, buf, offset, len);
+		return written;
+	}
+
+	public long transferFrom(ReadableByteChannel src, long count)
+			throws IOException {
+
+		ByteBuffer buf = ByteBuffer.allocate((int) Math.min(count,
+				TRANSFER_BUFFER_SIZE));
+		ByteBuffer[] srcs = new ByteBuffer[] { buf };
+		long transferred = 0;
+
+		while (transferred < count) {
+			buf.clear();
+			if (count - transferred < buf.capacity()) {
+				buf.limit((int) (count - transferred));
 			}
-		} catch (IOException ex) {
-			throw new SshException(ex, SshException.INTERNAL_ERROR);
-		} finally {
-			try {
-				msg.close();
-			} catch (IOException e) {
+			if (src.read(buf) <= 0) {
+				break;
 			}
+			buf.flip();
+			transferred += write(srcs);
 		}
 
+		return transferred;
 	}
 
-	void sendExtendedChannelData(byte[] buf, int offset, int len, int type)
-			throws SshException {
+	public int read(ByteBuffer dst) throws IOException {
 
-		ByteArrayWriter msg = new ByteArrayWriter(len + 9);
+		if (inputBuffer != null) {
+			return inputBuffer.read(dst);
+		}
 
-		try {
-			if (state != CHANNEL_OPEN) {
-				throw new SshException("The channel is closed",
-						SshException.CHANNEL_FAILURE);
+		if (!dst.hasRemaining()) {
+			return 0;
+		}
+
+		int count;
+		if (dst.hasArray()) {
+			count = in.read(dst.array(), dst.arrayOffset() + dst.position(),
+					dst.remaining());
+			if (count > 0) {
+				dst.position(dst.position() + count);
 			}
+		} else {
+			byte[] tmp = new byte[Math.min(dst.remaining(),
+					localwindow.getPacketSize())];
+			count = in.read(tmp, 0, tmp.length);
+			if (count > 0) {
+				dst.put(tmp, 0, count);
+			}
+		}
+		return count;
+	}
 
-			if (len > 0) {
+	public long transferTo(WritableByteChannel target, long count)
+			throws IOException {
 
-				msg.write(SSH_MSG_CHANNEL_EXTENDED_DATA);
-				msg.writeInt(remoteid);
-				msg.writeInt(type);
-				msg.writeBinaryString(buf, offset, len);
+		if (inputBuffer != null) {
+			return inputBuffer.transferTo(target, count);
+		}
 
-				connection.sendMessage(msg.toByteArray(), true);
+		ByteBuffer buf = ByteBuffer.allocate((int) Math.min(count,
+				TRANSFER_BUFFER_SIZE));
+		long transferred = 0;
+
+		while (transferred < count) {
+			buf.clear();
+			if (count - transferred < buf.capacity()) {
+				buf.limit((int) (count - transferred));
+			}
+			int read = in.read(buf.array(), 0, buf.limit());
+			if (read < 0) {
+				break;
 			}
+			buf.limit(read);
+			while (buf.hasRemaining()) {
+				target.write(buf);
+			}
+			transferred += read;
+		}
+
+		return transferred;
+	}
+
+	private void fireDataSent(Vector<ByteBuffer> sent) {
+		for (int i = 0; i < sent.size(); i++) {
+			ByteBuffer data = sent.elementAt(i);
+			int len = data.remaining();
+			byte[] buf;
+			int offset;
+			if (data.hasArray()) {
+				buf = data.array();
+				offset = data.arrayOffset() + data.position();
+			} else {
+				buf = new byte[len];
+				data.get(buf);
+				offset = 0;
+			}
+			for (Enumeration<ChannelEventListener> e = listeners.elements(); e
+					.hasMoreElements();) {
+				(e.nextElement()).dataSent(Ssh2Channel.this, buf, offset, len);
+			}
+		}
+	}
+
+	void sendExtendedChannelData(byte[] buf, int offset, int len, int type)
+			throws SshException {
 
-			if (listeners != null) {
-				for (int i = 0; i < listeners.size(); i++) {
-					((ChannelEventListener) listeners.elementAt(i))
-							.extendedDataReceived(Ssh2Channel.this, buf,
-									offset, len, type);
+		if (state != CHANNEL_OPEN) {
+			throw new SshException("The channel is closed",
+					SshException.CHANNEL_FAILURE);
+		}
+
+		if (len > 0) {
+			synchronized (dataMessage) {
+				dataMessage.set(SSH_MSG_CHANNEL_EXTENDED_DATA, type, buf,
+						offset, len);
+				try {
+					connection.sendChannelData(this, dataMessage, 1, len, len);
+				} finally {
+					dataMessage.clear();
 				}
 			}
-		} catch (IOException ex) {
-			throw new SshException(ex, SshException.INTERNAL_ERROR);
-		} finally {
-			try {
-				msg.close();
-			} catch (IOException e) {
+		}
+
+		if (listeners != null) {
+			for (int i = 0; i < listeners.size(); i++) {
+				((ChannelEventListener) listeners.elementAt(i))
+						.extendedDataReceived(Ssh2Channel.this, buf, offset,
+								len, type);
 			}
 		}
 
 	}
 
 	private void adjustWindow(long increment) throws SshException {
+		adjustWindow(increment, true);
+	}
+
+	/**
+	 * Send a window adjustment, optionally leaving the local window alone
+	 * because the caller has already adjusted it.
+	 */
+	private void adjustWindow(long increment, boolean adjustLocal)
+			throws SshException {
 
 		ByteArrayWriter msg = new ByteArrayWriter(9);
 
@@ -712,7 +1009,9 @@ public class Ssh2Channel extends SshAbstractChannel {
 						+ channelid + " rid=" + remoteid + " window="
 						+ localwindow.available() + " adjust=" + increment);
 			}
-			localwindow.adjust(increment);
+			if (adjustLocal) {
+				localwindow.adjust(increment);
+			}
 
 			connection.sendMessage(msg.toByteArray(), true);
 		} catch (IOException ex) {
@@ -785,7 +1084,13 @@ public class Ssh2Channel extends SshAbstractChannel {
 									+ " rid=" + remoteid + " request="
 									+ requesttype + " wantreply=" + wantreply);
 				}
-				connection.sendMessage(msg.toByteArray(), true);
+				if (wantreply) {
+					// The reply is left in the message store for us
+					sendRequest(msg.toByteArray(),
+							new ConnectionProtocol.PendingRequest(null, null));
+				} else {
+					connection.sendMessage(msg.toByteArray(), true);
+				}
 
 				boolean result = false;
 
@@ -809,23 +1114,220 @@ public class Ssh2Channel extends SshAbstractChannel {
 	}
 
 	/**
-	 * Closes the channel. No data may be sent or receieved after this method
-	 * completes.
+	 * Sends a channel request that wants a reply without waiting for it. The
+	 * future is completed when the reply is routed to the channel, which
+	 * requires the connection to be buffered.
+	 * 
+	 * @param requesttype
+	 *            the name of the request, for example "pty-req"
+	 * @param requestdata
+	 *            the request data
+	 * @return a future completed with <code>true</code> if the request
+	 *         succeeded
 	 */
-	public void close() {
+	public SshFuture<Boolean> sendRequestAsync(String requesttype,
+			byte[] requestdata) {
 
-		boolean performClose = false;
-		;
+		SshFuture<Boolean> future = new SshFuture<Boolean>();
+		ByteArrayWriter msg = new ByteArrayWriter();
+		try {
+			msg.write(SSH_MSG_CHANNEL_REQUEST);
+			msg.writeInt(remoteid);
+			msg.writeString(requesttype);
+			msg.writeBoolean(true);
+			if (requestdata != null) {
+				msg.write(requestdata);
+			}
 
-		synchronized (this) {
-			if (!closing && state == CHANNEL_OPEN) {
-				performClose = closing = true;
+			if (Log.isDebugEnabled()) {
+				Log.debug(this, "Sending SSH_MSG_CHANNEL_REQUEST id="
+						+ channelid + " rid=" + remoteid + " request="
+						+ requesttype + " wantreply=true async=true");
+			}
+			sendRequest(msg.toByteArray(), new ConnectionProtocol.PendingRequest(
+					future, null));
+		} catch (Throwable t) {
+			future.setFailure(t);
+		} finally {
+			try {
+				msg.close();
+			} catch (IOException e) {
 			}
 		}
+		return future;
+	}
 
-		if (performClose) {
-
-			synchronized (listeners) {
+	private void sendRequest(byte[] msg,
+			ConnectionProtocol.PendingRequest pending) throws SshException {
+		// Queue and send together so that the queue is in the order the
+		// requests are sent; the routing thread never takes this lock
+		synchronized (requestLock) {
+			pendingRequests.add(pending);
+			try {
+				connection.sendMessage(msg, true);
+			} catch (SshException ex) {
+				pendingRequests.remove(pending);
+				throw ex;
+			}
+		}
+	}
+
+	/**
+	 * Publish the channel's data to a subscriber instead of its InputStream.
+	 * The remote side may only send as much data as the subscriber has asked
+	 * for, as each block requested is granted to the remote side as another
+	 * packet of window space. Data that arrived before the subscription and
+	 * has not been read from the InputStream is delivered first. The
+	 * connection must be buffered, and the channel must not be using input
+	 * buffering, whose data can only be read from the InputStream.
+	 * 
+	 * @param subscriber
+	 * @see #setInputBuffering(boolean)
+	 */
+	public void subscribe(ChannelDataSubscriber subscriber) {
+		subscribe(new DataSubscription(subscriber, -1));
+	}
+
+	/**
+	 * Publish one type of the channel's extended data to a subscriber instead
+	 * of its InputStream. See {@link #subscribe(ChannelDataSubscriber)}.
+	 * 
+	 * @param type
+	 *            the extended data type code
+	 * @param subscriber
+	 */
+	public void subscribeExtendedData(int type, ChannelDataSubscriber subscriber) {
+		if (type < 0) {
+			throw new IllegalArgumentException(
+					"Extended data type codes cannot be negative");
+		}
+		subscribe(new DataSubscription(subscriber, type));
+	}
+
+	private void subscribe(DataSubscription subscription) {
+
+		if (!connection.isBuffered()) {
+			subscription.reject(new SshException(
+					"Subscribing to channel data requires a buffered connection",
+					SshException.BAD_API_USAGE));
+			return;
+		}
+
+		if (subscription.type == -1 && inputBuffer != null) {
+			subscription.reject(new SshException(
+					"Subscribing to channel data is not supported with input buffering",
+					SshException.BAD_API_USAGE));
+			return;
+		}
+
+		synchronized (subscriptionLock) {
+			DataSubscription current = subscription.type == -1 ? dataSubscription
+					: extendedDataSubscription;
+			if (current != null) {
+				subscription.reject(new IllegalStateException(
+						"The channel data already has a subscriber"));
+				return;
+			}
+			if (subscription.type == -1) {
+				dataSubscription = subscription;
+			} else {
+				extendedDataSubscription = subscription;
+			}
+		}
+
+		subscription.start();
+	}
+
+	void completeSubscriptions(Throwable ex) {
+		DataSubscription subscription = dataSubscription;
+		if (subscription != null) {
+			subscription.complete(ex);
+		}
+		subscription = extendedDataSubscription;
+		if (subscription != null) {
+			subscription.complete(ex);
+		}
+		if (inputBuffer != null) {
+			inputBuffer.setEOF();
+		}
+	}
+
+	/**
+	 * Stop waiting for the reply to a synchronous open. The channel keeps its
+	 * id until the reply arrives, so that the reply cannot be routed to a new
+	 * channel given the same id, and is then closed or freed.
+	 */
+	void abandonOpen() {
+		boolean replied;
+		synchronized (this) {
+			replied = openReplied;
+			openAbandoned = !replied;
+		}
+
+		if (replied) {
+			// The reply has already been passed to the message store
+			try {
+				completeAbandonedOpen(getMessageStore().nextMessage(
+						ConnectionProtocol.CHANNEL_OPEN_RESPONSE_MESSAGES, 0));
+			} catch (IOException ex) {
+				// The message store has closed along with the connection
+			} catch (SshException ex) {
+				if (Log.isDebugEnabled()) {
+					Log.debug(this, "Failed to complete abandoned open id="
+							+ channelid, ex);
+				}
+			}
+		}
+	}
+
+	private void completeAbandonedOpen(SshMessage reply) throws SshException {
+		try {
+			connection.completeChannelOpen(this, reply);
+			close();
+		} catch (ChannelOpenException ex) {
+			// The refusal has freed the channel
+		}
+	}
+
+	/**
+	 * Fail the asynchronous open and any asynchronous requests still waiting
+	 * for a reply.
+	 * 
+	 * @param ex
+	 */
+	void failPendingRequests(Throwable ex) {
+		SshFuture<Ssh2Channel> future = openFuture;
+		if (future != null) {
+			openFuture = null;
+			future.setFailure(ex);
+		}
+
+		ConnectionProtocol.PendingRequest pending;
+		while ((pending = pendingRequests.poll()) != null) {
+			if (pending.future != null) {
+				pending.future.setFailure(ex);
+			}
+		}
+	}
+
+	/**
+	 * Closes the channel. No data may be sent or receieved after this method
+	 * completes.
+	 */
+	public void close() {
+
+		boolean performClose = false;
+		;
+
+		synchronized (this) {
+			if (!closing && state == CHANNEL_OPEN) {
+				performClose = closing = true;
+			}
+		}
+
+		if (performClose) {
+
+			synchronized (listeners) {
 				for (Enumeration<ChannelEventListener> e = listeners.elements(); e
 						.hasMoreElements();) {
 					(e.nextElement()).channelClosing(this);
@@ -979,42 +1481,8 @@ public class Ssh2Channel extends SshAbstractChannel {
 
 		public void write(byte[] buf, int offset, int len) throws IOException {
 
-			try {
-				long write;
-
-				do {
-
-					if (remotewindow.available() <= 0) {
-						processMessages(WINDOW_ADJUST_MESSAGES);
-					}
-
-					synchronized (Ssh2Channel.this) {
-
-						if (isLocalEOF) {
-							throw new EOFException("The channel is EOF");
-						}
-
-						if (isClosed() || closing) {
-							throw new EOFException("The channel is closed");
-						}
-
-						write = remotewindow.available() < remotewindow
-								.getPacketSize() ? (remotewindow.available() < len ? remotewindow
-								.available() : len)
-								: (remotewindow.getPacketSize() < len ? remotewindow
-										.getPacketSize() : len);
-
-						if (write > 0) {
-							sendChannelData(buf, offset, (int) write);
-							remotewindow.consume((int) write);
-							len -= write;
-							offset += write;
-						}
-					}
-				} while (len > 0);
-			} catch (SshException ex) {
-				throw new SshIOException(ex);
-			}
+			Ssh2Channel.this.write(new ByteBuffer[] { ByteBuffer.wrap(buf,
+					offset, len) });
 
 		}
 
@@ -1142,14 +1610,17 @@ public class Ssh2Channel extends SshAbstractChannel {
 				localwindow.consume(count);
 				unread -= count;
 
-				if (System.getProperty("maverick.windowAdjustTest", "false")
-						.equals("true")
-						|| (unread + localwindow.available()) < (localwindow
-								.getInitialSize() / 2)
-						&& !isClosed()
-						&& !closing) {
-					adjustWindow(localwindow.getInitialSize()
-							- localwindow.available() - unread);
+				// The message is finished with, recycle its buffer
+				if (unread == 0) {
+					currentMessage.release();
+				}
+
+				if (!isClosed() && !closing) {
+					long increment = localwindow.refill(unread,
+							Long.MAX_VALUE, WINDOW_ADJUST_TEST);
+					if (increment > 0) {
+						adjustWindow(increment, false);
+					}
 				}
 
 				transfered += count;
@@ -1164,15 +1635,693 @@ public class Ssh2Channel extends SshAbstractChannel {
 		}
 	}
 
+	/**
+	 * Holds the channel's data in a ring buffer that is filled as messages
+	 * arrive, so a reader collects everything received since its last read
+	 * at once. The buffer starts at the size of the local window and grows
+	 * with it; the remote side can never send more than the window allows,
+	 * so nothing else bounds it. Readers are serialized and data is copied
+	 * out of the buffer outside of its lock, so the thread routing messages
+	 * is never held up by a slow reader.
+	 */
+	class ChannelInputBuffer extends InputStream {
+
+		byte[] buf;
+		int head = 0;
+		int length = 0;
+		boolean eof = false;
+		boolean waiting = false;
+		Object readLock = new Object();
+
+		ChannelInputBuffer(int size) {
+			buf = new byte[size];
+		}
+
+		synchronized void put(byte[] data, int offset, int len) {
+			if (length + len > buf.length) {
+				grow(length + len);
+			}
+			int tail = (head + length) % buf.length;
+			int first = Math.min(len, buf.length - tail);
+			System.arraycopy(data, offset, buf, tail, first);
+			System.arraycopy(data, offset + first, buf, 0, len - first);
+			length += len;
+
+			if (waiting) {
+				notifyAll();
+			}
+		}
+
+		synchronized void setEOF() {
+			eof = true;
+			notifyAll();
+		}
+
+		private void grow(int required) {
+			long size = buf.length;
+			while (size < required) {
+				size <<= 1;
+			}
+			byte[] tmp = new byte[(int) Math.min(size, Integer.MAX_VALUE)];
+			int first = Math.min(length, buf.length - head);
+			System.arraycopy(buf, head, tmp, 0, first);
+			System.arraycopy(buf, 0, tmp, first, length - first);
+			buf = tmp;
+			head = 0;
+		}
+
+		/**
+		 * Wait until there is data to read. Must be called whilst holding
+		 * the buffer's lock.
+		 * 
+		 * @return false if the channel is EOF and all data has been read
+		 */
+		private boolean await() throws InterruptedIOException {
+			while (length == 0) {
+				if (eof || isClosed()) {
+					return false;
+				}
+				waiting = true;
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException(
+							"Interrupted whilst waiting for channel data");
+				} finally {
+					waiting = false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Give back the window space of data that has been read.
+		 */
+		private void release(int count) throws IOException {
+			synchronized (this) {
+				head = (head + count) % buf.length;
+				length -= count;
+			}
+
+			localwindow.consume(count);
+
+			if (!isClosed() && !closing) {
+				try {
+					// Data still buffered has not been consumed, so it is
+					// already counted against the window
+					long increment = localwindow.refill(0, Long.MAX_VALUE,
+							WINDOW_ADJUST_TEST);
+					if (increment > 0) {
+						adjustWindow(increment, false);
+					}
+				} catch (SshException ex) {
+					throw new SshIOException(ex);
+				}
+			}
+		}
+
+		public synchronized int available() {
+			return length;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) > 0 ? b[0] & 0xFF : -1;
+		}
+
+		public int read(byte[] b, int offset, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			synchronized (readLock) {
+				int count;
+				synchronized (this) {
+					if (!await()) {
+						return -1;
+					}
+					count = Math.min(len, length);
+					int first = Math.min(count, buf.length - head);
+					System.arraycopy(buf, head, b, offset, first);
+					System.arraycopy(buf, 0, b, offset + first, count - first);
+				}
+				release(count);
+				return count;
+			}
+		}
+
+		int read(ByteBuffer dst) throws IOException {
+			if (!dst.hasRemaining()) {
+				return 0;
+			}
+			synchronized (readLock) {
+				int count;
+				synchronized (this) {
+					if (!await()) {
+						return -1;
+					}
+					count = Math.min(dst.remaining(), length);
+					int first = Math.min(count, buf.length - head);
+					dst.put(buf, head, first);
+					dst.put(buf, 0, count - first);
+				}
+				release(count);
+				return count;
+			}
+		}
+
+		long transferTo(WritableByteChannel target, long count)
+				throws IOException {
+			long transferred = 0;
+			synchronized (readLock) {
+				while (transferred < count) {
+					ByteBuffer src;
+					synchronized (this) {
+						if (!await()) {
+							break;
+						}
+						// The region being read is not touched by put and a
+						// grow copies it to the new array, so it can be
+						// written without holding the lock
+						src = ByteBuffer.wrap(buf, head, (int) Math.min(
+								count - transferred,
+								Math.min(length, buf.length - head)));
+					}
+					int len = src.remaining();
+					while (src.hasRemaining()) {
+						target.write(src);
+					}
+					release(len);
+					transferred += len;
+				}
+			}
+			return transferred;
+		}
+	}
+
+	/**
+	 * Delivers channel data to a subscriber as it asks for it. The local
+	 * window is only topped up to cover the subscriber's outstanding demand,
+	 * so at most a window's worth of data is ever held for a subscriber that
+	 * is not keeping up.
+	 */
+	class DataSubscription implements ChannelDataSubscription,
+			MessageObserver {
+
+		ChannelDataSubscriber subscriber;
+		int type;
+		LinkedList<ByteBuffer> queue = new LinkedList<ByteBuffer>();
+		long demand = 0;
+		long buffered = 0;
+		boolean started = false;
+		boolean draining = false;
+		boolean completed = false;
+		boolean terminated = false;
+		boolean backlog = true;
+		Throwable error;
+
+		DataSubscription(ChannelDataSubscriber subscriber, int type) {
+			this.subscriber = subscriber;
+			this.type = type;
+		}
+
+		void reject(Throwable t) {
+			terminated = true;
+			subscriber.onSubscribe(this);
+			subscriber.onError(t);
+		}
+
+		void start() {
+			subscriber.onSubscribe(this);
+
+			synchronized (this) {
+				started = true;
+				if (isRemoteEOF || isClosed()) {
+					completed = true;
+				}
+			}
+
+			pullBacklog();
+			drain();
+		}
+
+		public void request(long n) {
+			if (n <= 0) {
+				complete(new IllegalArgumentException(
+						"The number of blocks requested must be positive"));
+				return;
+			}
+
+			synchronized (this) {
+				demand += n;
+				if (demand < 0) {
+					demand = Long.MAX_VALUE;
+				}
+			}
+			drain();
+		}
+
+		public void cancel() {
+			synchronized (this) {
+				terminated = true;
+				queue.clear();
+				buffered = 0;
+			}
+			detach();
+		}
+
+		/**
+		 * Takes the data of an SSH_MSG_CHANNEL_DATA or
+		 * SSH_MSG_CHANNEL_EXTENDED_DATA message as it is routed.
+		 * 
+		 * @return <code>false</code> if the subscription has been cancelled
+		 *         and the message should be left for the InputStream
+		 */
+		boolean onData(byte[] buf, int off, int len) {
+
+			// Anything the message pump stored before it saw the
+			// subscription must be delivered first; the pump is the only
+			// thread routing messages so this need only be checked once
+			if (backlog) {
+				pullBacklog();
+				backlog = false;
+			}
+
+			synchronized (this) {
+				if (terminated) {
+					return false;
+				}
+				localwindow.consume(len);
+				byte[] data = new byte[len];
+				System.arraycopy(buf, off, data, 0, len);
+				queue.add(ByteBuffer.wrap(data));
+				buffered += len;
+			}
+			drain();
+			return true;
+		}
+
+		void complete(Throwable t) {
+			synchronized (this) {
+				if (completed) {
+					return;
+				}
+				completed = true;
+				if (t != null) {
+					error = t;
+					queue.clear();
+					buffered = 0;
+				}
+			}
+			if (t == null) {
+				pullBacklog();
+			}
+			drain();
+		}
+
+		public boolean wantsNotification(Message msg) {
+			if (type == -1) {
+				return msg.getMessageId() == SSH_MSG_CHANNEL_DATA;
+			}
+			SshChannelMessage m = (SshChannelMessage) msg;
+			return m.getMessageId() == SSH_MSG_CHANNEL_EXTENDED_DATA
+					&& ByteArrayReader.readInt(m.array(), m.getPosition()) == type;
+		}
+
+		private void pullBacklog() {
+			try {
+				SshMessageStore ms = getMessageStore();
+				while (ms.hasMessage(this) != null) {
+					SshChannelMessage msg = (SshChannelMessage) ms
+							.nextMessage(this, 0);
+					if (type != -1) {
+						msg.readInt();
+					}
+					int length = (int) msg.readInt();
+					synchronized (this) {
+						if (terminated) {
+							return;
+						}
+						localwindow.consume(length);
+						byte[] data = new byte[length];
+						msg.read(data);
+						queue.add(ByteBuffer.wrap(data));
+						buffered += length;
+					}
+				}
+			} catch (IOException ex) {
+				complete(ex);
+			} catch (SshException ex) {
+				complete(ex);
+			}
+		}
+
+		/**
+		 * Deliver whatever the subscriber has asked for and top up the window.
+		 * Only one thread delivers at a time so the subscriber is called
+		 * serially.
+		 */
+		private void drain() {
+			do {
+				if (!deliver()) {
+					return;
+				}
+				updateWindow();
+				// Data or demand may have arrived after we stopped delivering
+			} while (hasWork());
+		}
+
+		private synchronized boolean hasWork() {
+			return !terminated
+					&& (queue.isEmpty() ? completed : demand > 0);
+		}
+
+		private boolean deliver() {
+
+			synchronized (this) {
+				if (!started || draining || terminated) {
+					return false;
+				}
+				draining = true;
+			}
+
+			try {
+				while (true) {
+					ByteBuffer next = null;
+					synchronized (this) {
+						if (terminated) {
+							return false;
+						}
+						if (!queue.isEmpty() && demand > 0) {
+							next = queue.removeFirst();
+							buffered -= next.remaining();
+							if (demand != Long.MAX_VALUE) {
+								demand--;
+							}
+						} else if (completed && queue.isEmpty()) {
+							terminated = true;
+						} else {
+							return true;
+						}
+					}
+
+					if (next == null) {
+						detach();
+						if (error == null) {
+							subscriber.onComplete();
+						} else {
+							subscriber.onError(error);
+						}
+						return false;
+					}
+
+					try {
+						subscriber.onNext(next);
+					} catch (Throwable t) {
+						Log.error(this, "Channel data subscriber failed", t);
+						cancel();
+						return false;
+					}
+				}
+			} finally {
+				synchronized (this) {
+					draining = false;
+				}
+			}
+		}
+
+		/**
+		 * Grant the remote side enough window for the outstanding demand, in
+		 * the same half window steps as the InputStream.
+		 */
+		private void updateWindow() {
+
+			long increment;
+			synchronized (this) {
+				if (terminated || completed || closing || isClosed()) {
+					return;
+				}
+				long limit = Long.MAX_VALUE;
+				if (demand < Long.MAX_VALUE / localwindow.getPacketSize()) {
+					limit = demand * localwindow.getPacketSize();
+				}
+				increment = localwindow.refill(buffered, limit, false);
+				if (increment == 0) {
+					return;
+				}
+			}
+
+			try {
+				adjustWindow(increment, false);
+			} catch (SshException ex) {
+				complete(ex);
+			}
+		}
+
+		private void detach() {
+			synchronized (subscriptionLock) {
+				if (dataSubscription == this) {
+					dataSubscription = null;
+				} else if (extendedDataSubscription == this) {
+					extendedDataSubscription = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a batch of SSH_MSG_CHANNEL_DATA messages gathered from a set of
+	 * buffers straight into the transport's outgoing buffer, one packet each
+	 * time it is called. A single instance is reused by the channel whilst
+	 * holding the channel's lock.
+	 */
+	class ChannelDataBatch implements MessageWriter {
+
+		ByteBuffer[] srcs;
+		int index;
+		int packetsize;
+		long remaining;
+		Vector<ByteBuffer> sent;
+
+		/**
+		 * @return the number of messages needed to send the data
+		 */
+		int set(ByteBuffer[] srcs, long len, int packetsize,
+				boolean recordSent) {
+			this.srcs = srcs;
+			this.index = 0;
+			this.packetsize = packetsize;
+			this.remaining = len;
+			this.sent = recordSent ? new Vector<ByteBuffer>() : null;
+			return (int) ((len + packetsize - 1) / packetsize);
+		}
+
+		Vector<ByteBuffer> clear() {
+			Vector<ByteBuffer> tmp = sent;
+			srcs = null;
+			sent = null;
+			return tmp;
+		}
+
+		public void writeMessage(ByteArrayWriter msg) throws IOException {
+
+			int len = (int) Math.min(packetsize, remaining);
+			remaining -= len;
+
+			msg.write(SSH_MSG_CHANNEL_DATA);
+			msg.writeInt(remoteid);
+			msg.writeInt(len);
+
+			while (len > 0) {
+				ByteBuffer src = srcs[index];
+				int count = Math.min(len, src.remaining());
+				if (count == 0) {
+					index++;
+					continue;
+				}
+
+				if (sent != null) {
+					ByteBuffer data = src.duplicate();
+					data.limit(data.position() + count);
+					sent.addElement(data);
+				}
+
+				if (src.hasArray()) {
+					msg.write(src.array(), src.arrayOffset() + src.position(),
+							count);
+					src.position(src.position() + count);
+				} else {
+					msg.ensureCapacity(count);
+					src.get(msg.array(), msg.size(), count);
+					msg.move(count);
+				}
+				len -= count;
+			}
+		}
+	}
+
+	/**
+	 * Writes SSH_MSG_CHANNEL_DATA and SSH_MSG_CHANNEL_EXTENDED_DATA messages
+	 * straight into the transport's outgoing buffer. A single instance is
+	 * reused by the channel so sending data does not allocate per packet.
+	 */
+	class ChannelDataMessage implements MessageWriter {
+
+		int messageid;
+		int type;
+		byte[] buf;
+		int offset;
+		int len;
+
+		void set(int messageid, int type, byte[] buf, int offset, int len) {
+			this.messageid = messageid;
+			this.type = type;
+			this.buf = buf;
+			this.offset = offset;
+			this.len = len;
+		}
+
+		void clear() {
+			buf = null;
+		}
+
+		public void writeMessage(ByteArrayWriter msg) throws IOException {
+			msg.write(messageid);
+			msg.writeInt(remoteid);
+			if (messageid == SSH_MSG_CHANNEL_EXTENDED_DATA) {
+				msg.writeInt(type);
+			}
+			msg.writeBinaryString(buf, offset, len);
+		}
+	}
+
+	/**
+	 * Tracks the window space for one direction of the channel. The receive
+	 * window is refilled once half of it has been used, so with auto tuning
+	 * the size it is refilled to is four times the bandwidth delay product,
+	 * keeping at least twice the product available to the remote side. The
+	 * product is measured as the rate at which data is consumed multiplied
+	 * by the shortest recent round trip time between sending a window
+	 * adjustment and receiving data sent with it.
+	 */
 	static class DataWindow {
+
+		// How long a round trip sample is trusted before a longer one replaces it
+		static final long RTT_SAMPLE_LIFETIME = 10000;
+
 		long windowsize;
 		long initialSize;
 		int packetsize;
 
+		long size;
+		long maximumSize;
+		long granted;
+		long received;
+		long consumed;
+
+		long creditOffset = -1;
+		long creditSentAt;
+		long rtt;
+		long rttSampledAt;
+
+		long lastRefill;
+		long lastConsumed;
+		long rate;
+
 		DataWindow(long windowsize, int packetsize) {
 			this.initialSize = windowsize;
 			this.windowsize = windowsize;
 			this.packetsize = packetsize;
+			this.size = windowsize;
+			this.maximumSize = windowsize;
+			this.granted = windowsize;
+		}
+
+		synchronized void enableTuning(long maximumSize) {
+			this.maximumSize = Math.max(initialSize,
+					Math.min(maximumSize, Integer.MAX_VALUE));
+		}
+
+		synchronized long getSize() {
+			return size;
+		}
+
+		synchronized long getRoundTripTime() {
+			return rtt;
+		}
+
+		/**
+		 * Record data arriving from the remote side, taking a round trip
+		 * sample when the first byte sent with the last adjustment arrives.
+		 */
+		synchronized void received(int count) {
+			received += count;
+			if (creditOffset >= 0 && received > creditOffset) {
+				long now = System.currentTimeMillis();
+				long sample = Math.max(1, now - creditSentAt);
+				if (rtt == 0 || sample <= rtt
+						|| now - rttSampledAt > RTT_SAMPLE_LIFETIME) {
+					rtt = sample;
+					rttSampledAt = now;
+				}
+				creditOffset = -1;
+			}
+		}
+
+		/**
+		 * Refill the window once half of it has been used.
+		 * 
+		 * @param unread
+		 *            data received but not yet consumed
+		 * @param limit
+		 *            the most window space the caller wants outstanding
+		 * @param force
+		 *            refill even if less than half has been used
+		 * @return the increment to send to the remote side, which has already
+		 *         been added to the window, or zero
+		 */
+		synchronized long refill(long unread, long limit, boolean force) {
+
+			if (maximumSize > initialSize) {
+				tune();
+			}
+
+			long target = Math.min(size, limit);
+			long outstanding = windowsize + unread;
+			if (!force && outstanding >= target / 2) {
+				return 0;
+			}
+
+			long increment = target - outstanding;
+			if (increment <= 0) {
+				return 0;
+			}
+
+			if (creditOffset < 0) {
+				creditOffset = granted;
+				creditSentAt = System.currentTimeMillis();
+			}
+			adjust(increment);
+			return increment;
+		}
+
+		private void tune() {
+			long now = System.currentTimeMillis();
+			long elapsed = now - lastRefill;
+			if (elapsed <= 0) {
+				return;
+			}
+
+			if (lastRefill > 0) {
+				long sample = (consumed - lastConsumed) * 1000 / elapsed;
+				rate = rate == 0 ? sample : (3 * rate + sample) / 4;
+			}
+			lastRefill = now;
+			lastConsumed = consumed;
+
+			if (rtt > 0) {
+				long bdp = rate * rtt / 1000;
+				size = Math.max(initialSize, Math.min(maximumSize, 4 * bdp));
+			}
 		}
 
 		int getPacketSize() {
@@ -1183,16 +2332,18 @@ public class Ssh2Channel extends SshAbstractChannel {
 			return initialSize;
 		}
 
-		void adjust(long count) {
+		synchronized void adjust(long count) {
 			windowsize += count;
+			granted += count;
 		}
 
-		void consume(int count) {
+		synchronized void consume(long count) {
 
 			windowsize -= count;
+			consumed += count;
 		}
 
-		long available() {
+		synchronized long available() {
 			return windowsize;
 		}
 	}
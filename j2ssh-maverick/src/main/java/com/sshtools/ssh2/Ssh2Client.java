@@ -35,6 +35,8 @@ import com.sshtools.ssh.SshClient;
 import com.sshtools.ssh.SshConnector;
 import com.sshtools.ssh.SshContext;
 import com.sshtools.ssh.SshException;
+import com.sshtools.ssh.SshFuture;
+import com.sshtools.ssh.SshFutureListener;
 import com.sshtools.ssh.SshSession;
 import com.sshtools.ssh.SshTransport;
 import com.sshtools.ssh.SshTunnel;
@@ -42,6 +44,7 @@ import com.sshtools.ssh.components.SshKeyExchangeClient;
 import com.sshtools.ssh.message.SshAbstractChannel;
 import com.sshtools.util.ByteArrayReader;
 import com.sshtools.util.ByteArrayWriter;
+import com.sshtools.util.Threads;
 
 /**
  * <p>
@@ -140,6 +143,11 @@ public class Ssh2Client implements SshClient {
 		transport.startTransportProtocol(io, (Ssh2Context) context,
 				localIdentification, remoteIdentification, this);
 
+		if (((Ssh2Context) context).isTransportStatisticsEnabled()) {
+			transport.getStatistics().register(
+					username + "@" + io.getHost() + ":" + io.getPort());
+		}
+
 		if (Log.isDebugEnabled()) {
 			Log.debug(this, "Starting authentication protocol");
 		}
@@ -505,39 +513,138 @@ public class Ssh2Client implements SshClient {
 		 * sure our XForwarding Channel Factory is active.
 		 */
 		if (connection.getContext().getX11Display() != null) {
+			if (channel.requestX11Forwarding(false, "MIT-MAGIC-COOKIE-1",
+					getX11Cookie(), getX11Screen())) {
+				isXForwarding = true;
+			}
+		}
+		return channel;
+	}
 
-			String display = connection.getContext().getX11Display();
+	/**
+	 * Open a session without waiting for the server's reply. If X11
+	 * forwarding is configured the forwarding request is sent as soon as the
+	 * channel is open and the future completes after its reply. The
+	 * connection must be buffered.
+	 * 
+	 * @param windowspace
+	 *            the initial amount of window space available
+	 * @param packetsize
+	 *            the maximum packet size
+	 * @param listener
+	 *            an event listener to add before opening
+	 * @return a future completed with the open session
+	 */
+	public SshFuture<Ssh2Session> openSessionChannelAsync(int windowspace,
+			int packetsize, ChannelEventListener listener) {
 
-			int idx = display.indexOf(':');
-			int screen = 0;
-			if (idx != -1) {
-				display = display.substring(idx + 1);
-			}
+		final SshFuture<Ssh2Session> future = new SshFuture<Ssh2Session>();
+
+		try {
+			verifyAsync();
+		} catch (SshException ex) {
+			future.setFailure(ex);
+			return future;
+		}
 
-			idx = display.indexOf('.');
+		if (Log.isDebugEnabled()) {
+			Log.debug(this, "Opening session channel windowspace="
+					+ windowspace + " packetsize=" + packetsize + " async=true");
+		}
 
-			if (idx > -1) {
-				screen = Integer.parseInt(display.substring(idx + 1));
-			}
+		final Ssh2Session channel = new Ssh2Session(windowspace, packetsize,
+				this);
+		if (listener != null) {
+			channel.addChannelEventListener(listener);
+		}
 
-			byte[] x11FakeCookie = connection.getContext()
-					.getX11AuthenticationCookie();
-			StringBuffer cookieBuf = new StringBuffer();
-			for (int i = 0; i < 16; i++) {
-				String b = Integer.toHexString(x11FakeCookie[i] & 0xff);
-				if (b.length() == 1) {
-					b = "0" + b;
-				}
-				cookieBuf.append(b);
-			}
+		connection.openChannelAsync(channel, null).addListener(
+				new SshFutureListener<Ssh2Channel>() {
+					public void operationComplete(SshFuture<Ssh2Channel> open) {
+						if (!open.isSuccess()) {
+							future.setFailure(open.getCause());
+							return;
+						}
 
-			if (channel.requestX11Forwarding(false, "MIT-MAGIC-COOKIE-1",
-					cookieBuf.toString(), screen)) {
-				isXForwarding = true;
-			}
+						if (Log.isDebugEnabled()) {
+							Log.debug(Ssh2Client.this,
+									"Channel has been opened channelid="
+											+ channel.getChannelId());
+						}
+
+						if (connection.getContext().getX11Display() == null) {
+							future.setResult(channel);
+							return;
+						}
 
+						String cookie;
+						try {
+							cookie = getX11Cookie();
+						} catch (SshException ex) {
+							future.setFailure(ex);
+							return;
+						}
+
+						channel.requestX11ForwardingAsync(false,
+								"MIT-MAGIC-COOKIE-1", cookie, getX11Screen())
+								.addListener(
+								new SshFutureListener<Boolean>() {
+									public void operationComplete(
+											SshFuture<Boolean> x11) {
+										if (!x11.isSuccess()) {
+											future.setFailure(x11.getCause());
+											return;
+										}
+										if (x11.getNow().booleanValue()) {
+											isXForwarding = true;
+										}
+										future.setResult(channel);
+									}
+								});
+					}
+				});
+		return future;
+	}
+
+	/**
+	 * Open a session with the default window space and packet size without
+	 * waiting for the server's reply. The connection must be buffered.
+	 * 
+	 * @return a future completed with the open session
+	 */
+	public SshFuture<Ssh2Session> openSessionChannelAsync() {
+		return openSessionChannelAsync(32768, 32768, null);
+	}
+
+	private int getX11Screen() {
+		String display = connection.getContext().getX11Display();
+
+		int idx = display.indexOf(':');
+		int screen = 0;
+		if (idx != -1) {
+			display = display.substring(idx + 1);
 		}
-		return channel;
+
+		idx = display.indexOf('.');
+
+		if (idx > -1) {
+			screen = Integer.parseInt(display.substring(idx + 1));
+		}
+		return screen;
+	}
+
+	private String getX11Cookie() throws SshException {
+		byte[] x11FakeCookie = connection.getContext()
+				.getX11AuthenticationCookie();
+		StringBuffer cookieBuf = new StringBuffer();
+		for (int i = 0; i < 16; i++) {
+			String b = Integer.toHexString(x11FakeCookie[i] & 0xff);
+			if (b.length() == 1) {
+				b = "0" + b;
+			}
+			cookieBuf.append(b);
+		}
+		return cookieBuf.toString();
 	}
 
 	public SshClient openRemoteClient(String hostname, int port,
@@ -601,6 +708,65 @@ public class Ssh2Client implements SshClient {
 		}
 	}
 
+	/**
+	 * Open a forwarding channel without waiting for the server's reply. The
+	 * connection must be buffered.
+	 * 
+	 * @param hostname
+	 * @param port
+	 * @param listeningAddress
+	 * @param listeningPort
+	 * @param originatingHost
+	 * @param originatingPort
+	 * @param transport
+	 * @param listener
+	 * @return a future completed with the open tunnel
+	 */
+	public SshFuture<Ssh2Channel> openForwardingChannelAsync(String hostname,
+			int port, String listeningAddress, int listeningPort,
+			String originatingHost, int originatingPort,
+			SshTransport transport, ChannelEventListener listener) {
+
+		ByteArrayWriter request = new ByteArrayWriter();
+
+		try {
+			verifyAsync();
+
+			if (Log.isDebugEnabled()) {
+				Log.debug(this, "Opening forwarding channel from "
+						+ listeningAddress + ":" + listeningPort + " to "
+						+ hostname + ":" + port + " async=true");
+			}
+
+			Ssh2ForwardingChannel tunnel = new Ssh2ForwardingChannel(
+					Ssh2ForwardingChannel.LOCAL_FORWARDING_CHANNEL, 32768,
+					2097152, hostname, port, listeningAddress, listeningPort,
+					originatingHost, originatingPort, transport);
+
+			request.writeString(hostname);
+			request.writeInt(port);
+			request.writeString(originatingHost);
+			request.writeInt(originatingPort);
+
+			tunnel.addChannelEventListener(listener);
+
+			return connection.openChannelAsync(tunnel, request.toByteArray());
+		} catch (IOException ex) {
+			SshFuture<Ssh2Channel> future = new SshFuture<Ssh2Channel>();
+			future.setFailure(new SshException(ex, SshException.INTERNAL_ERROR));
+			return future;
+		} catch (SshException ex) {
+			SshFuture<Ssh2Channel> future = new SshFuture<Ssh2Channel>();
+			future.setFailure(ex);
+			return future;
+		} finally {
+			try {
+				request.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
 	public boolean requestRemoteForwarding(String bindAddress, int bindPort,
 			String hostToConnect, int portToConnect,
 			ForwardingRequestListener listener) throws SshException {
@@ -702,6 +868,90 @@ public class Ssh2Client implements SshClient {
 		connection.openChannel(channel, requestdata);
 	}
 
+	/**
+	 * Open a batch of custom SSH2 channels in a single round trip. See
+	 * {@link ConnectionProtocol#openChannels(Ssh2Channel[], byte[][], long)}.
+	 * 
+	 * @param channels
+	 *            the channels to open
+	 * @param requestdata
+	 *            the request data for each channel, or <code>null</code>
+	 * @param timeout
+	 *            the time to wait for all of the replies, or zero to wait
+	 *            indefinitely
+	 * @return the reason each channel failed to open, with a
+	 *         <code>null</code> element for each channel that opened
+	 * @throws SshException
+	 */
+	public ChannelOpenException[] openChannels(Ssh2Channel[] channels,
+			byte[][] requestdata, long timeout) throws SshException {
+		verifyConnection(true);
+		return connection.openChannels(channels, requestdata, timeout);
+	}
+
+	/**
+	 * Open a batch of sessions in a single round trip. If X11 forwarding is
+	 * configured it is requested for each session once the batch has opened.
+	 * 
+	 * @param count
+	 *            the number of sessions to open
+	 * @param windowspace
+	 *            the initial amount of window space available
+	 * @param packetsize
+	 *            the maximum packet size
+	 * @param timeout
+	 *            the time to wait for all of the replies, or zero to wait
+	 *            indefinitely
+	 * @return the sessions, with a <code>null</code> element for each session
+	 *         the server refused to open
+	 * @throws SshException
+	 *             if the connection failed or the timeout expired, in which
+	 *             case any sessions that did open have been closed
+	 */
+	public Ssh2Session[] openSessionChannels(int count, int windowspace,
+			int packetsize, long timeout) throws SshException {
+		verifyConnection(true);
+
+		Ssh2Session[] sessions = new Ssh2Session[count];
+		for (int i = 0; i < count; i++) {
+			sessions[i] = new Ssh2Session(windowspace, packetsize, this);
+		}
+
+		ChannelOpenException[] results = connection.openChannels(sessions,
+				null, timeout);
+
+		for (int i = 0; i < count; i++) {
+			if (results[i] != null) {
+				if (Log.isDebugEnabled()) {
+					Log.debug(this, "Session " + i + " failed to open: "
+							+ results[i].getMessage());
+				}
+				sessions[i] = null;
+			}
+		}
+
+		if (connection.getContext().getX11Display() != null) {
+			try {
+				for (int i = 0; i < count; i++) {
+					if (sessions[i] != null
+							&& sessions[i].requestX11Forwarding(false,
+									"MIT-MAGIC-COOKIE-1", getX11Cookie(),
+									getX11Screen())) {
+						isXForwarding = true;
+					}
+				}
+			} catch (SshException ex) {
+				for (int i = 0; i < count; i++) {
+					if (sessions[i] != null) {
+						sessions[i].close();
+					}
+				}
+				throw ex;
+			}
+		}
+		return sessions;
+	}
+
 	/**
 	 * Additional method to open a custom SSH2 channel.
 	 * 
@@ -777,6 +1027,60 @@ public class Ssh2Client implements SshClient {
 		return connection.sendGlobalRequest(request, wantreply);
 	}
 
+	/**
+	 * Send a global request that wants a reply without waiting for it. The
+	 * connection must be buffered.
+	 * 
+	 * @param request
+	 *            the global request
+	 * @return a future completed with <code>true</code> if the request
+	 *         succeeded
+	 */
+	public SshFuture<Boolean> sendGlobalRequestAsync(GlobalRequest request) {
+		try {
+			verifyAsync();
+		} catch (SshException ex) {
+			SshFuture<Boolean> future = new SshFuture<Boolean>();
+			future.setFailure(ex);
+			return future;
+		}
+		return connection.sendGlobalRequestAsync(request);
+	}
+
+	/**
+	 * Authenticate on a thread from the context's thread factory. The
+	 * authentication protocol reads the transport directly, so unlike the
+	 * other asynchronous operations this occupies a thread until it
+	 * completes.
+	 * 
+	 * @param auth
+	 * @return a future completed with the result of
+	 *         {@link #authenticate(SshAuthentication)}
+	 */
+	public SshFuture<Integer> authenticateAsync(final SshAuthentication auth) {
+		final SshFuture<Integer> future = new SshFuture<Integer>();
+		Threads.newThread(transport.transportContext.getThreadFactory(),
+				new Runnable() {
+					public void run() {
+						try {
+							future.setResult(new Integer(authenticate(auth)));
+						} catch (Throwable t) {
+							future.setFailure(t);
+						}
+					}
+				}, "Authentication", true).start();
+		return future;
+	}
+
+	private void verifyAsync() throws SshException {
+		verifyConnection(true);
+		if (!buffered) {
+			throw new SshException(
+					"Asynchronous operations require a buffered connection",
+					SshException.BAD_API_USAGE);
+		}
+	}
+
 	public String getRemoteIdentification() {
 		return remoteIdentification;
 	}
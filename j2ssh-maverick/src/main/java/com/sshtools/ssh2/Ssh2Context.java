@@ -21,6 +21,7 @@
 package com.sshtools.ssh2;
 
 import java.util.Vector;
+import java.util.concurrent.ThreadFactory;
 
 import com.sshtools.logging.Log;
 import com.sshtools.ssh.ForwardingRequestListener;
@@ -30,6 +31,7 @@ import com.sshtools.ssh.SshContext;
 import com.sshtools.ssh.SshException;
 import com.sshtools.ssh.components.ComponentFactory;
 import com.sshtools.ssh.components.ComponentManager;
+import com.sshtools.util.Threads;
 
 /**
  * <p>
@@ -96,6 +98,15 @@ public final class Ssh2Context implements SshContext {
 
 	public static final String CIPHER_ARCFOUR_256 = "arcfour256";
 
+	/** AES-128 in Galois/Counter mode; no separate MAC is used **/
+	public static final String CIPHER_AES128_GCM = "aes128-gcm@openssh.com";
+
+	/** AES-256 in Galois/Counter mode; no separate MAC is used **/
+	public static final String CIPHER_AES256_GCM = "aes256-gcm@openssh.com";
+
+	/** ChaCha20 with Poly1305 authentication; no separate MAC is used **/
+	public static final String CIPHER_CHACHA20_POLY1305 = "chacha20-poly1305@openssh.com";
+
 	/** SHA1 message authentication **/
 	public static final String HMAC_SHA1 = "hmac-sha1";
 
@@ -110,6 +121,15 @@ public final class Ssh2Context implements SshContext {
 
 	public static final String HMAC_SHA256 = "hmac-sha256";
 
+	/** SHA-256 encrypt-then-MAC message authentication **/
+	public static final String HMAC_SHA256_ETM = "hmac-sha2-256-etm@openssh.com";
+
+	/** SHA-512 encrypt-then-MAC message authentication **/
+	public static final String HMAC_SHA512_ETM = "hmac-sha2-512-etm@openssh.com";
+
+	/** SHA1 encrypt-then-MAC message authentication **/
+	public static final String HMAC_SHA1_ETM = "hmac-sha1-etm@openssh.com";
+
 	/** Compression off **/
 	public static final String COMPRESSION_NONE = "none";
 
@@ -171,12 +191,31 @@ public final class Ssh2Context implements SshContext {
 	int maxPacketLength = 131072;
 
 	boolean keyReExchangeDisabled = false;
+	long rekeyBytesThreshold = TransportProtocol.MAX_NUM_BYTES_BEFORE_REKEY;
+	long rekeyPacketsThreshold = TransportProtocol.MAX_NUM_PACKETS_BEFORE_REKEY;
+	int keyExchangeQueueLimit = 1048576;
 
 	int partialMessageTimeout = 30000;
 	int keepAliveMaxDataLength = 128;
 	int idleConnectionTimeoutSeconds = 0;
 	boolean sendIgnorePacketOnIdle = false;
 
+	boolean writeCoalescing = false;
+	int writeCoalescingBufferSize = 65536;
+	int maxWriteLatency = 10;
+
+	boolean adaptiveCompression = false;
+	boolean jdkCompression = false;
+	boolean transportStatisticsEnabled = false;
+
+	boolean channelWindowAutoTuning = false;
+	int maximumChannelWindowSize = 16777216;
+	boolean channelInputBuffering = false;
+	boolean channelScheduling = false;
+	boolean channelDataPooling = false;
+
+	ThreadFactory threadFactory = Threads.getDefaultThreadFactory();
+
 	int dhGroupExchangeKeySize = 1024;
 	boolean dhGroupExchangeBackwardCompatible = false;
 
@@ -840,6 +879,59 @@ public final class Ssh2Context implements SshContext {
 		this.keyReExchangeDisabled = keyReExchangeDisabled;
 	}
 
+	public long getRekeyBytesThreshold() {
+		return rekeyBytesThreshold;
+	}
+
+	/**
+	 * Set the number of bytes that may be sent or received before keys are
+	 * re-exchanged. The default is 1GB.
+	 * 
+	 * @param rekeyBytesThreshold
+	 */
+	public void setRekeyBytesThreshold(long rekeyBytesThreshold) {
+		if (rekeyBytesThreshold <= 0)
+			throw new IllegalArgumentException(
+					"Rekey byte threshold must be greater than zero");
+		this.rekeyBytesThreshold = rekeyBytesThreshold;
+	}
+
+	public long getRekeyPacketsThreshold() {
+		return rekeyPacketsThreshold;
+	}
+
+	/**
+	 * Set the number of packets that may be sent or received before keys are
+	 * re-exchanged. The default is 2^31 - 1.
+	 * 
+	 * @param rekeyPacketsThreshold
+	 */
+	public void setRekeyPacketsThreshold(long rekeyPacketsThreshold) {
+		if (rekeyPacketsThreshold <= 0)
+			throw new IllegalArgumentException(
+					"Rekey packet threshold must be greater than zero");
+		this.rekeyPacketsThreshold = rekeyPacketsThreshold;
+	}
+
+	public int getKeyExchangeQueueLimit() {
+		return keyExchangeQueueLimit;
+	}
+
+	/**
+	 * Set the number of payload bytes that may be held back whilst a key
+	 * exchange is in progress. Once the limit is reached senders block until
+	 * the key exchange completes; a sender is never blocked when it is also
+	 * the thread reading from the transport. The default is 1MB.
+	 * 
+	 * @param keyExchangeQueueLimit
+	 */
+	public void setKeyExchangeQueueLimit(int keyExchangeQueueLimit) {
+		if (keyExchangeQueueLimit <= 0)
+			throw new IllegalArgumentException(
+					"Key exchange queue limit must be greater than zero");
+		this.keyExchangeQueueLimit = keyExchangeQueueLimit;
+	}
+
 	public void setPublicKeyPreferredPosition(String name, int position)
 			throws SshException {
 		prefPublicKey = publicKeys.changePositionofAlgorithm(name, position);
@@ -899,6 +991,229 @@ public final class Ssh2Context implements SshContext {
 		this.keepAliveMaxDataLength = keepAliveMaxDataLength;
 	}
 
+	public boolean isWriteCoalescing() {
+		return writeCoalescing;
+	}
+
+	/**
+	 * Hold encrypted packets in a send buffer rather than flushing the socket
+	 * after every packet. The buffer is written when it fills, when no other
+	 * thread is waiting to send, when the oldest buffered packet reaches the
+	 * maximum write latency or when TransportProtocol.flush() is called. This
+	 * reduces the number of socket writes when many channels are sending
+	 * small messages.
+	 * 
+	 * @param writeCoalescing
+	 */
+	public void setWriteCoalescing(boolean writeCoalescing) {
+		this.writeCoalescing = writeCoalescing;
+	}
+
+	public int getWriteCoalescingBufferSize() {
+		return writeCoalescingBufferSize;
+	}
+
+	public void setWriteCoalescingBufferSize(int writeCoalescingBufferSize) {
+		if (writeCoalescingBufferSize < 1024)
+			throw new IllegalArgumentException(
+					"The write coalescing buffer must be at least 1024 bytes");
+		this.writeCoalescingBufferSize = writeCoalescingBufferSize;
+	}
+
+	public int getMaxWriteLatency() {
+		return maxWriteLatency;
+	}
+
+	/**
+	 * The longest time in milliseconds a coalesced packet may be held back
+	 * whilst other threads are sending.
+	 * 
+	 * @param maxWriteLatency
+	 */
+	public void setMaxWriteLatency(int maxWriteLatency) {
+		this.maxWriteLatency = maxWriteLatency;
+	}
+
+	public boolean isAdaptiveCompression() {
+		return adaptiveCompression;
+	}
+
+	/**
+	 * When compression is negotiated, monitor the ratio achieved on outgoing
+	 * data and send data that does not compress, such as archives, images or
+	 * encrypted files, as stored blocks rather than spending time deflating
+	 * it. Compression is retried periodically in case the data changes.
+	 * 
+	 * @param adaptiveCompression
+	 */
+	public void setAdaptiveCompression(boolean adaptiveCompression) {
+		this.adaptiveCompression = adaptiveCompression;
+	}
+
+	public boolean isJDKCompression() {
+		return jdkCompression;
+	}
+
+	/**
+	 * Use the zlib implementations built on java.util.zip for both
+	 * <em>zlib</em> and <em>zlib@openssh.com</em>. These use the platform's
+	 * native zlib and deflate straight into the packet buffer rather than
+	 * staging the data through intermediate arrays. Requires Java 7 or later.
+	 * 
+	 * @param jdkCompression
+	 * @throws SshException
+	 */
+	public void setJDKCompression(boolean jdkCompression) throws SshException {
+		String prefix = jdkCompression ? "com.sshtools.zlib.JDK"
+				: "com.sshtools.zlib.";
+		try {
+			Class<?> zlib = Class.forName(prefix + "ZLibCompression");
+			Class<?> openssh = Class.forName(prefix
+					+ "OpenSSHZLibCompression");
+			compressionsCS.add(COMPRESSION_ZLIB, zlib);
+			compressionsCS.add("zlib@openssh.com", openssh);
+			compressionsSC.add(COMPRESSION_ZLIB, zlib);
+			compressionsSC.add("zlib@openssh.com", openssh);
+		} catch (Throwable t) {
+			throw new SshException("zlib compression is not available",
+					SshException.UNSUPPORTED_ALGORITHM, t);
+		}
+		this.jdkCompression = jdkCompression;
+	}
+
+	public boolean isTransportStatisticsEnabled() {
+		return transportStatisticsEnabled;
+	}
+
+	/**
+	 * Register a {@link TransportStatsMBean} with the platform MBean server
+	 * for each connection, along with one aggregating all connections, and
+	 * time the work done by the cipher, MAC and compression.
+	 * 
+	 * @param transportStatisticsEnabled
+	 */
+	public void setTransportStatisticsEnabled(boolean transportStatisticsEnabled) {
+		this.transportStatisticsEnabled = transportStatisticsEnabled;
+	}
+
+	public boolean isChannelWindowAutoTuning() {
+		return channelWindowAutoTuning;
+	}
+
+	/**
+	 * Grow and shrink each channel's receive window to suit the connection.
+	 * The round trip time and the rate at which the channel's data is
+	 * consumed are measured, and the window is sized to keep four times their
+	 * product available to the remote side, between the size the channel was
+	 * opened with and the maximum channel window size. Without tuning the
+	 * window stays at the size it was opened with, which limits throughput to
+	 * that size per round trip.
+	 * 
+	 * @param channelWindowAutoTuning
+	 */
+	public void setChannelWindowAutoTuning(boolean channelWindowAutoTuning) {
+		this.channelWindowAutoTuning = channelWindowAutoTuning;
+	}
+
+	public int getMaximumChannelWindowSize() {
+		return maximumChannelWindowSize;
+	}
+
+	/**
+	 * The largest window a channel may grow to when auto tuning is enabled.
+	 * This is the most data that can be buffered for each channel.
+	 * 
+	 * @param maximumChannelWindowSize
+	 */
+	public void setMaximumChannelWindowSize(int maximumChannelWindowSize) {
+		if (maximumChannelWindowSize <= 0)
+			throw new IllegalArgumentException(
+					"The maximum channel window size must be positive");
+		this.maximumChannelWindowSize = maximumChannelWindowSize;
+	}
+
+	public boolean isChannelInputBuffering() {
+		return channelInputBuffering;
+	}
+
+	/**
+	 * Copy each session channel's data into a buffer sized to its window as
+	 * it arrives, rather than leaving every message queued for the channel's
+	 * InputStream to collect. Readers are only woken when they are waiting
+	 * for data. This requires a buffered connection and has no effect
+	 * otherwise, and the data of buffered channels cannot be subscribed to.
+	 * Other channels can opt in with
+	 * {@link Ssh2Channel#setInputBuffering(boolean)}.
+	 * 
+	 * @param channelInputBuffering
+	 */
+	public void setChannelInputBuffering(boolean channelInputBuffering) {
+		this.channelInputBuffering = channelInputBuffering;
+	}
+
+	public boolean isChannelDataPooling() {
+		return channelDataPooling;
+	}
+
+	/**
+	 * Read channel data into buffers drawn from a shared pool and recycle
+	 * them once the data has been read, rather than allocating an array for
+	 * every message. The array passed to
+	 * {@link com.sshtools.ssh.ChannelEventListener#dataReceived} and
+	 * {@link com.sshtools.ssh.ChannelEventListener#extendedDataReceived} is
+	 * then only valid until the listener returns, so this must only be
+	 * enabled when no listener keeps it.
+	 * 
+	 * @param channelDataPooling
+	 */
+	public void setChannelDataPooling(boolean channelDataPooling) {
+		this.channelDataPooling = channelDataPooling;
+	}
+
+	public boolean isChannelScheduling() {
+		return channelScheduling;
+	}
+
+	/**
+	 * Share the connection's outgoing bandwidth between channels by their
+	 * priority and weight, rather than letting each writer send a whole
+	 * window of data at once. Other messages, such as window adjustments and
+	 * channel requests, then wait behind at most one quantum of another
+	 * channel's data.
+	 * 
+	 * @param channelScheduling
+	 * @see Ssh2Channel#setPriority(int)
+	 * @see Ssh2Channel#setWeight(int)
+	 */
+	public void setChannelScheduling(boolean channelScheduling) {
+		this.channelScheduling = channelScheduling;
+	}
+
+	/**
+	 * Set the factory from which the connection creates its threads, such as
+	 * the message pump and forwarding listeners. Use
+	 * {@link com.sshtools.util.Threads#virtualThreadFactory()} to run them on
+	 * virtual threads.
+	 * 
+	 * @param threadFactory
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		if (threadFactory == null) {
+			throw new IllegalArgumentException(
+					"Thread factory cannot be null");
+		}
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * Get the factory from which the connection creates its threads.
+	 * 
+	 * @return ThreadFactory
+	 */
+	public ThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+
 	public int getSocketTimeout() {
 		return socketTimeout;
 	}
@@ -28,10 +28,13 @@ import com.sshtools.events.EventServiceImplementation;
 import com.sshtools.events.J2SSHEventCodes;
 import com.sshtools.logging.Log;
 import com.sshtools.ssh.ChannelAdapter;
+import com.sshtools.ssh.ChannelDataSubscriber;
 import com.sshtools.ssh.PseudoTerminalModes;
 import com.sshtools.ssh.SshChannel;
 import com.sshtools.ssh.SshClient;
 import com.sshtools.ssh.SshException;
+import com.sshtools.ssh.SshFuture;
+import com.sshtools.ssh.SshFutureListener;
 import com.sshtools.ssh.SshSession;
 import com.sshtools.ssh.message.SshChannelMessage;
 import com.sshtools.ssh.message.SshMessage;
@@ -85,6 +88,16 @@ public class Ssh2Session extends Ssh2Channel implements SshSession {
 		return stderr;
 	}
 
+	/**
+	 * Publish the session's stderr to a subscriber instead of its
+	 * InputStream. See {@link #subscribe(ChannelDataSubscriber)}.
+	 * 
+	 * @param subscriber
+	 */
+	public void subscribeStderr(ChannelDataSubscriber subscriber) {
+		subscribeExtendedData(SSH_EXTENDED_DATA_STDERR, subscriber);
+	}
+
 	public boolean requestPseudoTerminal(String term, int cols, int rows,
 			int width, int height) throws SshException {
 		return requestPseudoTerminal(term, cols, rows, width, height,
@@ -263,6 +276,149 @@ public class Ssh2Session extends Ssh2Channel implements SshSession {
 
 	}
 
+	/**
+	 * Request a pseudo terminal without waiting for the reply. The connection
+	 * must be buffered.
+	 * 
+	 * @param term
+	 * @param cols
+	 * @param rows
+	 * @param width
+	 * @param height
+	 * @param modes
+	 * @return a future completed with <code>true</code> if the pseudo terminal
+	 *         was allocated
+	 */
+	public SshFuture<Boolean> requestPseudoTerminalAsync(String term,
+			int cols, int rows, int width, int height, byte[] modes) {
+		ByteArrayWriter request = new ByteArrayWriter();
+
+		try {
+			request.writeString(term);
+			request.writeInt(cols);
+			request.writeInt(rows);
+			request.writeInt(width);
+			request.writeInt(height);
+			request.writeBinaryString(modes);
+			return sendRequestAsync("pty-req", request.toByteArray());
+		} catch (IOException ex) {
+			return failed(ex);
+		} finally {
+			try {
+				request.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Start the user's shell without waiting for the reply. The connection
+	 * must be buffered.
+	 * 
+	 * @return a future completed with <code>true</code> if the shell was
+	 *         started
+	 */
+	public SshFuture<Boolean> startShellAsync() {
+
+		if (Log.isDebugEnabled()) {
+			addChannelEventListener(new CommandLogger());
+		}
+
+		SshFuture<Boolean> future = sendRequestAsync("shell", null);
+		future.addListener(new SshFutureListener<Boolean>() {
+			public void operationComplete(SshFuture<Boolean> future) {
+				if (!future.isSuccess()) {
+					return;
+				}
+				if (future.getNow().booleanValue()) {
+					EventServiceImplementation.getInstance().fireEvent(
+							new Event(Ssh2Session.this,
+									J2SSHEventCodes.EVENT_SHELL_SESSION_STARTED,
+									true));
+				} else {
+					EventServiceImplementation
+							.getInstance()
+							.fireEvent(
+									new Event(
+											Ssh2Session.this,
+											J2SSHEventCodes.EVENT_SHELL_SESSION_FAILED_TO_START,
+											false));
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Execute a command without waiting for the reply. The connection must be
+	 * buffered.
+	 * 
+	 * @param cmd
+	 * @return a future completed with <code>true</code> if the command was
+	 *         started
+	 */
+	public SshFuture<Boolean> executeCommandAsync(String cmd) {
+
+		if (Log.isDebugEnabled()) {
+			addChannelEventListener(new CommandLogger());
+		}
+
+		return sendStringRequestAsync("exec", cmd,
+				J2SSHEventCodes.EVENT_SHELL_COMMAND);
+	}
+
+	/**
+	 * Start a subsystem without waiting for the reply. The connection must be
+	 * buffered.
+	 * 
+	 * @param subsystem
+	 *            the name of the subsystem, for example "sftp"
+	 * @return a future completed with <code>true</code> if the subsystem was
+	 *         started
+	 */
+	public SshFuture<Boolean> startSubsystemAsync(String subsystem) {
+		return sendStringRequestAsync("subsystem", subsystem,
+				J2SSHEventCodes.EVENT_SUBSYSTEM_STARTED);
+	}
+
+	private SshFuture<Boolean> sendStringRequestAsync(String requesttype,
+			final String value, final int eventCode) {
+
+		ByteArrayWriter request = new ByteArrayWriter();
+
+		try {
+			request.writeString(value);
+			SshFuture<Boolean> future = sendRequestAsync(requesttype,
+					request.toByteArray());
+			future.addListener(new SshFutureListener<Boolean>() {
+				public void operationComplete(SshFuture<Boolean> future) {
+					if (future.isSuccess()) {
+						EventServiceImplementation.getInstance().fireEvent(
+								(new Event(Ssh2Session.this, eventCode, future
+										.getNow().booleanValue()))
+										.addAttribute(
+												J2SSHEventCodes.ATTRIBUTE_COMMAND,
+												value));
+					}
+				}
+			});
+			return future;
+		} catch (IOException ex) {
+			return failed(ex);
+		} finally {
+			try {
+				request.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private SshFuture<Boolean> failed(IOException ex) {
+		SshFuture<Boolean> future = new SshFuture<Boolean>();
+		future.setFailure(new SshException(ex, SshException.INTERNAL_ERROR));
+		return future;
+	}
+
 	/**
 	 * Send a request for X Forwarding.
 	 * 
@@ -293,6 +449,26 @@ public class Ssh2Session extends Ssh2Channel implements SshSession {
 		}
 	}
 
+	SshFuture<Boolean> requestX11ForwardingAsync(boolean singleconnection,
+			String protocol, String cookie, int screen) {
+		ByteArrayWriter request = new ByteArrayWriter();
+		try {
+
+			request.writeBoolean(singleconnection);
+			request.writeString(protocol);
+			request.writeString(cookie);
+			request.writeInt(screen);
+			return sendRequestAsync("x11-req", request.toByteArray());
+		} catch (IOException ex) {
+			return failed(ex);
+		} finally {
+			try {
+				request.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
 	/**
 	 * The SSH2 session supports the setting of environments variables however
 	 * in our experiance no server to date allows unconditional setting of
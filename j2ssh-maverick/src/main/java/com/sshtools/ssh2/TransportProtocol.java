@@ -20,6 +20,8 @@
  */
 package com.sshtools.ssh2;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
@@ -27,23 +29,29 @@ import java.io.OutputStream;
 import java.util.Enumeration;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.sshtools.events.Event;
 import com.sshtools.events.EventServiceImplementation;
 import com.sshtools.events.J2SSHEventCodes;
 import com.sshtools.logging.Log;
+import com.sshtools.ssh.NonBlockingTransport;
 import com.sshtools.ssh.SocketTimeoutSupport;
 import com.sshtools.ssh.SshException;
 import com.sshtools.ssh.SshIOException;
 import com.sshtools.ssh.SshTransport;
 import com.sshtools.ssh.components.ComponentManager;
 import com.sshtools.ssh.components.Digest;
+import com.sshtools.ssh.components.EncryptThenMac;
 import com.sshtools.ssh.components.SshCipher;
 import com.sshtools.ssh.components.SshHmac;
 import com.sshtools.ssh.components.SshKeyExchangeClient;
 import com.sshtools.ssh.components.SshPublicKey;
+import com.sshtools.ssh.compression.AdaptiveCompression;
+import com.sshtools.ssh.compression.BufferedCompression;
 import com.sshtools.ssh.compression.SshCompression;
 import com.sshtools.ssh.message.SshMessageReader;
+import com.sshtools.util.BufferPool;
 import com.sshtools.util.ByteArrayReader;
 import com.sshtools.util.ByteArrayWriter;
 
@@ -121,7 +129,21 @@ public class TransportProtocol implements SshMessageReader {
 	public static String CHARSET_ENCODING = "UTF8";
 
 	DataInputStream transportIn;
+
+	// Data read from the transport but not yet parsed, guarded by the
+	// transportIn lock
+	byte[] readAheadBuffer = new byte[READ_AHEAD_SIZE];
+	int readAheadPosition = 0;
+	int readAheadLimit = 0;
+	int incomingPayloadLength;
+
+	// The length of a packet whose header has been read but not its body
+	int incomingPacketLength = -1;
 	OutputStream transportOut;
+
+	// Write coalescing state, guarded by the kexqueue lock
+	AtomicInteger waitingSenders = new AtomicInteger();
+	volatile long unflushedSince = 0;
 	SshTransport provider;
 
 	Ssh2Context transportContext;
@@ -190,24 +212,49 @@ public class TransportProtocol implements SshMessageReader {
 	byte[] incomingMessage;
 	ByteArrayWriter outgoingMessage;
 
+	// Reusable buffers for compressed packets; compressedMessage is swapped
+	// with outgoingMessage once a payload has been deflated into it
+	ByteArrayWriter compressedMessage;
+	ByteArrayWriter uncompressedMessage;
+
+	final TransportStats stats = new TransportStats(this);
+
 	int incomingCipherLength = 8;
 	int incomingMacLength = 0;
 
 	long outgoingSequence = 0;
 	long incomingSequence = 0;
 
-	final static int MAX_NUM_PACKETS_BEFORE_REKEY = 2147483647;
-	final static int MAX_NUM_BYTES_BEFORE_REKEY = 1073741824;
+	/**
+	 * Space reserved at the start of the outgoing buffer for the packet length
+	 * and padding length fields.
+	 */
+	final static int PACKET_HEADER_LENGTH = 5;
+
+	/** The MAC name reported when an AEAD cipher is negotiated **/
+	final static String IMPLICIT_MAC = "<implicit>";
+
+	/** The size of the buffer used to read ahead of the current packet **/
+	final static int READ_AHEAD_SIZE = 65536;
+
+	/** The minimum amount of key data created for each key **/
+	final static int MIN_KEY_DATA_LENGTH = 64;
 
-	int numIncomingBytesSinceKEX;
-	int numIncomingPacketsSinceKEX;
-	int numOutgoingBytesSinceKEX;
-	int numOutgoingPacketsSinceKEX;
+	/** The default thresholds at which keys are re-exchanged **/
+	final static long MAX_NUM_PACKETS_BEFORE_REKEY = 2147483647L;
+	final static long MAX_NUM_BYTES_BEFORE_REKEY = 1073741824L;
+
+	long numIncomingBytesSinceKEX;
+	long numIncomingPacketsSinceKEX;
+	long numOutgoingBytesSinceKEX;
+	long numOutgoingPacketsSinceKEX;
 
 	long outgoingBytes = 0;
 	long incomingBytes = 0;
 
 	Vector<byte[]> kexqueue = new Vector<byte[]>();
+	int kexqueueBytes = 0;
+	volatile Thread readingThread;
 	Vector<Runnable> shutdownHooks = new Vector<Runnable>();
 	Vector<TransportProtocolListener> listeners = new Vector<TransportProtocolListener>();
 
@@ -328,11 +375,15 @@ public class TransportProtocol implements SshMessageReader {
 
 		try {
 			this.transportIn = new DataInputStream(provider.getInputStream());
-			this.transportOut = provider.getOutputStream();
+			this.transportOut = context.isWriteCoalescing() ? new BufferedOutputStream(
+					provider.getOutputStream(),
+					context.getWriteCoalescingBufferSize()) : provider
+					.getOutputStream();
 			this.provider = provider;
 			this.localIdentification = localIdentification;
 			this.remoteIdentification = remoteIdentification;
 			this.transportContext = context;
+			this.stats.timed = context.isTransportStatisticsEnabled();
 			this.incomingMessage = new byte[transportContext
 					.getMaximumPacketLength()];
 			this.outgoingMessage = new ByteArrayWriter(
@@ -382,6 +433,36 @@ public class TransportProtocol implements SshMessageReader {
 		return sessionIdentifier;
 	}
 
+	/**
+	 * Get the statistics for this transport.
+	 * 
+	 * @return TransportStats
+	 */
+	public TransportStats getStatistics() {
+		return stats;
+	}
+
+	/**
+	 * Get the compression applied to outgoing packets. Its ratio and the
+	 * bytes it has saved reset whenever keys are exchanged.
+	 * 
+	 * @return SshCompression, or <code>null</code> if outgoing packets are not
+	 *         compressed
+	 */
+	public SshCompression getOutgoingCompression() {
+		return outgoingCompression;
+	}
+
+	/**
+	 * Get the compression applied to incoming packets.
+	 * 
+	 * @return SshCompression, or <code>null</code> if incoming packets are not
+	 *         compressed
+	 */
+	public SshCompression getIncomingCompression() {
+		return incomingCompression;
+	}
+
 	/**
 	 * Disconnect from the remote host. No more messages can be sent after this
 	 * method has been called.
@@ -437,116 +518,398 @@ public class TransportProtocol implements SshMessageReader {
 	public void sendMessage(byte[] msgdata, boolean isActivity)
 			throws SshException {
 
+		waitingSenders.incrementAndGet();
+
 		synchronized (kexqueue) {
 
+			waitingSenders.decrementAndGet();
+
 			if (currentState == PERFORMING_KEYEXCHANGE
-					&& !isTransportMessage(msgdata[0])) {
-				kexqueue.addElement(msgdata);
+					&& !isTransportMessage(msgdata[0])
+					&& queueForKeyExchange(msgdata)) {
+				flushIfIdle();
 				return;
 			}
 
-			if (Log.isDebugEnabled()) {
-				if (verbose) {
-					Log.debug(this,
-							"Sending transport protocol message");
+			outgoingMessage.reset();
+			outgoingMessage.move(PACKET_HEADER_LENGTH);
+			outgoingMessage.write(msgdata, 0, msgdata.length);
+
+			sendPacket(isActivity);
+			flushIfIdle();
+		}
+
+	}
+
+	/**
+	 * <p>
+	 * Send a transport protocol message by having the {@link MessageWriter}
+	 * serialize the message id and payload directly into the outgoing packet
+	 * buffer. The packet is then padded, signed and encrypted in place, which
+	 * avoids the intermediate byte array required by
+	 * {@link #sendMessage(byte[], boolean)}.
+	 * </p>
+	 * 
+	 * <p>
+	 * If a key exchange is in progress the payload is copied out of the buffer
+	 * and queued until the new keys are in use.
+	 * </p>
+	 * 
+	 * @param writer
+	 * @param isActivity
+	 * @throws SshException
+	 */
+	public void sendMessage(MessageWriter writer, boolean isActivity)
+			throws SshException {
+		sendMessages(writer, 1, isActivity);
+	}
+
+	/**
+	 * Send a batch of messages with a single acquisition of the send lock,
+	 * calling the {@link MessageWriter} once for each message. Other threads
+	 * cannot interleave their messages with the batch, and when coalescing
+	 * writes the batch is flushed once at the end.
+	 * 
+	 * @param writer
+	 * @param count
+	 *            the number of messages to send
+	 * @param isActivity
+	 * @throws SshException
+	 */
+	public void sendMessages(MessageWriter writer, int count,
+			boolean isActivity) throws SshException {
+
+		waitingSenders.incrementAndGet();
+
+		synchronized (kexqueue) {
+
+			waitingSenders.decrementAndGet();
+
+			try {
+				for (int i = 0; i < count; i++) {
+					writeMessage(writer, isActivity);
 				}
+			} finally {
+				// Earlier senders may have left their packets for us to flush
+				flushIfIdle();
 			}
+		}
+	}
 
-			try {
-				outgoingMessage.reset();
+	/**
+	 * Write and send, or queue during a key exchange, a single message. Must
+	 * be called whilst holding the kexqueue lock.
+	 */
+	private void writeMessage(MessageWriter writer, boolean isActivity)
+			throws SshException {
+
+		outgoingMessage.reset();
+		outgoingMessage.move(PACKET_HEADER_LENGTH);
+
+		try {
+			writer.writeMessage(outgoingMessage);
+		} catch (IOException ex) {
+			throw new SshException(ex, SshException.INTERNAL_ERROR);
+		}
+
+		if (currentState == PERFORMING_KEYEXCHANGE
+				&& !isTransportMessage(outgoingMessage.array()[PACKET_HEADER_LENGTH])) {
+			byte[] msgdata = new byte[outgoingMessage.size()
+					- PACKET_HEADER_LENGTH];
+			System.arraycopy(outgoingMessage.array(), PACKET_HEADER_LENGTH,
+					msgdata, 0, msgdata.length);
+			if (queueForKeyExchange(msgdata)) {
+				return;
+			}
+
+			// The key exchange completed whilst we waited and the
+			// outgoing buffer has since been used to send the queue
+			outgoingMessage.reset();
+			outgoingMessage.move(PACKET_HEADER_LENGTH);
+			outgoingMessage.write(msgdata, 0, msgdata.length);
+		}
+
+		sendPacket(isActivity);
+	}
+
+	/**
+	 * Hold a message back until the key exchange in progress completes. Once
+	 * the queue holds the configured limit the caller is blocked until the
+	 * key exchange completes, so a fast producer cannot queue without bound.
+	 * The caller is only blocked whilst another thread is reading from the
+	 * transport, since that thread is needed to complete the exchange, and
+	 * any coalesced packets are flushed first so the other side sees them.
+	 * Must be called whilst holding the kexqueue lock.
+	 * 
+	 * @param msgdata
+	 * @return <code>true</code> if the message was queued, <code>false</code>
+	 *         if the key exchange finished whilst waiting and the message
+	 *         should be sent now
+	 */
+	private boolean queueForKeyExchange(byte[] msgdata) throws SshException {
 
-				int padding = 4;
+		long blocked = 0;
 
-				// Compress the payload if necersary
-				if (outgoingCompression != null && isOutgoingCompressing) {
-					msgdata = outgoingCompression.compress(msgdata, 0,
-							msgdata.length);
+		try {
+			while (currentState == PERFORMING_KEYEXCHANGE
+					&& kexqueueBytes > 0
+					&& kexqueueBytes + msgdata.length > transportContext
+							.getKeyExchangeQueueLimit()
+					&& canWaitForKeyExchange()) {
+				if (blocked == 0) {
+					blocked = System.currentTimeMillis();
+					flushOutput();
 				}
+				kexqueue.wait(1000);
+			}
+		} catch (InterruptedException ex) {
+			// Queue the message rather than lose it
+			Thread.currentThread().interrupt();
+		} finally {
+			if (blocked > 0) {
+				stats.backPressureTime += System.currentTimeMillis() - blocked;
+			}
+		}
 
-				// Determine the padding length
-				padding += ((outgoingCipherLength - ((msgdata.length + 5 + padding) % outgoingCipherLength)) % outgoingCipherLength);
+		if (currentState != PERFORMING_KEYEXCHANGE) {
+			return false;
+		}
 
-				// Write the packet length field
-				outgoingMessage.writeInt(msgdata.length + 1 + padding);
+		stats.stallStarted();
+		kexqueue.addElement(msgdata);
+		kexqueueBytes += msgdata.length;
+		return true;
+	}
 
-				// Write the padding length
-				outgoingMessage.write(padding);
+	private boolean canWaitForKeyExchange() {
+		Thread reader = readingThread;
+		return reader != null && reader != Thread.currentThread();
+	}
 
-				// Write the message payload
-				outgoingMessage.write(msgdata, 0, msgdata.length);
+	/**
+	 * Write any packets held back by write coalescing to the socket.
+	 * 
+	 * @throws SshException
+	 * @see Ssh2Context#setWriteCoalescing(boolean)
+	 */
+	public void flush() throws SshException {
+		synchronized (kexqueue) {
+			flushOutput();
+		}
+	}
 
-				// Create some random data for the padding
-				ComponentManager
-						.getInstance()
-						.getRND()
-						.nextBytes(outgoingMessage.array(),
-								outgoingMessage.size(), padding);
-				outgoingMessage.move(padding);
+	/**
+	 * When coalescing writes, flush the packets written so far unless another
+	 * thread is waiting to send and will flush them along with its own; the
+	 * flush is not delayed past the configured maximum write latency. Must be
+	 * called whilst holding the kexqueue lock.
+	 */
+	private void flushIfIdle() throws SshException {
+		if (unflushedSince == 0) {
+			return;
+		}
 
-				// Generate the MAC
-				if (outgoingMac != null) {
-					outgoingMac.generate(outgoingSequence,
-							outgoingMessage.array(), 0, outgoingMessage.size(),
-							outgoingMessage.array(), outgoingMessage.size());
+		if (waitingSenders.get() > 0
+				&& System.currentTimeMillis() - unflushedSince < transportContext
+						.getMaxWriteLatency()) {
+			return;
+		}
 
-				}
+		flushOutput();
+	}
 
-				// Perfrom encrpytion
-				if (encryption != null) {
-					encryption.transform(outgoingMessage.array(), 0,
-							outgoingMessage.array(), 0, outgoingMessage.size());
+	/**
+	 * Never block waiting for a message whilst coalesced packets, which may
+	 * be what the other side is waiting for, are still held back.
+	 */
+	private void flushBeforeRead() throws SshException {
+		if (unflushedSince != 0) {
+			synchronized (kexqueue) {
+				flushOutput();
+			}
+		}
+	}
+
+	private void flushOutput() throws SshException {
+		if (unflushedSince == 0) {
+			return;
+		}
+
+		try {
+			unflushedSince = 0;
+			transportOut.flush();
+		} catch (IOException ex) {
+			internalDisconnect();
+			throw new SshException("Unexpected termination: "
+					+ ex.getMessage(), SshException.UNEXPECTED_TERMINATION);
+		}
+	}
+
+	/**
+	 * Complete the packet whose payload has been written into the outgoing
+	 * buffer after the reserved header space, then send it. Must be called
+	 * whilst holding the kexqueue lock.
+	 */
+	private void sendPacket(boolean isActivity) throws SshException {
+
+		if (Log.isDebugEnabled()) {
+			if (verbose) {
+				Log.debug(this, "Sending transport protocol message");
+			}
+		}
+
+		try {
+			int payloadLength = outgoingMessage.size() - PACKET_HEADER_LENGTH;
+			int messageid = outgoingMessage.array()[PACKET_HEADER_LENGTH] & 0xFF;
+
+			// Compress the payload if necersary
+			if (outgoingCompression != null && isOutgoingCompressing) {
+				if (compressedMessage == null) {
+					compressedMessage = new ByteArrayWriter(
+							outgoingMessage.array().length);
+				}
+				compressedMessage.reset();
+				compressedMessage.move(PACKET_HEADER_LENGTH);
+				long started = stats.now();
+				if (outgoingCompression instanceof BufferedCompression) {
+					((BufferedCompression) outgoingCompression).compress(
+							outgoingMessage.array(), PACKET_HEADER_LENGTH,
+							payloadLength, compressedMessage);
+				} else {
+					byte[] compressed = outgoingCompression.compress(
+							outgoingMessage.array(), PACKET_HEADER_LENGTH,
+							payloadLength);
+					compressedMessage.write(compressed, 0, compressed.length);
 				}
+				stats.outCompressionTime += stats.now() - started;
+				payloadLength = compressedMessage.size() - PACKET_HEADER_LENGTH;
 
-				outgoingMessage.move(outgoingMacLength);
-				outgoingBytes += outgoingMessage.size();
+				ByteArrayWriter tmp = outgoingMessage;
+				outgoingMessage = compressedMessage;
+				compressedMessage = tmp;
+			}
 
-				// Send!
-				transportOut.write(outgoingMessage.array(), 0,
+			boolean aead = encryption != null && encryption.isAEAD();
+			boolean etm = !aead && outgoingMac instanceof EncryptThenMac;
+
+			// Determine the padding length; AEAD ciphers and encrypt-then-MAC
+			// do not encrypt the packet length so it is not included in the
+			// block alignment
+			int padding = 4;
+			int aligned = aead || etm ? payloadLength + 1 : payloadLength + 5;
+			padding += ((outgoingCipherLength - ((aligned + padding) % outgoingCipherLength)) % outgoingCipherLength);
+
+			// Write the packet length and padding length into the space
+			// reserved at the start of the buffer
+			ByteArrayWriter.encodeInt(outgoingMessage.array(), 0,
+					payloadLength + 1 + padding);
+			outgoingMessage.array()[4] = (byte) padding;
+
+			outgoingMessage.ensureCapacity(padding + outgoingMacLength);
+
+			// Create some random data for the padding
+			ComponentManager
+					.getInstance()
+					.getRND()
+					.nextBytes(outgoingMessage.array(), outgoingMessage.size(),
+							padding);
+			outgoingMessage.move(padding);
+
+			// Generate the MAC
+			long started = stats.now();
+			if (outgoingMac != null && !etm) {
+				outgoingMac.generate(outgoingSequence, outgoingMessage.array(),
+						0, outgoingMessage.size(), outgoingMessage.array(),
 						outgoingMessage.size());
-				transportOut.flush();
+				long finished = stats.now();
+				stats.outMacTime += finished - started;
+				started = finished;
+			}
 
-				if (isActivity)
-					lastActivity = System.currentTimeMillis();
+			// Perfrom encrpytion
+			if (aead) {
+				// Encrypts and writes the authentication tag after the packet
+				encryption.encryptPacket(outgoingSequence,
+						outgoingMessage.array(), 0, outgoingMessage.size() - 4);
+				stats.outCipherTime += stats.now() - started;
+			} else if (etm) {
+				// Encrypt everything but the length then MAC the result
+				if (encryption != null) {
+					encryption.transform(outgoingMessage.array(), 4,
+							outgoingMessage.array(), 4,
+							outgoingMessage.size() - 4);
+				}
+				long finished = stats.now();
+				stats.outCipherTime += finished - started;
+				outgoingMac.generate(outgoingSequence, outgoingMessage.array(),
+						0, outgoingMessage.size(), outgoingMessage.array(),
+						outgoingMessage.size());
+				stats.outMacTime += stats.now() - finished;
+			} else if (encryption != null) {
+				encryption.transform(outgoingMessage.array(), 0,
+						outgoingMessage.array(), 0, outgoingMessage.size());
+				stats.outCipherTime += stats.now() - started;
+			}
 
-				if (Log.isDebugEnabled()) {
-					if (verbose) {
-						Log.debug(
-								this,
-								"Sent "
-										+ outgoingMessage.size()
-										+ " bytes of transport data outgoingSequence="
-										+ outgoingSequence
-										+ " totalBytesSinceKEX="
-										+ numOutgoingBytesSinceKEX);
-					}
+			outgoingMessage.move(outgoingMacLength);
+			outgoingBytes += outgoingMessage.size();
+			stats.packetsOut++;
+
+			// Send!
+			transportOut.write(outgoingMessage.array(), 0,
+					outgoingMessage.size());
+
+			if (transportContext.isWriteCoalescing()
+					&& (messageid < 1 || messageid > 49)
+					&& currentState != PERFORMING_KEYEXCHANGE) {
+				// The caller decides when to flush. Transport layer messages
+				// are always flushed, since the reading thread may next block
+				// waiting for the reply whilst holding the send lock
+				if (unflushedSince == 0) {
+					unflushedSince = System.currentTimeMillis();
 				}
+			} else {
+				unflushedSince = 0;
+				transportOut.flush();
+			}
 
-				outgoingSequence++;
-				numOutgoingBytesSinceKEX += msgdata.length;
-				numOutgoingPacketsSinceKEX++;
+			if (isActivity)
+				lastActivity = System.currentTimeMillis();
 
-				if (outgoingSequence >= 4294967296L) {
-					outgoingSequence = 0;
+			if (Log.isDebugEnabled()) {
+				if (verbose) {
+					Log.debug(this, "Sent " + outgoingMessage.size()
+							+ " bytes of transport data outgoingSequence="
+							+ outgoingSequence + " totalBytesSinceKEX="
+							+ numOutgoingBytesSinceKEX);
 				}
+			}
 
-				if (!transportContext.isKeyReExchangeDisabled()) {
-					if (numOutgoingBytesSinceKEX >= MAX_NUM_BYTES_BEFORE_REKEY
-							|| numOutgoingPacketsSinceKEX >= MAX_NUM_PACKETS_BEFORE_REKEY) {
+			outgoingSequence++;
+			numOutgoingBytesSinceKEX += payloadLength;
+			numOutgoingPacketsSinceKEX++;
 
-						if (Log.isDebugEnabled()) {
-							Log.debug(this,
-									"Requesting key re-exchange");
-						}
-						sendKeyExchangeInit(false);
+			if (outgoingSequence >= 4294967296L) {
+				outgoingSequence = 0;
+			}
+
+			if (!transportContext.isKeyReExchangeDisabled()) {
+				if (numOutgoingBytesSinceKEX >= transportContext
+						.getRekeyBytesThreshold()
+						|| numOutgoingPacketsSinceKEX >= transportContext
+								.getRekeyPacketsThreshold()) {
+
+					if (Log.isDebugEnabled()) {
+						Log.debug(this, "Requesting key re-exchange");
 					}
+					sendKeyExchangeInit(false);
 				}
-			} catch (IOException ex) {
-				internalDisconnect();
-				throw new SshException("Unexpected termination: "
-						+ ex.getMessage(), SshException.UNEXPECTED_TERMINATION);
 			}
+		} catch (IOException ex) {
+			internalDisconnect();
+			throw new SshException("Unexpected termination: "
+					+ ex.getMessage(), SshException.UNEXPECTED_TERMINATION);
 		}
-
 	}
 
 	/**
@@ -575,6 +938,50 @@ public class TransportProtocol implements SshMessageReader {
 
 	}
 
+	public ByteArrayReader nextMessage(BufferPool pool) throws SshException {
+		synchronized (transportIn) {
+
+			byte[] msg;
+
+			do {
+				msg = readMessage(pool);
+			} while (processMessage(msg));
+			return new ByteArrayReader(msg, 0, incomingPayloadLength);
+		}
+	}
+
+	public ByteArrayReader nextAvailableMessage(BufferPool pool)
+			throws SshException {
+		synchronized (transportIn) {
+
+			byte[] msg;
+
+			do {
+				msg = readMessage(pool, true);
+				if (msg == null) {
+					return null;
+				}
+			} while (processMessage(msg));
+			return new ByteArrayReader(msg, 0, incomingPayloadLength);
+		}
+	}
+
+	/**
+	 * The number of bytes that can be read without blocking, or
+	 * Integer.MAX_VALUE if the transport cannot tell or has reached the end
+	 * of the stream, so that the read goes ahead and reports it.
+	 */
+	private int bufferedBytes() {
+		if (!(provider instanceof NonBlockingTransport)) {
+			return Integer.MAX_VALUE;
+		}
+		int available = ((NonBlockingTransport) provider).available();
+		if (available < 0) {
+			return Integer.MAX_VALUE;
+		}
+		return readAheadLimit - readAheadPosition + available;
+	}
+
 	void readWithTimeout(byte[] buf, int off, int len, int timeoutMillis,
 			boolean isPartialMessage) throws SshException {
 
@@ -591,7 +998,7 @@ public class TransportProtocol implements SshMessageReader {
 		try {
 			do {
 				try {
-					int read = transportIn.read(buf, off + count, len - count);
+					int read = readAhead(buf, off + count, len - count);
 
 					if (read == -1)
 						throw new SshException("EOF received from remote side",
@@ -712,6 +1119,50 @@ public class TransportProtocol implements SshMessageReader {
 		}
 	}
 
+	/**
+	 * Read from the read-ahead buffer, refilling it with a single read of as
+	 * much data as the transport has available when it is empty. Reads
+	 * larger than the buffer bypass it.
+	 */
+	private int readAhead(byte[] buf, int off, int len) throws IOException {
+
+		if (readAheadPosition == readAheadLimit) {
+
+			if (len >= readAheadBuffer.length) {
+				return transportIn.read(buf, off, len);
+			}
+
+			int read;
+			try {
+				read = transportIn.read(readAheadBuffer, 0,
+						readAheadBuffer.length);
+			} catch (InterruptedIOException ex) {
+				// Any data that did arrive is in our buffer so treat this as
+				// a short read rather than a timeout
+				if (ex.bytesTransferred <= 0) {
+					throw ex;
+				}
+				read = ex.bytesTransferred;
+			}
+
+			if (read <= 0) {
+				return read;
+			}
+
+			readAheadPosition = 0;
+			readAheadLimit = read;
+		}
+
+		int count = Math.min(len, readAheadLimit - readAheadPosition);
+		System.arraycopy(readAheadBuffer, readAheadPosition, buf, off, count);
+		readAheadPosition += count;
+		return count;
+	}
+
+	public boolean hasBufferedData() {
+		return readAheadPosition < readAheadLimit;
+	}
+
 	private int configureSocketTimeout(int timeout) {
 
 		if (provider instanceof SocketTimeoutSupport) {
@@ -728,6 +1179,30 @@ public class TransportProtocol implements SshMessageReader {
 	}
 
 	byte[] readMessage() throws SshException {
+		return readMessage(null);
+	}
+
+	/**
+	 * Read the next packet from the transport. When a pool is supplied,
+	 * channel data payloads are read into a pooled buffer that
+	 * may be larger than the payload; the actual length is left in
+	 * incomingPayloadLength. All other payloads are exactly sized.
+	 */
+	byte[] readMessage(BufferPool pool) throws SshException {
+		return readMessage(pool, false);
+	}
+
+	/**
+	 * Read the next packet, or when <code>available</code> is set only read
+	 * as far as the data already received allows without blocking. The
+	 * packet length is kept once the header has been decrypted, so a packet
+	 * that has not fully arrived is resumed by the next call.
+	 * 
+	 * @return the payload, or <code>null</code> if only reading available
+	 *         data and the packet has not fully arrived
+	 */
+	byte[] readMessage(BufferPool pool, boolean available)
+			throws SshException {
 		if (Log.isDebugEnabled()) {
 			if (verbose) {
 				Log.debug(this, "transport read message");
@@ -736,6 +1211,8 @@ public class TransportProtocol implements SshMessageReader {
 
 		synchronized (transportIn) {
 
+			readingThread = Thread.currentThread();
+
 			try {
 
 				if (Log.isDebugEnabled()) {
@@ -744,113 +1221,240 @@ public class TransportProtocol implements SshMessageReader {
 					}
 				}
 
-				readWithTimeout(incomingMessage, 0, incomingCipherLength,
-						transportContext.getPartialMessageTimeout(), false);
+				boolean aead = decryption != null && decryption.isAEAD();
+				boolean etm = !aead && incomingMac instanceof EncryptThenMac;
 
-				// Decrypt the data if we have a valid cipher
-				if (decryption != null) {
-					decryption.transform(incomingMessage, 0, incomingMessage,
-							0, incomingCipherLength);
+				// With encrypt-then-MAC only the cleartext packet length is
+				// read before the rest of the packet
+				int headerLength = etm ? 4 : incomingCipherLength;
+				long started;
 
-					// Preview the message length
-				}
-				int msglen = (int) ByteArrayReader.readInt(incomingMessage, 0);
+				if (incomingPacketLength < 0) {
 
-				if (msglen <= 0)
-					throw new SshException(
-							"Server sent invalid message length of " + msglen
-									+ "!", SshException.PROTOCOL_VIOLATION);
+					if (available && bufferedBytes() < headerLength) {
+						return null;
+					}
 
-				int padlen = (incomingMessage[4] & 0xFF);
-				int remaining = (msglen - (incomingCipherLength - 4));
+					if (!available) {
+						flushBeforeRead();
+					}
 
-				if (Log.isDebugEnabled()) {
-					if (verbose) {
-						Log.debug(this,
-								"Incoming transport message msglen=" + msglen
-										+ " padlen=" + padlen);
+					readWithTimeout(incomingMessage, 0, headerLength,
+							transportContext.getPartialMessageTimeout(),
+							false);
+
+					// Decrypt the data if we have a valid cipher. The packet
+					// length is not encrypted by AEAD ciphers or when using
+					// encrypt-then-MAC
+					if (decryption != null && !aead && !etm) {
+						started = stats.now();
+						decryption.transform(incomingMessage, 0,
+								incomingMessage, 0, incomingCipherLength);
+						stats.inCipherTime += stats.now() - started;
+
+						// Preview the message length
 					}
+					int msglen = aead ? decryption.getPacketLength(
+							incomingSequence, incomingMessage, 0)
+							: (int) ByteArrayReader
+									.readInt(incomingMessage, 0);
+
+					if (msglen <= 0)
+						throw new SshException(
+								"Server sent invalid message length of "
+										+ msglen + "!",
+								SshException.PROTOCOL_VIOLATION);
+
+					incomingPacketLength = msglen;
 				}
 
+				int msglen = incomingPacketLength;
+				int remaining = (msglen - (headerLength - 4));
+
 				// Verify that the packet length is good
 				if (remaining < 0) {
 					internalDisconnect();
 					throw new SshException(
 							"EOF whilst reading message data block",
 							SshException.UNEXPECTED_TERMINATION);
-				} else if (remaining > incomingMessage.length
-						- incomingCipherLength) {
+				} else if (remaining + incomingMacLength > incomingMessage.length
+						- headerLength) {
 
-					if (remaining + incomingCipherLength + incomingMacLength > transportContext
+					if (remaining + headerLength + incomingMacLength > transportContext
 							.getMaximumPacketLength()) {
 						internalDisconnect();
 						throw new SshException(
 								"Incoming packet length violates SSH protocol ["
-										+ remaining + incomingCipherLength
+										+ remaining + headerLength
 										+ " bytes]",
 								SshException.UNEXPECTED_TERMINATION);
 					}
 					// Resize the incomingMessage buffer
-					byte[] tmp = new byte[remaining + incomingCipherLength
+					byte[] tmp = new byte[remaining + headerLength
 							+ incomingMacLength];
-					System.arraycopy(incomingMessage, 0, tmp, 0,
-							incomingCipherLength);
+					System.arraycopy(incomingMessage, 0, tmp, 0, headerLength);
 					incomingMessage = tmp;
 
 				}
 
-				// Read, decrypt and save the remaining data
-				if (remaining > 0) {
+				if (available
+						&& bufferedBytes() < remaining + incomingMacLength) {
+					// The transport stops reading when its buffer is full, so
+					// it must be able to hold the rest of the packet
+					((NonBlockingTransport) provider)
+							.ensureBufferCapacity(remaining + incomingMacLength);
+					return null;
+				}
 
-					readWithTimeout(incomingMessage, incomingCipherLength,
-							remaining,
-							transportContext.getPartialMessageTimeout(), true);
+				incomingPacketLength = -1;
 
-					if (decryption != null) {
-						decryption.transform(incomingMessage,
-								incomingCipherLength, incomingMessage,
-								incomingCipherLength, remaining);
-					}
-					// Verify the message
-				}
-				if (incomingMac != null) {
-					readWithTimeout(incomingMessage, incomingCipherLength
-							+ remaining, incomingMacLength,
+				if (etm) {
+					// Read the rest of the packet and the mac together
+					readWithTimeout(incomingMessage, headerLength, remaining
+							+ incomingMacLength,
 							transportContext.getPartialMessageTimeout(), true);
 
-					// Verify the mac
+					// Verify the mac before spending any time decrypting
+					started = stats.now();
 					if (!incomingMac.verify(incomingSequence, incomingMessage,
-							0, incomingCipherLength + remaining,
-							incomingMessage, incomingCipherLength + remaining)) {
+							0, headerLength + remaining, incomingMessage,
+							headerLength + remaining)) {
 						disconnect(TransportProtocol.MAC_ERROR,
 								"Corrupt Mac on input");
 						throw new SshException("Corrupt Mac on input",
 								SshException.PROTOCOL_VIOLATION);
 					}
+					stats.inMacTime += stats.now() - started;
+
+					if (decryption != null) {
+						started = stats.now();
+						decryption.transform(incomingMessage, headerLength,
+								incomingMessage, headerLength, remaining);
+						stats.inCipherTime += stats.now() - started;
+					}
+				} else {
+
+					// Read, decrypt and save the remaining data
+					if (remaining > 0) {
+
+						readWithTimeout(incomingMessage, headerLength,
+								remaining,
+								transportContext.getPartialMessageTimeout(),
+								true);
+
+						if (decryption != null && !aead) {
+							started = stats.now();
+							decryption.transform(incomingMessage,
+									headerLength, incomingMessage,
+									headerLength, remaining);
+							stats.inCipherTime += stats.now() - started;
+						}
+						// Verify the message
+					}
+					if (aead) {
+						readWithTimeout(incomingMessage, headerLength
+								+ remaining, incomingMacLength,
+								transportContext.getPartialMessageTimeout(),
+								true);
+
+						// Verify the tag and decrypt the packet
+						started = stats.now();
+						if (!decryption.decryptPacket(incomingSequence,
+								incomingMessage, 0, msglen)) {
+							disconnect(TransportProtocol.MAC_ERROR,
+									"Corrupt Mac on input");
+							throw new SshException("Corrupt Mac on input",
+									SshException.PROTOCOL_VIOLATION);
+						}
+						stats.inCipherTime += stats.now() - started;
+					} else if (incomingMac != null) {
+						readWithTimeout(incomingMessage, headerLength
+								+ remaining, incomingMacLength,
+								transportContext.getPartialMessageTimeout(),
+								true);
+
+						// Verify the mac
+						started = stats.now();
+						if (!incomingMac.verify(incomingSequence,
+								incomingMessage, 0, headerLength + remaining,
+								incomingMessage, headerLength + remaining)) {
+							disconnect(TransportProtocol.MAC_ERROR,
+									"Corrupt Mac on input");
+							throw new SshException("Corrupt Mac on input",
+									SshException.PROTOCOL_VIOLATION);
+						}
+						stats.inMacTime += stats.now() - started;
+					}
+				}
+
+				// The padding length is only readable once the whole packet
+				// has been decrypted
+				int padlen = (incomingMessage[4] & 0xFF);
+
+				if (Log.isDebugEnabled()) {
+					if (verbose) {
+						Log.debug(this,
+								"Incoming transport message msglen=" + msglen
+										+ " padlen=" + padlen);
+					}
 				}
 
 				if (++incomingSequence >= 4294967296L) {
 					incomingSequence = 0;
 				}
 
-				incomingBytes += incomingCipherLength + remaining
-						+ incomingMacLength;
+				incomingBytes += headerLength + remaining + incomingMacLength;
+				stats.packetsIn++;
 
-				byte[] payload = new byte[(msglen + 4) - padlen - 5];
-				System.arraycopy(incomingMessage, 5, payload, 0, payload.length);
+				int payloadLength = (msglen + 4) - padlen - 5;
+				boolean compressed = incomingCompression != null
+						&& isIncomingCompressing;
+
+				byte[] source = incomingMessage;
+				int offset = 5;
 
 				// Uncompress the message payload if necersary
-				if (incomingCompression != null && isIncomingCompressing) {
-					return incomingCompression.uncompress(payload, 0,
-							payload.length);
+				if (compressed) {
+					started = stats.now();
+					if (incomingCompression instanceof BufferedCompression) {
+						if (uncompressedMessage == null) {
+							uncompressedMessage = new ByteArrayWriter(
+									incomingMessage.length);
+						}
+						uncompressedMessage.reset();
+						((BufferedCompression) incomingCompression)
+								.uncompress(incomingMessage, 5, payloadLength,
+										uncompressedMessage);
+						source = uncompressedMessage.array();
+						payloadLength = uncompressedMessage.size();
+					} else {
+						source = incomingCompression.uncompress(
+								incomingMessage, 5, payloadLength);
+						payloadLength = source.length;
+					}
+					stats.inCompressionTime += stats.now() - started;
+					offset = 0;
 				}
 
-				numIncomingBytesSinceKEX += payload.length;
+				byte[] payload;
+				if (pool != null
+						&& payloadLength > 0
+						&& (source[offset] == Ssh2Channel.SSH_MSG_CHANNEL_DATA || source[offset] == Ssh2Channel.SSH_MSG_CHANNEL_EXTENDED_DATA)) {
+					payload = pool.allocate(payloadLength);
+				} else {
+					payload = new byte[payloadLength];
+				}
+				System.arraycopy(source, offset, payload, 0, payloadLength);
+				incomingPayloadLength = payloadLength;
+
+				numIncomingBytesSinceKEX += payloadLength;
 				numIncomingPacketsSinceKEX++;
 
 				if (!transportContext.isKeyReExchangeDisabled()) {
-					if (numIncomingBytesSinceKEX >= MAX_NUM_BYTES_BEFORE_REKEY
-							|| numIncomingPacketsSinceKEX >= MAX_NUM_PACKETS_BEFORE_REKEY) {
+					if (numIncomingBytesSinceKEX >= transportContext
+							.getRekeyBytesThreshold()
+							|| numIncomingPacketsSinceKEX >= transportContext
+									.getRekeyPacketsThreshold()) {
 						sendKeyExchangeInit(false);
 					}
 				}
@@ -874,6 +1478,8 @@ public class TransportProtocol implements SshMessageReader {
 						+ incomingSequence + " bytesIn = " + incomingBytes
 						+ " bytesOut = " + outgoingBytes,
 						SshException.UNEXPECTED_TERMINATION, ex);
+			} finally {
+				readingThread = null;
 			}
 		}
 
@@ -1074,21 +1680,34 @@ public class TransportProtocol implements SshMessageReader {
 
 				SshCipher decryption = (SshCipher) transportContext
 						.supportedCiphersSC().getInstance(cipherSC);
-				String macCS = selectNegotiatedComponent(
-						transportContext.supportedMacsCS().list(
-								transportContext.getPreferredMacCS()),
-						checkValidString("client->server hmac", serverCSMacs));
-
-				String macSC = selectNegotiatedComponent(
-						transportContext.supportedMacsSC().list(
-								transportContext.getPreferredMacSC()),
-						checkValidString("server->client hmac", serverSCMacs));
 
-				SshHmac outgoingMac = (SshHmac) transportContext
-						.supportedMacsCS().getInstance(macCS);
+				// AEAD ciphers authenticate the packets themselves so the
+				// negotiated MAC is not used
+				String macCS = IMPLICIT_MAC;
+				SshHmac outgoingMac = null;
+
+				if (!encryption.isAEAD()) {
+					macCS = selectNegotiatedComponent(
+							transportContext.supportedMacsCS().list(
+									transportContext.getPreferredMacCS()),
+							checkValidString("client->server hmac",
+									serverCSMacs));
+					outgoingMac = (SshHmac) transportContext
+							.supportedMacsCS().getInstance(macCS);
+				}
 
-				SshHmac incomingMac = (SshHmac) transportContext
-						.supportedMacsSC().getInstance(macSC);
+				String macSC = IMPLICIT_MAC;
+				SshHmac incomingMac = null;
+
+				if (!decryption.isAEAD()) {
+					macSC = selectNegotiatedComponent(
+							transportContext.supportedMacsSC().list(
+									transportContext.getPreferredMacSC()),
+							checkValidString("server->client hmac",
+									serverSCMacs));
+					incomingMac = (SshHmac) transportContext
+							.supportedMacsSC().getInstance(macSC);
+				}
 
 				String compressionCS = selectNegotiatedComponent(
 						transportContext.supportedCompressionsCS().list(
@@ -1109,6 +1728,11 @@ public class TransportProtocol implements SshMessageReader {
 							.supportedCompressionsCS().getInstance(
 									compressionCS);
 					outgoingCompression.init(SshCompression.DEFLATER, 6);
+					if (outgoingCompression instanceof AdaptiveCompression) {
+						((AdaptiveCompression) outgoingCompression)
+								.setAdaptive(transportContext
+										.isAdaptiveCompression());
+					}
 				}
 
 				SshCompression incomingCompression = null;
@@ -1242,11 +1866,16 @@ public class TransportProtocol implements SshMessageReader {
 						makeSshKey('C'));
 				outgoingCipherLength = encryption.getBlockSize();
 
-				outgoingMac.init(makeSshKey('E'));
-				outgoingMacLength = outgoingMac.getMacLength();
+				if (outgoingMac != null) {
+					outgoingMac.init(makeSshKey('E'));
+					outgoingMacLength = outgoingMac.getMacLength();
+				} else {
+					outgoingMacLength = encryption.getTagLength();
+				}
 
 				this.encryption = encryption;
 				this.outgoingMac = outgoingMac;
+				releaseCompression(this.outgoingCompression);
 				this.outgoingCompression = outgoingCompression;
 
 				do {
@@ -1309,11 +1938,16 @@ public class TransportProtocol implements SshMessageReader {
 						makeSshKey('D'));
 				incomingCipherLength = decryption.getBlockSize();
 
-				incomingMac.init(makeSshKey('F'));
-				incomingMacLength = incomingMac.getMacLength();
+				if (incomingMac != null) {
+					incomingMac.init(makeSshKey('F'));
+					incomingMacLength = incomingMac.getMacLength();
+				} else {
+					incomingMacLength = decryption.getTagLength();
+				}
 
 				this.decryption = decryption;
 				this.incomingMac = incomingMac;
+				releaseCompression(this.incomingCompression);
 				this.incomingCompression = incomingCompression;
 
 				// Nasty hack for zlib@openssh.com compression type
@@ -1330,12 +1964,18 @@ public class TransportProtocol implements SshMessageReader {
 				// synchronized(kexqueue) {
 
 				currentState = TransportProtocol.CONNECTED;
+				stats.keyExchangeCompleted();
 
 				for (Enumeration<byte[]> e = kexqueue.elements(); e
 						.hasMoreElements();) {
 					sendMessage(e.nextElement(), true);
 				}
 				kexqueue.removeAllElements();
+				kexqueueBytes = 0;
+				stats.stallEnded();
+
+				// Release any senders blocked on a full queue
+				kexqueue.notifyAll();
 				// }
 
 				// Clean up and reset any parameters
@@ -1421,6 +2061,10 @@ public class TransportProtocol implements SshMessageReader {
 		} catch (IOException ex) {
 		}
 
+		releaseQueuedSenders();
+		releaseCompression(outgoingCompression);
+		releaseCompression(incomingCompression);
+
 		for (Enumeration<TransportProtocolListener> e = listeners.elements(); e
 				.hasMoreElements();) {
 			TransportProtocolListener l = e.nextElement();
@@ -1445,6 +2089,10 @@ public class TransportProtocol implements SshMessageReader {
 		} catch (IOException ex) {
 		}
 
+		releaseQueuedSenders();
+		releaseCompression(outgoingCompression);
+		releaseCompression(incomingCompression);
+
 		for (int i = 0; i < shutdownHooks.size(); i++) {
 			try {
 				((Runnable) shutdownHooks.elementAt(i)).run();
@@ -1453,6 +2101,25 @@ public class TransportProtocol implements SshMessageReader {
 		}
 	}
 
+	/**
+	 * Free any native resources held by a compression that is no longer
+	 * needed.
+	 */
+	private void releaseCompression(SshCompression compression) {
+		if (compression instanceof Closeable) {
+			try {
+				((Closeable) compression).close();
+			} catch (IOException ex) {
+			}
+		}
+	}
+
+	private void releaseQueuedSenders() {
+		synchronized (kexqueue) {
+			kexqueue.notifyAll();
+		}
+	}
+
 	void addShutdownHook(Runnable r) {
 		if (r != null)
 			shutdownHooks.addElement(r);
@@ -1631,6 +2298,7 @@ public class TransportProtocol implements SshMessageReader {
 				numOutgoingPacketsSinceKEX = 0;
 
 				currentState = TransportProtocol.PERFORMING_KEYEXCHANGE;
+				stats.keyExchangeStarted();
 
 				byte[] cookie = new byte[16];
 				ComponentManager.getInstance().getRND().nextBytes(cookie);
@@ -1704,22 +2372,26 @@ public class TransportProtocol implements SshMessageReader {
 
 			keydata.write(data);
 
-			// Now do the next 20
-			hash.reset();
+			// Extend the key until there is enough data for any cipher, each
+			// round hashes the secret, the exchange hash and all of the key
+			// data created so far
+			while (keydata.size() < MIN_KEY_DATA_LENGTH) {
+				hash.reset();
 
-			// Put the dh k value in again
-			hash.putBigInteger(keyExchange.getSecret());
+				// Put the dh k value in again
+				hash.putBigInteger(keyExchange.getSecret());
 
-			// And the exchange hash
-			hash.putBytes(keyExchange.getExchangeHash());
+				// And the exchange hash
+				hash.putBytes(keyExchange.getExchangeHash());
 
-			// Finally the first 20 bytes of data we created
-			hash.putBytes(data);
+				// Finally the key data we have created
+				hash.putBytes(keydata.toByteArray());
 
-			data = hash.doFinal();
+				data = hash.doFinal();
 
-			// Put it all together
-			keydata.write(data);
+				// Put it all together
+				keydata.write(data);
+			}
 
 			// Return it
 			return keydata.toByteArray();
@@ -0,0 +1,251 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh2;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sshtools.logging.Log;
+
+/**
+ * <p>
+ * The statistics of a single {@link TransportProtocol}. Counters are updated
+ * by the transport whilst it holds the lock for the direction concerned, so
+ * each field only ever has a single writer; they are volatile so that a
+ * management client sees current values.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class TransportStats implements TransportStatsMBean {
+
+	static int nextId = 0;
+
+	TransportProtocol transport;
+	boolean timed;
+	ObjectName objectName;
+
+	volatile long packetsIn;
+	volatile long packetsOut;
+
+	// Nanoseconds, only collected when timed
+	volatile long inCipherTime;
+	volatile long outCipherTime;
+	volatile long inMacTime;
+	volatile long outMacTime;
+	volatile long inCompressionTime;
+	volatile long outCompressionTime;
+
+	long keyExchanges;
+	long keyExchangeStarted;
+	volatile long lastRekeyDuration;
+	volatile long totalRekeyTime;
+
+	volatile long stallStarted;
+	volatile long stallTime;
+	volatile long lastStallTime;
+	volatile long maxStallTime;
+	volatile long backPressureTime;
+
+	TransportStats(TransportProtocol transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Get a timestamp for measuring time spent in the cipher, MAC and
+	 * compression; always zero when timing is not enabled so the difference
+	 * of two timestamps adds nothing.
+	 */
+	long now() {
+		return timed ? System.nanoTime() : 0;
+	}
+
+	synchronized void keyExchangeStarted() {
+		if (keyExchangeStarted == 0) {
+			keyExchangeStarted = System.currentTimeMillis();
+		}
+	}
+
+	synchronized void keyExchangeCompleted() {
+		if (keyExchangeStarted == 0) {
+			return;
+		}
+
+		long duration = System.currentTimeMillis() - keyExchangeStarted;
+		keyExchangeStarted = 0;
+
+		// The initial key exchange is part of connecting, not a rekey
+		if (keyExchanges++ > 0) {
+			lastRekeyDuration = duration;
+			totalRekeyTime += duration;
+			AggregateTransportStats.getInstance().lastRekeyDuration = duration;
+		}
+	}
+
+	/**
+	 * Called when the first message is held back by a key exchange. Must be
+	 * called whilst holding the kexqueue lock.
+	 */
+	void stallStarted() {
+		if (stallStarted == 0) {
+			stallStarted = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Called when messages held back by a key exchange have been sent. Must be
+	 * called whilst holding the kexqueue lock.
+	 */
+	void stallEnded() {
+		if (stallStarted != 0) {
+			long stalled = System.currentTimeMillis() - stallStarted;
+			stallTime += stalled;
+			lastStallTime = stalled;
+			maxStallTime = Math.max(maxStallTime, stalled);
+			AggregateTransportStats.getInstance().lastStallTime = stalled;
+			stallStarted = 0;
+		}
+	}
+
+	/**
+	 * Register this connection's statistics with the platform MBean server.
+	 * The registration is removed when the transport disconnects.
+	 * 
+	 * @param name
+	 *            a description of the connection, such as user@host:port
+	 */
+	void register(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			AggregateTransportStats.getInstance().register(server);
+
+			int id;
+			synchronized (TransportStats.class) {
+				id = ++nextId;
+			}
+
+			objectName = new ObjectName("com.sshtools:type=TransportStats,id="
+					+ id + ",name=" + ObjectName.quote(name));
+			server.registerMBean(this, objectName);
+			AggregateTransportStats.getInstance().add(this);
+
+			transport.addShutdownHook(new Runnable() {
+				public void run() {
+					unregister();
+				}
+			});
+		} catch (Throwable t) {
+			if (Log.isDebugEnabled()) {
+				Log.debug(this, "Failed to register transport statistics", t);
+			}
+		}
+	}
+
+	void unregister() {
+		ObjectName name;
+		synchronized (this) {
+			name = objectName;
+			objectName = null;
+		}
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (Throwable t) {
+		}
+		// Not whilst holding our own lock, the aggregate locks itself before
+		// reading from us
+		AggregateTransportStats.getInstance().remove(this);
+	}
+
+	public long getBytesIn() {
+		return transport.incomingBytes;
+	}
+
+	public long getBytesOut() {
+		return transport.outgoingBytes;
+	}
+
+	public long getPacketsIn() {
+		return packetsIn;
+	}
+
+	public long getPacketsOut() {
+		return packetsOut;
+	}
+
+	public synchronized long getRekeyCount() {
+		return keyExchanges > 0 ? keyExchanges - 1 : 0;
+	}
+
+	public long getLastRekeyDuration() {
+		return lastRekeyDuration;
+	}
+
+	public long getTotalRekeyTime() {
+		return totalRekeyTime;
+	}
+
+	public long getCipherTime() {
+		return (inCipherTime + outCipherTime) / 1000000;
+	}
+
+	public long getMacTime() {
+		return (inMacTime + outMacTime) / 1000000;
+	}
+
+	public long getCompressionTime() {
+		return (inCompressionTime + outCompressionTime) / 1000000;
+	}
+
+	public int getKeyExchangeQueueDepth() {
+		return transport.kexqueue.size();
+	}
+
+	public long getKeyExchangeStallTime() {
+		long started = stallStarted;
+		return stallTime
+				+ (started == 0 ? 0 : System.currentTimeMillis() - started);
+	}
+
+	public long getLastKeyExchangeStallTime() {
+		return lastStallTime;
+	}
+
+	public long getMaxKeyExchangeStallTime() {
+		return maxStallTime;
+	}
+
+	public int getKeyExchangeQueueBytes() {
+		return transport.kexqueueBytes;
+	}
+
+	public long getBackPressureTime() {
+		return backPressureTime;
+	}
+
+	public long getLastActivity() {
+		return transport.lastActivity;
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.ssh2;
+
+/**
+ * <p>
+ * JMX management interface exposing the statistics of an SSH2 transport. An
+ * instance is registered for each connection when statistics are enabled on
+ * the {@link Ssh2Context}, together with a single instance that aggregates
+ * every connection in the JVM.
+ * </p>
+ * 
+ * <p>
+ * Times spent in the cipher, MAC and compression are only collected whilst
+ * statistics are enabled; all times are reported in milliseconds.
+ * </p>
+ * 
+ * @author Lee David Painter
+ * @see Ssh2Context#setTransportStatisticsEnabled(boolean)
+ */
+public interface TransportStatsMBean {
+
+	/**
+	 * The number of bytes received, including packet framing and MACs.
+	 */
+	public long getBytesIn();
+
+	/**
+	 * The number of bytes sent, including packet framing and MACs.
+	 */
+	public long getBytesOut();
+
+	public long getPacketsIn();
+
+	public long getPacketsOut();
+
+	/**
+	 * The number of key exchanges completed after the initial one.
+	 */
+	public long getRekeyCount();
+
+	/**
+	 * How long the most recent key exchange took.
+	 */
+	public long getLastRekeyDuration();
+
+	/**
+	 * The total time spent performing key exchanges.
+	 */
+	public long getTotalRekeyTime();
+
+	/**
+	 * The time spent encrypting and decrypting packets. For AEAD ciphers this
+	 * includes the authentication tag.
+	 */
+	public long getCipherTime();
+
+	/**
+	 * The time spent generating and verifying MACs.
+	 */
+	public long getMacTime();
+
+	/**
+	 * The time spent compressing and uncompressing payloads.
+	 */
+	public long getCompressionTime();
+
+	/**
+	 * The number of messages held back until an active key exchange
+	 * completes.
+	 */
+	public int getKeyExchangeQueueDepth();
+
+	/**
+	 * The total time outgoing messages have been held back by key exchanges.
+	 */
+	public long getKeyExchangeStallTime();
+
+	/**
+	 * How long outgoing messages were held back by the most recent key
+	 * exchange that held any back.
+	 */
+	public long getLastKeyExchangeStallTime();
+
+	/**
+	 * The longest time outgoing messages have been held back by a single key
+	 * exchange.
+	 */
+	public long getMaxKeyExchangeStallTime();
+
+	/**
+	 * The number of payload bytes held back until an active key exchange
+	 * completes.
+	 */
+	public int getKeyExchangeQueueBytes();
+
+	/**
+	 * The total time senders have been blocked because the key exchange queue
+	 * was full.
+	 */
+	public long getBackPressureTime();
+
+	/**
+	 * The time of the last activity on the connection, in milliseconds since
+	 * the epoch.
+	 */
+	public long getLastActivity();
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.util;
+
+/**
+ * <p>
+ * A pool of byte arrays organised into size classes. Buffers are handed out
+ * from the smallest class that can hold the requested length, so callers must
+ * track the length they asked for rather than relying on the array length.
+ * Classes are spaced at powers of two with a half step in between, which keeps
+ * a typical 32k SSH packet plus its header within a 48k buffer.
+ * </p>
+ * 
+ * <p>
+ * Requests smaller than {@link #MINIMUM_POOLED_SIZE} or larger than
+ * {@link #MAXIMUM_POOLED_SIZE} are simply allocated; small arrays are cheap to
+ * collect and large ones are too rare to be worth keeping. Releasing an array
+ * that does not match a size class, or releasing into a full class, drops the
+ * array for the garbage collector so the pool never grows without bound.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class BufferPool {
+
+	public static final int MINIMUM_POOLED_SIZE = 512;
+	public static final int MAXIMUM_POOLED_SIZE = 262144;
+
+	static BufferPool instance;
+
+	int[] sizes;
+	byte[][][] free;
+	int[] available;
+	int maximumBuffersPerClass;
+
+	/**
+	 * Create a pool that keeps at most the given number of idle buffers in
+	 * each size class.
+	 * 
+	 * @param maximumBuffersPerClass
+	 */
+	public BufferPool(int maximumBuffersPerClass) {
+		this.maximumBuffersPerClass = maximumBuffersPerClass;
+
+		int count = 0;
+		for (int size = MINIMUM_POOLED_SIZE; size <= MAXIMUM_POOLED_SIZE; size *= 2) {
+			count += size < MAXIMUM_POOLED_SIZE ? 2 : 1;
+		}
+
+		sizes = new int[count];
+		int i = 0;
+		for (int size = MINIMUM_POOLED_SIZE; size <= MAXIMUM_POOLED_SIZE; size *= 2) {
+			sizes[i++] = size;
+			if (size < MAXIMUM_POOLED_SIZE) {
+				sizes[i++] = size + (size / 2);
+			}
+		}
+
+		free = new byte[count][][];
+		available = new int[count];
+	}
+
+	/**
+	 * Get the pool shared by the API.
+	 * 
+	 * @return BufferPool
+	 */
+	public static synchronized BufferPool getInstance() {
+		if (instance == null) {
+			instance = new BufferPool(16);
+		}
+		return instance;
+	}
+
+	/**
+	 * Get a buffer of at least <em>len</em> bytes. The contents of the buffer
+	 * are undefined.
+	 * 
+	 * @param len
+	 * @return byte[]
+	 */
+	public byte[] allocate(int len) {
+		int idx = getSizeClass(len);
+		if (idx < 0) {
+			return new byte[len];
+		}
+
+		synchronized (this) {
+			if (available[idx] > 0) {
+				byte[] buf = free[idx][--available[idx]];
+				free[idx][available[idx]] = null;
+				return buf;
+			}
+		}
+
+		return new byte[sizes[idx]];
+	}
+
+	/**
+	 * Return a buffer to the pool. The caller must not touch the array once it
+	 * has been released.
+	 * 
+	 * @param buf
+	 */
+	public void release(byte[] buf) {
+		if (buf == null) {
+			return;
+		}
+
+		int idx = getSizeClass(buf.length);
+		if (idx < 0 || sizes[idx] != buf.length) {
+			return;
+		}
+
+		synchronized (this) {
+			if (free[idx] == null) {
+				free[idx] = new byte[maximumBuffersPerClass][];
+			}
+			if (available[idx] < maximumBuffersPerClass) {
+				free[idx][available[idx]++] = buf;
+			}
+		}
+	}
+
+	int getSizeClass(int len) {
+		if (len < MINIMUM_POOLED_SIZE || len > MAXIMUM_POOLED_SIZE) {
+			return -1;
+		}
+		for (int i = 0; i < sizes.length; i++) {
+			if (sizes[i] >= len) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -68,6 +68,21 @@ public class ByteArrayWriter extends ByteArrayOutputStream {
 		count += numBytes;
 	}
 
+	/**
+	 * Make sure the underlying array has room for at least the number of bytes
+	 * supplied beyond the current position, so that data can be placed into
+	 * {@link #array()} directly before calling {@link #move(int)}.
+	 * 
+	 * @param numBytes
+	 */
+	public void ensureCapacity(int numBytes) {
+		if (count + numBytes > buf.length) {
+			byte[] tmp = new byte[Math.max(buf.length << 1, count + numBytes)];
+			System.arraycopy(buf, 0, tmp, 0, count);
+			buf = tmp;
+		}
+	}
+
 	/**
 	 * Write a BigInteger to the array.
 	 * 
@@ -145,14 +160,10 @@ public class ByteArrayWriter extends ByteArrayOutputStream {
 	 * @throws IOException
 	 */
 	public void writeInt(long i) throws IOException {
-		byte[] raw = new byte[4];
-
-		raw[0] = (byte) (i >> 24);
-		raw[1] = (byte) (i >> 16);
-		raw[2] = (byte) (i >> 8);
-		raw[3] = (byte) (i);
-
-		write(raw);
+		write((int) (i >> 24));
+		write((int) (i >> 16));
+		write((int) (i >> 8));
+		write((int) i);
 	}
 
 	/**
@@ -162,14 +173,10 @@ public class ByteArrayWriter extends ByteArrayOutputStream {
 	 * @throws IOException
 	 */
 	public void writeInt(int i) throws IOException {
-		byte[] raw = new byte[4];
-
-		raw[0] = (byte) (i >> 24);
-		raw[1] = (byte) (i >> 16);
-		raw[2] = (byte) (i >> 8);
-		raw[3] = (byte) (i);
-
-		write(raw);
+		write(i >> 24);
+		write(i >> 16);
+		write(i >> 8);
+		write(i);
 	}
 
 	/**
@@ -25,6 +25,7 @@ import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.Vector;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Connects an input stream to an outputstream. Reads from in stream and writes
@@ -37,6 +38,7 @@ public class IOStreamConnector {
 	private InputStream in = null;
 	private OutputStream out = null;
 	private Thread thread;
+	private ThreadFactory threadFactory = Threads.getDefaultThreadFactory();
 	private long bytes;
 	private boolean closeInput = true;
 	private boolean closeOutput = true;
@@ -112,6 +114,16 @@ public class IOStreamConnector {
 		this.closeOutput = closeOutput;
 	}
 
+	/**
+	 * Set the factory from which the transfer thread is created by
+	 * {@link #connect(InputStream, OutputStream)}.
+	 * 
+	 * @param threadFactory
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
 	public void setBufferSize(int numbytes) {
 		if (numbytes <= 0) {
 			throw new IllegalArgumentException(
@@ -131,10 +143,9 @@ public class IOStreamConnector {
 		this.in = in;
 		this.out = out;
 
-		thread = new Thread(new IOStreamConnectorThread());
-		thread.setDaemon(true);
-		thread.setName("IOStreamConnector " + in.toString() + ">>"
-				+ out.toString());
+		thread = Threads.newThread(threadFactory,
+				new IOStreamConnectorThread(), "IOStreamConnector "
+						+ in.toString() + ">>" + out.toString(), true);
 		thread.start();
 	}
 
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>
+ * Creates the threads used by the API. Every thread is obtained from a
+ * {@link ThreadFactory}; connections use the factory configured on their
+ * context and components without a context use the default factory set here.
+ * </p>
+ * 
+ * <p>
+ * On Java 21 or later {@link #virtualThreadFactory()} returns a factory of
+ * virtual threads, allowing blocking channel and forwarding code to scale to
+ * many thousands of threads without the cost of a platform thread stack each.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class Threads {
+
+	static ThreadFactory defaultFactory = new PlatformThreadFactory();
+	static ThreadFactory virtualFactory;
+
+	/**
+	 * Get the factory used by components that are not configured with one.
+	 * 
+	 * @return ThreadFactory
+	 */
+	public static ThreadFactory getDefaultThreadFactory() {
+		return defaultFactory;
+	}
+
+	/**
+	 * Set the factory used by components that are not configured with one.
+	 * 
+	 * @param factory
+	 */
+	public static void setDefaultThreadFactory(ThreadFactory factory) {
+		if (factory == null) {
+			throw new IllegalArgumentException(
+					"Thread factory cannot be null");
+		}
+		defaultFactory = factory;
+	}
+
+	/**
+	 * Determine whether the JVM supports virtual threads.
+	 * 
+	 * @return boolean
+	 */
+	public static boolean isVirtualThreadSupported() {
+		try {
+			virtualThreadFactory();
+			return true;
+		} catch (UnsupportedOperationException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Get a factory that creates virtual threads. This is resolved
+	 * reflectively so that the API continues to run on older JVMs.
+	 * 
+	 * @return ThreadFactory
+	 * @throws UnsupportedOperationException
+	 *             if the JVM does not support virtual threads
+	 */
+	public static synchronized ThreadFactory virtualThreadFactory() {
+		if (virtualFactory == null) {
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(
+						null);
+				// Invoke through the public interface, the builder
+				// implementation class is not accessible
+				Method factory = Class.forName("java.lang.Thread$Builder")
+						.getMethod("factory");
+				virtualFactory = (ThreadFactory) factory.invoke(builder);
+			} catch (Throwable t) {
+				throw new UnsupportedOperationException(
+						"Virtual threads are not supported by this JVM");
+			}
+		}
+		return virtualFactory;
+	}
+
+	/**
+	 * Create a thread from a factory and name it.
+	 * 
+	 * @param factory
+	 *            the factory, or <code>null</code> for the default factory
+	 * @param r
+	 * @param name
+	 * @param daemon
+	 *            whether the thread should be a daemon; ignored if the factory
+	 *            creates threads that cannot be changed, such as virtual
+	 *            threads which are always daemons
+	 * @return an unstarted thread
+	 */
+	public static Thread newThread(ThreadFactory factory, Runnable r,
+			String name, boolean daemon) {
+		Thread thread = (factory == null ? defaultFactory : factory)
+				.newThread(r);
+		if (name != null) {
+			thread.setName(name);
+		}
+		if (thread.isDaemon() != daemon) {
+			try {
+				thread.setDaemon(daemon);
+			} catch (IllegalArgumentException ex) {
+			}
+		}
+		return thread;
+	}
+
+	static class PlatformThreadFactory implements ThreadFactory {
+		public Thread newThread(Runnable r) {
+			return new Thread(r);
+		}
+	}
+}
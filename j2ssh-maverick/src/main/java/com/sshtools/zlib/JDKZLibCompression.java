@@ -0,0 +1,199 @@
+/**
+ * Copyright 2003-2016 SSHTOOLS Limited. All Rights Reserved.
+ *
+ * For product documentation visit https://www.sshtools.com/
+ *
+ * This file is part of J2SSH Maverick.
+ *
+ * J2SSH Maverick is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * J2SSH Maverick is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with J2SSH Maverick.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sshtools.zlib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.sshtools.ssh.compression.AdaptiveCompression;
+import com.sshtools.ssh.compression.BufferedCompression;
+import com.sshtools.ssh.compression.CompressionMonitor;
+import com.sshtools.ssh.compression.SshCompression;
+import com.sshtools.util.ByteArrayWriter;
+
+/**
+ * <p>
+ * zlib compression using the platform's native zlib through
+ * <code>java.util.zip.Deflater</code> and <code>Inflater</code>. Each packet
+ * is deflated with a sync flush so it can be inflated as soon as it arrives.
+ * Data is deflated straight into the transport's packet buffer and inflated
+ * into a buffer the transport reuses, avoiding the intermediate copies of
+ * {@link ZLibCompression}.
+ * </p>
+ * 
+ * <p>
+ * Requires Java 7 or later for sync flush support. The native zlib memory is
+ * released when the transport closes the compression, which it does when a
+ * key exchange replaces it or the connection is disconnected.
+ * </p>
+ * 
+ * @author Lee David Painter
+ */
+public class JDKZLibCompression implements AdaptiveCompression,
+		BufferedCompression, Closeable {
+
+	static private final int BUF_SIZE = 65535;
+
+	private Deflater deflater;
+	private Inflater inflater;
+
+	private CompressionMonitor monitor = new CompressionMonitor(6);
+	private int currentLevel;
+
+	private ByteArrayWriter tmp;
+
+	public String getAlgorithm() {
+		return "zlib";
+	}
+
+	public synchronized void init(int type, int level) {
+		close();
+		if (type == SshCompression.DEFLATER) {
+			deflater = new Deflater(level);
+		} else if (type == SshCompression.INFLATER) {
+			inflater = new Inflater();
+		}
+		monitor = new CompressionMonitor(level);
+		currentLevel = level;
+	}
+
+	public void setAdaptive(boolean adaptive) {
+		monitor.setAdaptive(adaptive);
+	}
+
+	public double getCompressionRatio() {
+		return monitor.getCompressionRatio();
+	}
+
+	public long getBytesSaved() {
+		return monitor.getBytesSaved();
+	}
+
+	public synchronized void compress(byte[] data, int start, int len,
+			ByteArrayWriter out) throws IOException {
+
+		if (deflater == null) {
+			throw new IOException("The compression has been closed");
+		}
+
+		// A change of level only takes effect on the next call to deflate,
+		// which then returns without flushing; apply it before supplying the
+		// packet so the packet itself is always sync flushed
+		int level = monitor.getLevel();
+		if (level != currentLevel) {
+			deflater.setLevel(level);
+			deflater.setInput(data, start, 0);
+			out.ensureCapacity(1024);
+			out.move(deflater.deflate(out.array(), out.size(),
+					out.array().length - out.size(), Deflater.SYNC_FLUSH));
+			currentLevel = level;
+		}
+
+		int size = out.size();
+		deflater.setInput(data, start, len);
+
+		int space;
+		int count;
+		do {
+			out.ensureCapacity(Math.max(len + 64, 1024));
+			space = out.array().length - out.size();
+			count = deflater.deflate(out.array(), out.size(), space,
+					Deflater.SYNC_FLUSH);
+			out.move(count);
+		} while (count == space || !deflater.needsInput());
+
+		monitor.update(len, out.size() - size);
+	}
+
+	public synchronized void uncompress(byte[] data, int start, int len,
+			ByteArrayWriter out) throws IOException {
+
+		if (inflater == null) {
+			throw new IOException("The compression has been closed");
+		}
+
+		int size = out.size();
+		inflater.setInput(data, start, len);
+
+		try {
+			int space;
+			int count;
+			do {
+				out.ensureCapacity(Math.max(len * 2, BUF_SIZE));
+				space = out.array().length - out.size();
+				count = inflater.inflate(out.array(), out.size(), space);
+				out.move(count);
+
+				if (count == 0) {
+					if (inflater.needsDictionary()) {
+						throw new IOException(
+								"uncompress: inflate requires a dictionary");
+					}
+					if (inflater.finished()) {
+						break;
+					}
+				}
+			} while (count == space || !inflater.needsInput());
+		} catch (DataFormatException ex) {
+			throw new IOException("uncompress: " + ex.getMessage());
+		}
+
+		monitor.update(out.size() - size, len);
+	}
+
+	public byte[] compress(byte[] data, int start, int len) throws IOException {
+		ByteArrayWriter out = getTemporaryWriter();
+		compress(data, start, len, out);
+		return out.toByteArray();
+	}
+
+	public byte[] uncompress(byte[] data, int start, int len)
+			throws IOException {
+		ByteArrayWriter out = getTemporaryWriter();
+		uncompress(data, start, len, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Release the native zlib memory held by the deflater or inflater.
+	 */
+	public synchronized void close() {
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+		if (inflater != null) {
+			inflater.end();
+			inflater = null;
+		}
+	}
+
+	private ByteArrayWriter getTemporaryWriter() {
+		if (tmp == null) {
+			tmp = new ByteArrayWriter(BUF_SIZE);
+		}
+		tmp.reset();
+		return tmp;
+	}
+}
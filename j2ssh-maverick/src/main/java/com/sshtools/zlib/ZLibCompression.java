@@ -25,10 +25,12 @@ import java.io.IOException;
 
 import com.jcraft.jzlib.JZlib;
 import com.jcraft.jzlib.ZStream;
+import com.sshtools.ssh.compression.AdaptiveCompression;
+import com.sshtools.ssh.compression.CompressionMonitor;
 import com.sshtools.ssh.compression.SshCompression;
 
 @SuppressWarnings("deprecation")
-public class ZLibCompression implements SshCompression {
+public class ZLibCompression implements AdaptiveCompression {
 
 	public ZLibCompression() {
 		stream = new ZStream();
@@ -49,20 +51,43 @@ public class ZLibCompression implements SshCompression {
 	private byte[] inflated_buf = new byte[BUF_SIZE];
 	private byte[] tmpbuf = new byte[BUF_SIZE];
 
+	private CompressionMonitor monitor = new CompressionMonitor(6);
+	private int currentLevel;
+
 	public void init(int type, int level) {
 		if (type == SshCompression.DEFLATER) {
 			stream.deflateInit(level);
 		} else if (type == SshCompression.INFLATER) {
 			stream.inflateInit();
 		}
+		monitor = new CompressionMonitor(level);
+		currentLevel = level;
+	}
+
+	public void setAdaptive(boolean adaptive) {
+		monitor.setAdaptive(adaptive);
+	}
+
+	public double getCompressionRatio() {
+		return monitor.getCompressionRatio();
+	}
+
+	public long getBytesSaved() {
+		return monitor.getBytesSaved();
 	}
 
 	public byte[] compress(byte[] buf, int start, int len) throws IOException {
 
 		compressOut.reset();
+
+		int level = monitor.getLevel();
+		if (level != currentLevel) {
+			setLevel(level);
+		}
+
 		stream.next_in = buf;
 		stream.next_in_index = start;
-		stream.avail_in = len - start;
+		stream.avail_in = len;
 		int status;
 
 		do {
@@ -79,7 +104,25 @@ public class ZLibCompression implements SshCompression {
 			}
 		} while (stream.avail_out == 0);
 
-		return compressOut.toByteArray();
+		byte[] compressed = compressOut.toByteArray();
+		monitor.update(len, compressed.length);
+		return compressed;
+	}
+
+	private void setLevel(int level) throws IOException {
+
+		// Changing level flushes anything pending at the old level so make
+		// sure there is somewhere for it to go
+		stream.avail_in = 0;
+		stream.next_out = tmpbuf;
+		stream.next_out_index = 0;
+		stream.avail_out = BUF_SIZE;
+		int status = stream.deflateParams(level, JZlib.Z_DEFAULT_STRATEGY);
+		if (status != JZlib.Z_OK && status != JZlib.Z_BUF_ERROR) {
+			throw new IOException("compress: deflateParams returned " + status);
+		}
+		compressOut.write(tmpbuf, 0, BUF_SIZE - stream.avail_out);
+		currentLevel = level;
 	}
 
 	public byte[] uncompress(byte[] buffer, int start, int length)
@@ -103,7 +146,9 @@ public class ZLibCompression implements SshCompression {
 						- stream.avail_out);
 				break;
 			case JZlib.Z_BUF_ERROR:
-				return uncompressOut.toByteArray();
+				byte[] uncompressed = uncompressOut.toByteArray();
+				monitor.update(uncompressed.length, length);
+				return uncompressed;
 			default:
 				throw new IOException("uncompress: inflate returnd " + status);
 			}
@@ -34,6 +34,7 @@ import java.net.InetAddress;
 import java.net.NoRouteToHostException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
 
 import socks.server.ServerAuthenticator;
 
@@ -45,6 +46,8 @@ import com.sshtools.ssh.SshChannel;
 import com.sshtools.ssh.SshClient;
 import com.sshtools.ssh.SshException;
 import com.sshtools.ssh.SshIOException;
+import com.sshtools.ssh2.Ssh2Context;
+import com.sshtools.util.Threads;
 
 /**
     SOCKS4 and SOCKS5 proxy, handles both protocols simultaniously.
@@ -215,7 +218,7 @@ public class ProxyServer implements Runnable{
           log("Accepted from:"+s.getInetAddress().getHostName()+":"
                               +s.getPort());
           ProxyServer ps = new ProxyServer(auth,s, agent);
-          (new Thread(ps)).start();
+          newThread(ps).start();
         }
       }catch(IOException ioe){
         ioe.printStackTrace();
@@ -283,6 +286,15 @@ public class ProxyServer implements Runnable{
 
 //Private methods
 /////////////////
+   private Thread newThread(Runnable r){
+      // Use the agent connection's thread factory when there is one
+      ThreadFactory factory = null;
+      if(agent != null && agent.getContext() instanceof Ssh2Context)
+         factory = ((Ssh2Context) agent.getContext()).getThreadFactory();
+      return Threads.newThread(factory, r, null,
+                               Thread.currentThread().isDaemon());
+   }
+
    private void startSession() throws IOException{
      sock.setSoTimeout(iddleTimeout);
 
@@ -430,7 +442,7 @@ public class ProxyServer implements Runnable{
       mode = ACCEPT_MODE;
 
       pipe_thread1 = Thread.currentThread();
-      pipe_thread2 = new Thread(this);
+      pipe_thread2 = newThread(this);
       pipe_thread2.start();
 
       //Make timeout infinit.
@@ -573,7 +585,7 @@ public class ProxyServer implements Runnable{
          remote_in = s.getInputStream();
          remote_out = s.getOutputStream();
          pipe_thread1 = Thread.currentThread();
-         pipe_thread2 = new Thread(this);
+         pipe_thread2 = newThread(this);
          pipe_thread2.start();
          pipe(in,remote_out);
       }catch(IOException ioe){